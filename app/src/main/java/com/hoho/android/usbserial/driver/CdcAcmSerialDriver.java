@@ -98,6 +98,16 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
             return CdcAcmSerialDriver.this;
         }
 
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            return mConnection != null ? mReadEndpoint : null;
+        }
+
+        @Override
+        public UsbEndpoint getWriteEndpoint() {
+            return mConnection != null ? mWriteEndpoint : null;
+        }
+
         @Override
         public void open(UsbDeviceConnection connection) throws IOException {
             if (mConnection != null) {
@@ -206,41 +216,6 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
             return numBytesRead;
         }
 
-        @Override
-        public int write(byte[] src, int timeoutMillis) throws IOException {
-            // TODO(mikey): Nearly identical to FtdiSerial write. Refactor.
-            int offset = 0;
-
-            while (offset < src.length) {
-                final int writeLength;
-                final int amtWritten;
-
-                synchronized (mWriteBufferLock) {
-                    final byte[] writeBuffer;
-
-                    writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                    if (offset == 0) {
-                        writeBuffer = src;
-                    } else {
-                        // bulkTransfer does not support offsets, make a copy.
-                        System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                        writeBuffer = mWriteBuffer;
-                    }
-
-                    amtWritten = mConnection.bulkTransfer(mWriteEndpoint, writeBuffer, writeLength,
-                            timeoutMillis);
-                }
-                if (amtWritten <= 0) {
-                    throw new IOException("Error writing " + writeLength
-                            + " bytes at offset " + offset + " length=" + src.length);
-                }
-
-                Log.d(TAG, "Wrote amt=" + amtWritten + " attempted=" + writeLength);
-                offset += amtWritten;
-            }
-            return offset;
-        }
-
         @Override
         public void setParameters(int baudRate, int dataBits, int stopBits, int parity) {
             byte stopBitsByte;
@@ -23,19 +23,32 @@ package com.hoho.android.usbserial.driver;
 
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.os.Build;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A base class shared by several driver implementations.
  *
  * @author mike wakerly (opensource@hoho.com)
  */
-abstract class CommonUsbSerialPort implements UsbSerialPort {
+public abstract class CommonUsbSerialPort implements UsbSerialPort {
 
     public static final int DEFAULT_READ_BUFFER_SIZE = 16 * 1024;
     public static final int DEFAULT_WRITE_BUFFER_SIZE = 16 * 1024;
 
+    /**
+     * {@link UsbDeviceConnection#bulkTransfer(UsbEndpoint, byte[], int, int, int)},
+     * which writes from an offset without a copy, needs API 18.
+     */
+    private static final boolean BULK_TRANSFER_OFFSETS_SUPPORTED =
+            (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2);
+
+    /** Longest single bulk transfer, as limited by usbfs on older kernels. */
+    private static final int MAX_BULK_TRANSFER_LENGTH = 16 * 1024;
+
     protected final UsbDevice mDevice;
     protected final int mPortNumber;
 
@@ -75,6 +88,149 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
         return mDevice;
     }
 
+    /**
+     * Returns the connection the port was opened with.
+     *
+     * @return the connection, or {@code null} if the port is not open
+     */
+    public final UsbDeviceConnection getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * Returns the bulk IN endpoint that {@link #read(byte[], int)} reads
+     * from, for callers that queue their own
+     * {@link android.hardware.usb.UsbRequest}s on {@link #getConnection()}.
+     * Pass the data read from it through {@link #filterReadData(ByteBuffer)}.
+     *
+     * @return the endpoint, or {@code null} if the port is not open or its
+     *         data can't be read this way
+     */
+    public abstract UsbEndpoint getReadEndpoint();
+
+    /**
+     * Removes any framing from data read from {@link #getReadEndpoint()},
+     * in place. On entry the data is from position 0 to the limit; on
+     * return the payload is. Most ports have no framing, and leave the
+     * buffer alone.
+     */
+    public void filterReadData(ByteBuffer buffer) {
+    }
+
+    /**
+     * Returns the bulk OUT endpoint that {@link #write(byte[], int)} writes
+     * to.
+     *
+     * @return the endpoint, or {@code null} if the port is not open
+     */
+    public abstract UsbEndpoint getWriteEndpoint();
+
+    @Override
+    public int write(byte[] src, int timeoutMillis) throws IOException {
+        return write(src, 0, src.length, timeoutMillis);
+    }
+
+    /**
+     * Writes {@code length} bytes of {@code src} starting at
+     * {@code offset}, like {@link #write(byte[], int)}.
+     *
+     * @return the number of bytes written
+     */
+    public int write(byte[] src, int offset, int length, int timeoutMillis) throws IOException {
+        final UsbEndpoint endpoint = getWriteEndpoint();
+        if (endpoint == null) {
+            throw new IOException("Not open");
+        }
+
+        int written = 0;
+
+        while (written < length) {
+            final int writeLength;
+            final int amtWritten;
+
+            if (BULK_TRANSFER_OFFSETS_SUPPORTED) {
+                writeLength = Math.min(length - written, MAX_BULK_TRANSFER_LENGTH);
+                amtWritten = mConnection.bulkTransfer(endpoint, src, offset + written, writeLength,
+                        timeoutMillis);
+            } else {
+                synchronized (mWriteBufferLock) {
+                    final byte[] writeBuffer;
+
+                    writeLength = Math.min(length - written, mWriteBuffer.length);
+                    if (offset + written == 0) {
+                        writeBuffer = src;
+                    } else {
+                        // bulkTransfer does not support offsets, make a copy.
+                        System.arraycopy(src, offset + written, mWriteBuffer, 0, writeLength);
+                        writeBuffer = mWriteBuffer;
+                    }
+
+                    amtWritten = mConnection.bulkTransfer(endpoint, writeBuffer, writeLength,
+                            timeoutMillis);
+                }
+            }
+
+            if (amtWritten <= 0) {
+                throw new IOException("Error writing " + writeLength
+                        + " bytes at offset " + (offset + written) + " length=" + length);
+            }
+
+            written += amtWritten;
+        }
+        return written;
+    }
+
+    /**
+     * Writes the bytes of {@code src} from its position to its limit, and
+     * advances its position past them.
+     *
+     * @return the number of bytes written
+     */
+    public int write(ByteBuffer src, int timeoutMillis) throws IOException {
+        final int length = src.remaining();
+
+        if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), length, timeoutMillis);
+            src.position(src.position() + length);
+            return length;
+        }
+
+        // Direct buffer: bulkTransfer only takes arrays, copy it in chunks.
+        final UsbEndpoint endpoint = getWriteEndpoint();
+        if (endpoint == null) {
+            throw new IOException("Not open");
+        }
+
+        int written = 0;
+
+        while (written < length) {
+            final int writeLength;
+            final int amtWritten;
+
+            synchronized (mWriteBufferLock) {
+                writeLength = Math.min(length - written, mWriteBuffer.length);
+                final int position = src.position();
+                src.get(mWriteBuffer, 0, writeLength);
+
+                amtWritten = mConnection.bulkTransfer(endpoint, mWriteBuffer, writeLength,
+                        timeoutMillis);
+                if (amtWritten > 0) {
+                    src.position(position + amtWritten);
+                } else {
+                    src.position(position);
+                }
+            }
+
+            if (amtWritten <= 0) {
+                throw new IOException("Error writing " + writeLength
+                        + " bytes at offset " + written + " length=" + length);
+            }
+
+            written += amtWritten;
+        }
+        return written;
+    }
+
     @Override
     public int getPortNumber() {
         return mPortNumber;
@@ -128,9 +284,6 @@ abstract class CommonUsbSerialPort implements UsbSerialPort {
     @Override
     public abstract int read(final byte[] dest, final int timeoutMillis) throws IOException;
 
-    @Override
-    public abstract int write(final byte[] src, final int timeoutMillis) throws IOException;
-
     @Override
     public abstract void setParameters(
             int baudRate, int dataBits, int stopBits, int parity) throws IOException;
@@ -113,6 +113,16 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
             return Cp21xxSerialDriver.this;
         }
 
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            return mConnection != null ? mReadEndpoint : null;
+        }
+
+        @Override
+        public UsbEndpoint getWriteEndpoint() {
+            return mConnection != null ? mWriteEndpoint : null;
+        }
+
         private int setConfigSingle(int request, int value) {
             return mConnection.controlTransfer(REQTYPE_HOST_TO_DEVICE, request, value,
                     0, null, 0, USB_WRITE_TIMEOUT_MILLIS);
@@ -196,40 +206,6 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
             return numBytesRead;
         }
 
-        @Override
-        public int write(byte[] src, int timeoutMillis) throws IOException {
-            int offset = 0;
-
-            while (offset < src.length) {
-                final int writeLength;
-                final int amtWritten;
-
-                synchronized (mWriteBufferLock) {
-                    final byte[] writeBuffer;
-
-                    writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                    if (offset == 0) {
-                        writeBuffer = src;
-                    } else {
-                        // bulkTransfer does not support offsets, make a copy.
-                        System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                        writeBuffer = mWriteBuffer;
-                    }
-
-                    amtWritten = mConnection.bulkTransfer(mWriteEndpoint, writeBuffer, writeLength,
-                            timeoutMillis);
-                }
-                if (amtWritten <= 0) {
-                    throw new IOException("Error writing " + writeLength
-                            + " bytes at offset " + offset + " length=" + src.length);
-                }
-
-                Log.d(TAG, "Wrote amt=" + amtWritten + " attempted=" + writeLength);
-                offset += amtWritten;
-            }
-            return offset;
-        }
-
         private void setBaudRate(int baudRate) throws IOException {
             byte[] data = new byte[] {
                     (byte) ( baudRate & 0xff),
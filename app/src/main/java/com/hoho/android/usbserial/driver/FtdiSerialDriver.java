@@ -179,6 +179,9 @@ public class FtdiSerialDriver implements UsbSerialDriver {
 
         private final String TAG = FtdiSerialDriver.class.getSimpleName();
 
+        /** Log the data read. Off: formatting it costs more than the read. */
+        private static final boolean DEBUG = false;
+
         private DeviceType mType;
 
         private int mInterface = 0; /* INTERFACE_ANY */
@@ -192,6 +195,13 @@ public class FtdiSerialDriver implements UsbSerialDriver {
          */
         private static final boolean ENABLE_ASYNC_READS = false;
 
+        /**
+         * Request reused by async reads, and the buffer it reads into (which
+         * wraps {@link #mReadBuffer}). Guarded by {@link #mReadBufferLock}.
+         */
+        private UsbRequest mReadRequest;
+        private ByteBuffer mReadRequestBuffer;
+
         public FtdiSerialPort(UsbDevice device, int portNumber) {
             super(device, portNumber);
         }
@@ -201,6 +211,18 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             return FtdiSerialDriver.this;
         }
 
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            // every packet read starts with modem status bytes, see
+            // filterReadData()
+            return mConnection != null ? mDevice.getInterface(0).getEndpoint(0) : null;
+        }
+
+        @Override
+        public UsbEndpoint getWriteEndpoint() {
+            return mConnection != null ? mDevice.getInterface(0).getEndpoint(1) : null;
+        }
+
         /**
          * Filter FTDI status bytes from buffer
          * @param src The source buffer (which contains status bytes)
@@ -210,21 +232,47 @@ public class FtdiSerialDriver implements UsbSerialDriver {
          * @return The number of payload bytes
          */
         private final int filterStatusBytes(byte[] src, byte[] dest, int totalBytesRead, int maxPacketSize) {
-            final int packetsCount = totalBytesRead / maxPacketSize + (totalBytesRead % maxPacketSize == 0 ? 0 : 1);
-            for (int packetIdx = 0; packetIdx < packetsCount; ++packetIdx) {
-                final int count = (packetIdx == (packetsCount - 1))
-                        ? (totalBytesRead % maxPacketSize) - MODEM_STATUS_HEADER_LENGTH
-                        : maxPacketSize - MODEM_STATUS_HEADER_LENGTH;
+            int payloadBytes = 0;
+            for (int packetStart = 0; packetStart < totalBytesRead; packetStart += maxPacketSize) {
+                final int count = Math.min(maxPacketSize, totalBytesRead - packetStart)
+                        - MODEM_STATUS_HEADER_LENGTH;
                 if (count > 0) {
-                    System.arraycopy(src,
-                            packetIdx * maxPacketSize + MODEM_STATUS_HEADER_LENGTH,
-                            dest,
-                            packetIdx * (maxPacketSize - MODEM_STATUS_HEADER_LENGTH),
-                            count);
+                    System.arraycopy(src, packetStart + MODEM_STATUS_HEADER_LENGTH,
+                            dest, payloadBytes, count);
+                    payloadBytes += count;
                 }
             }
+            return payloadBytes;
+        }
+
+        /**
+         * Strips the status bytes from each packet of data read from
+         * {@link #getReadEndpoint()}, in place. The payload is moved to the
+         * start of the buffer, and the limit set to its end.
+         */
+        @Override
+        public void filterReadData(ByteBuffer buffer) {
+            final int totalBytesRead = buffer.limit();
+            final UsbEndpoint endpoint = mDevice.getInterface(0).getEndpoint(0);
+            final int maxPacketSize = endpoint.getMaxPacketSize();
+
+            if (buffer.hasArray()) {
+                final byte[] array = buffer.array();
+                final int payloadBytes = filterStatusBytes(array, array, totalBytesRead, maxPacketSize);
+                buffer.position(0);
+                buffer.limit(payloadBytes);
+                return;
+            }
 
-          return totalBytesRead - (packetsCount * 2);
+            int payloadBytes = 0;
+            for (int packetStart = 0; packetStart < totalBytesRead; packetStart += maxPacketSize) {
+                final int packetEnd = Math.min(packetStart + maxPacketSize, totalBytesRead);
+                for (int i = packetStart + MODEM_STATUS_HEADER_LENGTH; i < packetEnd; i++) {
+                    buffer.put(payloadBytes++, buffer.get(i));
+                }
+            }
+            buffer.position(0);
+            buffer.limit(payloadBytes);
         }
 
         public void reset() throws IOException {
@@ -270,6 +318,12 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                 throw new IOException("Already closed");
             }
             try {
+                synchronized (mReadBufferLock) {
+                    if (mReadRequest != null) {
+                        mReadRequest.close();
+                        mReadRequest = null;
+                    }
+                }
                 mConnection.close();
             } finally {
                 mConnection = null;
@@ -281,31 +335,38 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             final UsbEndpoint endpoint = mDevice.getInterface(0).getEndpoint(0);
 
             if (ENABLE_ASYNC_READS) {
-                final int readAmt;
                 synchronized (mReadBufferLock) {
-                    // mReadBuffer is only used for maximum read size.
-                    readAmt = Math.min(dest.length, mReadBuffer.length);
-                }
+                    final int readAmt = Math.min(dest.length, mReadBuffer.length);
 
-                final UsbRequest request = new UsbRequest();
-                request.initialize(mConnection, endpoint);
+                    // Reuse one request, and read into mReadBuffer so that
+                    // the status bytes can be stripped on the way to dest.
+                    if (mReadRequest == null) {
+                        mReadRequest = new UsbRequest();
+                        if (!mReadRequest.initialize(mConnection, endpoint)) {
+                            mReadRequest = null;
+                            throw new IOException("Error initializing request.");
+                        }
+                    }
+                    if (mReadRequestBuffer == null || mReadRequestBuffer.array() != mReadBuffer) {
+                        mReadRequestBuffer = ByteBuffer.wrap(mReadBuffer);
+                    }
+                    mReadRequestBuffer.clear();
 
-                final ByteBuffer buf = ByteBuffer.wrap(dest);
-                if (!request.queue(buf, readAmt)) {
-                    throw new IOException("Error queueing request.");
-                }
+                    if (!mReadRequest.queue(mReadRequestBuffer, readAmt)) {
+                        throw new IOException("Error queueing request.");
+                    }
 
-                final UsbRequest response = mConnection.requestWait();
-                if (response == null) {
-                    throw new IOException("Null response");
-                }
+                    final UsbRequest response = mConnection.requestWait();
+                    if (response == null) {
+                        throw new IOException("Null response");
+                    }
 
-                final int payloadBytesRead = buf.position() - MODEM_STATUS_HEADER_LENGTH;
-                if (payloadBytesRead > 0) {
-                    Log.d(TAG, HexDump.dumpHexString(dest, 0, Math.min(32, dest.length)));
+                    final int payloadBytesRead = filterStatusBytes(mReadBuffer, dest,
+                            mReadRequestBuffer.position(), endpoint.getMaxPacketSize());
+                    if (DEBUG && payloadBytesRead > 0) {
+                        Log.d(TAG, HexDump.dumpHexString(dest, 0, Math.min(32, payloadBytesRead)));
+                    }
                     return payloadBytesRead;
-                } else {
-                    return 0;
                 }
             } else {
                 final int totalBytesRead;
@@ -324,42 +385,6 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             }
         }
 
-        @Override
-        public int write(byte[] src, int timeoutMillis) throws IOException {
-            final UsbEndpoint endpoint = mDevice.getInterface(0).getEndpoint(1);
-            int offset = 0;
-
-            while (offset < src.length) {
-                final int writeLength;
-                final int amtWritten;
-
-                synchronized (mWriteBufferLock) {
-                    final byte[] writeBuffer;
-
-                    writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                    if (offset == 0) {
-                        writeBuffer = src;
-                    } else {
-                        // bulkTransfer does not support offsets, make a copy.
-                        System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                        writeBuffer = mWriteBuffer;
-                    }
-
-                    amtWritten = mConnection.bulkTransfer(endpoint, writeBuffer, writeLength,
-                            timeoutMillis);
-                }
-
-                if (amtWritten <= 0) {
-                    throw new IOException("Error writing " + writeLength
-                            + " bytes at offset " + offset + " length=" + src.length);
-                }
-
-                Log.d(TAG, "Wrote amtWritten=" + amtWritten + " attempted=" + writeLength);
-                offset += amtWritten;
-            }
-            return offset;
-        }
-
         private int setBaudRate(int baudRate) throws IOException {
             long[] vals = convertBaudrate(baudRate);
             long actualBaudrate = vals[0];
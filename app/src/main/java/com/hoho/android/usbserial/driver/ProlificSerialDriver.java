@@ -133,6 +133,16 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             return ProlificSerialDriver.this;
         }
 
+        @Override
+        public UsbEndpoint getReadEndpoint() {
+            return mConnection != null ? mReadEndpoint : null;
+        }
+
+        @Override
+        public UsbEndpoint getWriteEndpoint() {
+            return mConnection != null ? mWriteEndpoint : null;
+        }
+
         private final byte[] inControlTransfer(int requestType, int request,
                 int value, int index, int length) throws IOException {
             byte[] buffer = new byte[length];
@@ -380,41 +390,6 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             }
         }
 
-        @Override
-        public int write(byte[] src, int timeoutMillis) throws IOException {
-            int offset = 0;
-
-            while (offset < src.length) {
-                final int writeLength;
-                final int amtWritten;
-
-                synchronized (mWriteBufferLock) {
-                    final byte[] writeBuffer;
-
-                    writeLength = Math.min(src.length - offset, mWriteBuffer.length);
-                    if (offset == 0) {
-                        writeBuffer = src;
-                    } else {
-                        // bulkTransfer does not support offsets, make a copy.
-                        System.arraycopy(src, offset, mWriteBuffer, 0, writeLength);
-                        writeBuffer = mWriteBuffer;
-                    }
-
-                    amtWritten = mConnection.bulkTransfer(mWriteEndpoint,
-                            writeBuffer, writeLength, timeoutMillis);
-                }
-
-                if (amtWritten <= 0) {
-                    throw new IOException("Error writing " + writeLength
-                            + " bytes at offset " + offset + " length="
-                            + src.length);
-                }
-
-                offset += amtWritten;
-            }
-            return offset;
-        }
-
         @Override
         public void setParameters(int baudRate, int dataBits, int stopBits,
                 int parity) throws IOException {
@@ -0,0 +1,143 @@
+/* Copyright 2011-2013 Google Inc.
+ * Copyright 2013 mike wakerly <opensource@hoho.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301,
+ * USA.
+ *
+ * Project home page: https://github.com/mik3y/usb-serial-for-android
+ */
+
+package com.hoho.android.usbserial.util;
+
+/**
+ * Fixed-size byte ring buffer for one producer thread and one consumer
+ * thread, without locks.
+ *
+ * <p>The producer calls {@link #offer(byte[], int, int)}. The consumer
+ * reads the bytes in place, from {@link #array()} at
+ * {@link #readOffset()} for {@link #contiguousSize()} bytes, and then
+ * frees them with {@link #skip(int)}.
+ */
+public class ByteRingBuffer {
+
+    private final byte[] mBuffer;
+    private final int mMask;
+
+    // Total bytes offered. Written by the producer only.
+    private volatile long mTail = 0;
+
+    // Total bytes skipped. Written by the consumer only.
+    private volatile long mHead = 0;
+
+    /**
+     * Creates a ring buffer holding at least {@code capacity} bytes,
+     * rounded up to a power of two.
+     */
+    public ByteRingBuffer(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mBuffer = new byte[size];
+        mMask = mBuffer.length - 1;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * Returns the number of bytes waiting for the consumer.
+     */
+    public int size() {
+        return (int) (mTail - mHead);
+    }
+
+    /**
+     * Returns the number of bytes the producer can offer without blocking.
+     */
+    public int free() {
+        return mBuffer.length - size();
+    }
+
+    /**
+     * Producer: copies {@code length} bytes of {@code src} into the ring,
+     * if they all fit.
+     *
+     * @return {@code true} if the bytes were added, {@code false} if there
+     *         is not enough free space, in which case nothing was added
+     */
+    public boolean offer(byte[] src, int offset, int length) {
+        final long tail = mTail;
+        if (length > mBuffer.length - (int) (tail - mHead)) {
+            return false;
+        }
+
+        final int start = (int) (tail & mMask);
+        final int firstLength = Math.min(length, mBuffer.length - start);
+        System.arraycopy(src, offset, mBuffer, start, firstLength);
+        System.arraycopy(src, offset + firstLength, mBuffer, 0, length - firstLength);
+
+        // Publish the bytes.
+        mTail = tail + length;
+        return true;
+    }
+
+    /**
+     * Consumer: returns the backing array, to read from in place.
+     */
+    public byte[] array() {
+        return mBuffer;
+    }
+
+    /**
+     * Consumer: returns the position in {@link #array()} of the next byte.
+     */
+    public int readOffset() {
+        return (int) (mHead & mMask);
+    }
+
+    /**
+     * Consumer: returns the number of bytes waiting from
+     * {@link #readOffset()} up to the end of the array. The rest of them,
+     * if any, continue at position 0.
+     */
+    public int contiguousSize() {
+        final long head = mHead;
+        final int start = (int) (head & mMask);
+        return Math.min((int) (mTail - head), mBuffer.length - start);
+    }
+
+    /**
+     * Consumer: frees {@code count} bytes, after they have been read.
+     */
+    public void skip(int count) {
+        if (count < 0 || count > size()) {
+            throw new IllegalArgumentException("Invalid count " + count);
+        }
+        mHead = mHead + count;
+    }
+
+    /**
+     * Consumer: drops all waiting bytes.
+     */
+    public void clear() {
+        mHead = mTail;
+    }
+
+}
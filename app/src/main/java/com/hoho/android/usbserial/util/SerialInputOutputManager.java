@@ -21,34 +21,86 @@
 
 package com.hoho.android.usbserial.util;
 
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbRequest;
+import android.os.Build;
 import android.util.Log;
 
+import com.hoho.android.usbserial.driver.CommonUsbSerialPort;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 /**
  * Utility class which services a {@link UsbSerialPort} in its {@link #run()}
  * method.
  *
+ * <p>When the port exposes its read endpoint (see
+ * {@link CommonUsbSerialPort#getReadEndpoint()}), incoming data is read
+ * with {@link #READ_REQUEST_COUNT} {@link UsbRequest}s kept queued, so
+ * data is delivered as soon as a transfer completes. Otherwise it falls
+ * back to blocking reads with a {@link #READ_WAIT_MILLIS} timeout. Don't
+ * read from the port yourself while this is running.
+ *
+ * <p>Data is read into a fixed pool of buffers. A {@link BufferListener}
+ * gets the pooled buffer itself, with no copy, and hands it back with
+ * {@link #releaseBuffer(ByteBuffer)}. A {@link Listener} gets a copy.
+ *
+ * <p>Outgoing data goes through a {@link ByteRingBuffer}, written to the
+ * port by a writer thread as soon as it arrives. {@link #writeAsync(byte[])}
+ * doesn't block or take locks; it returns {@code false} when the ring is
+ * full, and {@link #writeAsync(byte[], int)} waits for room.
+ *
  * @author mike wakerly (opensource@hoho.com)
  */
 public class SerialInputOutputManager implements Runnable {
 
     private static final String TAG = SerialInputOutputManager.class.getSimpleName();
-    private static final boolean DEBUG = true;
+    private static final boolean DEBUG = false;
 
     private static final int READ_WAIT_MILLIS = 200;
     private static final int BUFSIZ = 4096;
 
+    /** Number of read requests kept queued by the asynchronous read path. */
+    public static final int READ_REQUEST_COUNT = 4;
+
+    /** Number of pooled read buffers: the queued ones, plus as many held by the listener. */
+    public static final int READ_BUFFER_COUNT = 2 * READ_REQUEST_COUNT;
+
+    /**
+     * Asynchronous reads need {@link UsbRequest} to report the number of
+     * bytes read, see http://b.android.com/28023
+     */
+    private static final boolean ASYNC_READS_SUPPORTED =
+            (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1);
+
     private final UsbSerialPort mDriver;
 
+    // Used by blocking reads only.
     private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFSIZ);
 
-    // Synchronized by 'mWriteBuffer'
-    private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(BUFSIZ);
+    // Pooled read buffers that are neither queued nor held by the listener.
+    // Synchronized by 'mFreeReadBuffers'
+    private final ArrayDeque<ByteBuffer> mFreeReadBuffers =
+            new ArrayDeque<ByteBuffer>(READ_BUFFER_COUNT);
+
+    // Written by writeAsync() callers (one at a time), read by the writer thread.
+    private final ByteRingBuffer mWriteRing = new ByteRingBuffer(BUFSIZ);
+
+    // Writer thread waiting for data, and writeAsync() callers waiting
+    // for room. Guarded by 'mWriteLock'.
+    private final Object mWriteLock = new Object();
+    private volatile int mWriteDataWaiters = 0;
+    private volatile int mWriteSpaceWaiters = 0;
+
+    // Non-null if the writer thread failed.
+    private volatile IOException mWriteError;
+
+    // Requests of the asynchronous read path, non-null while it runs.
+    private volatile UsbRequest[] mReadRequests;
 
     private enum State {
         STOPPED,
@@ -56,12 +108,17 @@ public class SerialInputOutputManager implements Runnable {
         STOPPING
     }
 
-    // Synchronized by 'this'
-    private State mState = State.STOPPED;
+    // Written while holding 'this', read without it: the writer thread
+    // and writeAsync() read it while holding 'mWriteLock', and must not
+    // take 'this' then.
+    private volatile State mState = State.STOPPED;
 
     // Synchronized by 'this'
     private Listener mListener;
 
+    // Synchronized by 'this'
+    private BufferListener mBufferListener;
+
     public interface Listener {
         /**
          * Called when new incoming data is available.
@@ -75,6 +132,25 @@ public class SerialInputOutputManager implements Runnable {
         public void onRunError(Exception e);
     }
 
+    public interface BufferListener {
+        /**
+         * Called when new incoming data is available, from the buffer's
+         * position to its limit. The buffer is one of the manager's pooled
+         * buffers: hand it back with
+         * {@link SerialInputOutputManager#releaseBuffer(ByteBuffer)} when
+         * done with it, and don't use it after that. Reading stalls while
+         * the listener holds all {@link SerialInputOutputManager#READ_BUFFER_COUNT}
+         * buffers.
+         */
+        public void onNewBuffer(ByteBuffer data);
+
+        /**
+         * Called when {@link SerialInputOutputManager#run()} aborts due to an
+         * error.
+         */
+        public void onRunError(Exception e);
+    }
+
     /**
      * Creates a new instance with no listener.
      */
@@ -88,6 +164,10 @@ public class SerialInputOutputManager implements Runnable {
     public SerialInputOutputManager(UsbSerialPort driver, Listener listener) {
         mDriver = driver;
         mListener = listener;
+
+        for (int i = 0; i < READ_BUFFER_COUNT; i++) {
+            mFreeReadBuffers.add(ByteBuffer.allocateDirect(BUFSIZ));
+        }
     }
 
     public synchronized void setListener(Listener listener) {
@@ -98,29 +178,116 @@ public class SerialInputOutputManager implements Runnable {
         return mListener;
     }
 
-    public void writeAsync(byte[] data) {
-        synchronized (mWriteBuffer) {
-            mWriteBuffer.put(data);
+    /**
+     * Sets a listener that gets incoming data without a copy. Takes
+     * precedence over the {@link Listener}, which still gets errors.
+     */
+    public synchronized void setBufferListener(BufferListener listener) {
+        mBufferListener = listener;
+    }
+
+    public synchronized BufferListener getBufferListener() {
+        return mBufferListener;
+    }
+
+    /**
+     * Returns a buffer passed to {@link BufferListener#onNewBuffer(ByteBuffer)}
+     * to the pool.
+     */
+    public void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        synchronized (mFreeReadBuffers) {
+            mFreeReadBuffers.add(buffer);
+            mFreeReadBuffers.notifyAll();
         }
     }
 
-    public synchronized void stop() {
-        if (getState() == State.RUNNING) {
+    /**
+     * Queues data to be written, if there is room for all of it. Only one
+     * thread at a time may write.
+     *
+     * @return {@code true} if the data was queued, {@code false} if the
+     *         write buffer is too full, in which case nothing was queued
+     */
+    public boolean writeAsync(byte[] data) {
+        if (!mWriteRing.offer(data, 0, data.length)) {
+            return false;
+        }
+
+        // Wake up the writer thread.
+        if (mWriteDataWaiters > 0) {
+            synchronized (mWriteLock) {
+                mWriteLock.notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues data to be written, waiting up to {@code timeoutMillis} for
+     * room in the write buffer.
+     *
+     * @return {@code true} if the data was queued, {@code false} on timeout
+     */
+    public boolean writeAsync(byte[] data, int timeoutMillis) throws InterruptedException {
+        if (data.length > mWriteRing.capacity()) {
+            throw new IllegalArgumentException("Data larger than write buffer: " + data.length);
+        }
+
+        final long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+
+        while (!writeAsync(data)) {
+            synchronized (mWriteLock) {
+                // Register before checking again, so that either we see the
+                // room, or the writer thread sees us.
+                mWriteSpaceWaiters++;
+                try {
+                    while (mWriteRing.free() < data.length) {
+                        final long remainingMillis = (deadline - System.nanoTime()) / 1000000L;
+                        if (remainingMillis <= 0 || getState() != State.RUNNING) {
+                            return false;
+                        }
+                        mWriteLock.wait(remainingMillis);
+                    }
+                } finally {
+                    mWriteSpaceWaiters--;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes that {@link #writeAsync(byte[])} can
+     * queue now.
+     */
+    public int getWriteSpace() {
+        return mWriteRing.free();
+    }
+
+    public void stop() {
+        synchronized (this) {
+            if (mState != State.RUNNING) {
+                return;
+            }
             Log.i(TAG, "Stop requested");
             mState = State.STOPPING;
         }
+
+        // Not holding 'this', so that no thread holds both locks.
+        wakeReadRequests();
+        synchronized (mWriteLock) {
+            mWriteLock.notifyAll();
+        }
     }
 
-    private synchronized State getState() {
+    private State getState() {
         return mState;
     }
 
     /**
      * Continuously services the read and write buffers until {@link #stop()} is
      * called, or until a driver exception is raised.
-     *
-     * NOTE(mikey): Uses inefficient read/write-with-timeout.
-     * TODO(mikey): Read asynchronously with {@link UsbRequest#queue(ByteBuffer, int)}
      */
     @Override
     public void run() {
@@ -132,13 +299,35 @@ public class SerialInputOutputManager implements Runnable {
         }
 
         Log.i(TAG, "Running ..");
+        final Thread writer = new Thread(new Writer(), TAG + "-writer");
+        mWriteError = null;
+        writer.start();
         try {
-            while (true) {
-                if (getState() != State.RUNNING) {
-                    Log.i(TAG, "Stopping mState=" + getState());
-                    break;
+            UsbDeviceConnection connection = null;
+            UsbEndpoint readEndpoint = null;
+            if (ASYNC_READS_SUPPORTED && mDriver instanceof CommonUsbSerialPort) {
+                final CommonUsbSerialPort port = (CommonUsbSerialPort) mDriver;
+                connection = port.getConnection();
+                readEndpoint = port.getReadEndpoint();
+            }
+
+            if (connection != null && readEndpoint != null) {
+                Log.i(TAG, "Reading with " + READ_REQUEST_COUNT + " queued requests");
+                runAsyncReads((CommonUsbSerialPort) mDriver, connection, readEndpoint);
+            } else {
+                while (true) {
+                    if (getState() != State.RUNNING) {
+                        break;
+                    }
+                    step();
                 }
-                step();
+            }
+            Log.i(TAG, "Stopping mState=" + getState());
+
+            stop();
+            joinWriter(writer);
+            if (mWriteError != null) {
+                throw mWriteError;
             }
         } catch (Exception e) {
             Log.w(TAG, "Run ending due to exception: " + e.getMessage(), e);
@@ -146,7 +335,15 @@ public class SerialInputOutputManager implements Runnable {
             if (listener != null) {
               listener.onRunError(e);
             }
+            final BufferListener bufferListener = getBufferListener();
+            if (bufferListener != null) {
+              bufferListener.onRunError(e);
+            }
         } finally {
+            // The ring buffer has one consumer: the writer must be gone
+            // before run() can be called again.
+            stop();
+            joinWriter(writer);
             synchronized (this) {
                 mState = State.STOPPED;
                 Log.i(TAG, "Stopped.");
@@ -154,37 +351,275 @@ public class SerialInputOutputManager implements Runnable {
         }
     }
 
+    private static void joinWriter(Thread writer) {
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void step() throws IOException {
         // Handle incoming data.
         int len = mDriver.read(mReadBuffer.array(), READ_WAIT_MILLIS);
         if (len > 0) {
             if (DEBUG) Log.d(TAG, "Read data len=" + len);
-            final Listener listener = getListener();
-            if (listener != null) {
-                final byte[] data = new byte[len];
-                mReadBuffer.get(data, 0, len);
-                listener.onNewData(data);
+            if (getBufferListener() != null) {
+                final ByteBuffer buffer = takeReadBuffer();
+                if (buffer != null) {
+                    buffer.put(mReadBuffer.array(), 0, len);
+                    buffer.flip();
+                    deliver(buffer);
+                }
+            } else {
+                final Listener listener = getListener();
+                if (listener != null) {
+                    final byte[] data = new byte[len];
+                    mReadBuffer.get(data, 0, len);
+                    listener.onNewData(data);
+                }
             }
             mReadBuffer.clear();
         }
+    }
+
+    /**
+     * Keeps {@link #READ_REQUEST_COUNT} read requests queued on the read
+     * endpoint, and delivers each one as it completes.
+     */
+    private void runAsyncReads(CommonUsbSerialPort port, UsbDeviceConnection connection,
+            UsbEndpoint endpoint) throws IOException {
+        final UsbRequest[] requests = new UsbRequest[READ_REQUEST_COUNT];
+        final boolean[] queued = new boolean[READ_REQUEST_COUNT];
+        int queuedCount = 0;
+
+        try {
+            for (int i = 0; i < requests.length; i++) {
+                requests[i] = new UsbRequest();
+                if (!requests[i].initialize(connection, endpoint)) {
+                    throw new IOException("Error initializing request.");
+                }
+            }
+            mReadRequests = requests;
+
+            while (getState() == State.RUNNING) {
+                // Queue every idle request that we have a buffer for.
+                for (int i = 0; i < requests.length; i++) {
+                    if (queued[i]) {
+                        continue;
+                    }
+                    final ByteBuffer buffer = pollReadBuffer();
+                    if (buffer == null) {
+                        break;
+                    }
+                    requests[i].setClientData(buffer);
+                    if (!requests[i].queue(buffer, buffer.capacity())) {
+                        releaseBuffer(buffer);
+                        throw new IOException("Error queueing request.");
+                    }
+                    queued[i] = true;
+                    queuedCount++;
+                }
+
+                if (queuedCount == 0) {
+                    // The listener holds every buffer.
+                    awaitReadBuffer();
+                    continue;
+                }
+
+                final UsbRequest response = connection.requestWait();
+                if (response == null) {
+                    throw new IOException("Null response");
+                }
+                final int i = indexOf(requests, response);
+                if (i < 0 || !queued[i]) {
+                    continue;
+                }
+                queued[i] = false;
+                queuedCount--;
 
-        // Handle outgoing data.
-        byte[] outBuff = null;
-        synchronized (mWriteBuffer) {
-            len = mWriteBuffer.position();
-            if (len > 0) {
-                outBuff = new byte[len];
-                mWriteBuffer.rewind();
-                mWriteBuffer.get(outBuff, 0, len);
-                mWriteBuffer.clear();
+                // The position is the number of bytes read.
+                final ByteBuffer buffer = (ByteBuffer) response.getClientData();
+                buffer.flip();
+                port.filterReadData(buffer);
+                if (buffer.hasRemaining()) {
+                    if (DEBUG) Log.d(TAG, "Read data len=" + buffer.remaining());
+                    deliver(buffer);
+                } else {
+                    releaseBuffer(buffer);
+                }
+            }
+        } finally {
+            mReadRequests = null;
+
+            // Reap the queued requests before closing them.
+            for (int i = 0; i < requests.length; i++) {
+                if (queued[i]) {
+                    requests[i].cancel();
+                }
+            }
+            while (queuedCount > 0) {
+                final UsbRequest response = connection.requestWait();
+                if (response == null) {
+                    break;
+                }
+                final int i = indexOf(requests, response);
+                if (i >= 0 && queued[i]) {
+                    queued[i] = false;
+                    queuedCount--;
+                    releaseBuffer((ByteBuffer) response.getClientData());
+                }
+            }
+            for (UsbRequest request : requests) {
+                if (request != null) {
+                    request.close();
+                }
             }
         }
-        if (outBuff != null) {
-            if (DEBUG) {
-                Log.d(TAG, "Writing data len=" + len);
+    }
+
+    /**
+     * Cancels the queued read requests, so that the read loop sees a stop.
+     */
+    private void wakeReadRequests() {
+        final UsbRequest[] requests = mReadRequests;
+        if (requests == null) {
+            return;
+        }
+        for (UsbRequest request : requests) {
+            request.cancel();
+        }
+    }
+
+    private void deliver(ByteBuffer buffer) {
+        final BufferListener bufferListener = getBufferListener();
+        if (bufferListener != null) {
+            bufferListener.onNewBuffer(buffer);
+            return;
+        }
+
+        final Listener listener = getListener();
+        if (listener != null) {
+            final byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            listener.onNewData(data);
+        }
+        releaseBuffer(buffer);
+    }
+
+    private ByteBuffer pollReadBuffer() {
+        synchronized (mFreeReadBuffers) {
+            return mFreeReadBuffers.poll();
+        }
+    }
+
+    private void awaitReadBuffer() {
+        synchronized (mFreeReadBuffers) {
+            if (mFreeReadBuffers.isEmpty()) {
+                try {
+                    mFreeReadBuffers.wait(READ_WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stop();
+                }
+            }
+        }
+    }
+
+    // Waits for a free buffer, or returns null when stopping.
+    private ByteBuffer takeReadBuffer() {
+        ByteBuffer buffer;
+        while ((buffer = pollReadBuffer()) == null) {
+            if (getState() != State.RUNNING) {
+                return null;
+            }
+            awaitReadBuffer();
+        }
+        return buffer;
+    }
+
+    /**
+     * Writes queued data to the port as soon as it is queued, straight
+     * from the ring buffer.
+     */
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                while (getState() == State.RUNNING) {
+                    final int length = mWriteRing.contiguousSize();
+                    if (length == 0) {
+                        awaitWriteData();
+                        continue;
+                    }
+
+                    if (DEBUG) {
+                        Log.d(TAG, "Writing data len=" + length);
+                    }
+                    final int written = writeDriver(mWriteRing.array(), mWriteRing.readOffset(), length);
+                    mWriteRing.skip(written);
+
+                    // Wake up writers waiting for room.
+                    if (mWriteSpaceWaiters > 0) {
+                        synchronized (mWriteLock) {
+                            mWriteLock.notifyAll();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                mWriteError = e;
+                SerialInputOutputManager.this.stop();
+            }
+        }
+
+        private void awaitWriteData() {
+            boolean interrupted = false;
+            synchronized (mWriteLock) {
+                // Register before checking again, so that either we see the
+                // data, or writeAsync() sees us.
+                mWriteDataWaiters++;
+                try {
+                    if (mWriteRing.size() == 0 && getState() == State.RUNNING) {
+                        mWriteLock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } finally {
+                    mWriteDataWaiters--;
+                }
+            }
+
+            // stop() takes 'mWriteLock', so call it after releasing it.
+            if (interrupted) {
+                SerialInputOutputManager.this.stop();
+            }
+        }
+    }
+
+    private int writeDriver(byte[] src, int offset, int length) throws IOException {
+        if (mDriver instanceof CommonUsbSerialPort) {
+            return ((CommonUsbSerialPort) mDriver).write(src, offset, length, READ_WAIT_MILLIS);
+        }
+
+        final byte[] data = new byte[length];
+        System.arraycopy(src, offset, data, 0, length);
+        return mDriver.write(data, READ_WAIT_MILLIS);
+    }
+
+    private static int indexOf(UsbRequest[] requests, UsbRequest request) {
+        for (int i = 0; i < requests.length; i++) {
+            if (requests[i] == request) {
+                return i;
             }
-            mDriver.write(outBuff, READ_WAIT_MILLIS);
         }
+        return -1;
     }
 
 }
@@ -0,0 +1,230 @@
+package com.testbed.peaclab.thermalprofiler;
+
+/**
+ *
+ * TYPE: AgilentFrameDecoder
+ *
+ *  Incremental decoder for the readings the Agilent U1252A multimeter
+ *  sends over its serial interface. A reading is an ASCII number (e.g.
+ *  "+1.2345E-03") framed by a start byte (0x0A) and a stop byte (0x0D).
+ *
+ *  Bytes are fed in as they arrive from the serial port, in chunks of
+ *  any size. A frame may start anywhere in a chunk and span any number of
+ *  chunks. Every complete frame is parsed to a float in place, so
+ *  decoding allocates nothing and never needs to throw bytes away.
+ *
+ *  decode() stops at the end of each reading, so a chunk holding
+ *  several readings delivers all of them:
+ *
+ *    int i = 0;
+ *    while (i < length) {
+ *      i += decoder.decode(data, i, length - i);
+ *      if (decoder.hasReading()) {
+ *        use(decoder.getReading(), receiveTime - (length - i) * AgilentFrameDecoder.BYTE_TIME_NS);
+ *      }
+ *    }
+ *
+ *  A reading completed before the end of a chunk arrived earlier than
+ *  the chunk was received, by the time the meter took to send the rest
+ *  of the chunk.
+ *
+ */
+public class AgilentFrameDecoder {
+
+  public static final byte START_BYTE = 0x0A;
+  public static final byte STOP_BYTE = 0x0D;
+
+  // longest reading we accept, longer frames are dropped
+  public static final int MAX_FRAME_LENGTH = 32; // in bytes
+
+  // time the meter takes to send a byte, at 19200 baud with 8 data bits,
+  // a start and a stop bit
+  public static final long BYTE_TIME_NS = 10 * 1000000000L / 19200;
+
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+    1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+  };
+
+  // bytes of the current frame, after its start byte
+  private final byte[] mFrame;
+  private int mFrameLength;
+  private boolean mInFrame;
+
+  private float mReading;
+  private boolean mHasReading;
+  private long mReadingCount;
+  private long mDroppedFrames;
+
+  public AgilentFrameDecoder() {
+    mFrame = new byte[MAX_FRAME_LENGTH];
+    this.reset();
+  }
+
+  /**
+   * Forget any partial frame and the decoded readings.
+   */
+  public void reset() {
+    mFrameLength = 0;
+    mInFrame = false;
+    mReading = 0.f;
+    mHasReading = false;
+    mReadingCount = 0;
+    mDroppedFrames = 0;
+  }
+
+  /**
+   * Feed bytes received from the meter, up to and including the stop
+   * byte of the first reading they complete. hasReading() then tells
+   * whether a reading was completed, and getReading() is its value.
+   *
+   * @return the number of bytes consumed, all of them unless a reading
+   *         was completed
+   */
+  public int decode(byte[] data, int offset, int length) {
+    mHasReading = false;
+
+    for (int i = offset; i < offset + length; i++) {
+      byte b = data[i];
+
+      if (b == START_BYTE) {
+        // a start byte in a frame means we lost its stop byte
+        if (mInFrame && mFrameLength > 0) {
+          mDroppedFrames++;
+        }
+        mInFrame = true;
+        mFrameLength = 0;
+      } else if (!mInFrame) {
+        // between frames, wait for the next start byte
+      } else if (b == STOP_BYTE) {
+        float reading = parseFloat(mFrame, 0, mFrameLength);
+        mInFrame = false;
+        if (!Float.isNaN(reading)) {
+          mReading = reading;
+          mHasReading = true;
+          mReadingCount++;
+          return i + 1 - offset;
+        }
+        mDroppedFrames++;
+      } else if (mFrameLength < MAX_FRAME_LENGTH) {
+        mFrame[mFrameLength++] = b;
+      } else {
+        // too long to be a reading
+        mDroppedFrames++;
+        mInFrame = false;
+      }
+    }
+
+    return length;
+  }
+
+  /**
+   * @return true if the latest decode() completed a reading
+   */
+  public boolean hasReading() {
+    return mHasReading;
+  }
+
+  /**
+   * @return the latest complete reading
+   */
+  public float getReading() {
+    return mReading;
+  }
+
+  public long getReadingCount() {
+    return mReadingCount;
+  }
+
+  public long getDroppedFrames() {
+    return mDroppedFrames;
+  }
+
+  /**
+   * Parse an ASCII decimal number, like "+1.2345E-03", "-0.0123" or "42",
+   * without creating a String. Surrounding spaces are ignored.
+   *
+   * @return the number, or NaN if the bytes are not a number
+   */
+  public static float parseFloat(byte[] buf, int offset, int length) {
+    int i = offset;
+    int end = offset + length;
+
+    while (i < end && buf[i] == ' ') {
+      i++;
+    }
+    while (end > i && buf[end - 1] == ' ') {
+      end--;
+    }
+
+    boolean negative = false;
+    if (i < end && (buf[i] == '+' || buf[i] == '-')) {
+      negative = (buf[i] == '-');
+      i++;
+    }
+
+    // mantissa digits, keeping the first 18 significant ones
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean point = false;
+    boolean anyDigits = false;
+
+    for (; i < end; i++) {
+      byte b = buf[i];
+      if (b >= '0' && b <= '9') {
+        anyDigits = true;
+        if (digits < 18) {
+          if (mantissa != 0 || b != '0') {
+            digits++;
+          }
+          mantissa = (mantissa * 10) + (b - '0');
+          exponent -= point ? 1 : 0;
+        } else {
+          exponent += point ? 0 : 1;
+        }
+      } else if (b == '.' && !point) {
+        point = true;
+      } else {
+        break;
+      }
+    }
+
+    if (!anyDigits) {
+      return Float.NaN;
+    }
+
+    // exponent
+    if (i < end && (buf[i] == 'E' || buf[i] == 'e')) {
+      i++;
+      boolean negativeExponent = false;
+      if (i < end && (buf[i] == '+' || buf[i] == '-')) {
+        negativeExponent = (buf[i] == '-');
+        i++;
+      }
+
+      int e = 0;
+      int start = i;
+      for (; i < end && buf[i] >= '0' && buf[i] <= '9'; i++) {
+        e = (e < 1000) ? (e * 10) + (buf[i] - '0') : e;
+      }
+      if (i == start) {
+        return Float.NaN;
+      }
+      exponent += negativeExponent ? -e : e;
+    }
+
+    if (i != end) {
+      return Float.NaN;
+    }
+
+    double value = mantissa;
+    if (exponent < 0) {
+      value = (exponent >= -18) ? value / POWERS_OF_TEN[-exponent] : value * Math.pow(10., exponent);
+    } else if (exponent > 0) {
+      value = (exponent <= 18) ? value * POWERS_OF_TEN[exponent] : value * Math.pow(10., exponent);
+    }
+
+    return (float) (negative ? -value : value);
+  }
+} // public class AgilentFrameDecoder
@@ -0,0 +1,250 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.IOException;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+/**
+ *
+ * TYPE: AgilentMultimeter
+ *
+ *  Command/response driver for the Agilent U1252A multimeter, over its
+ *  serial interface. Commands are SCPI strings terminated by LF, replies
+ *  are terminated by CR LF:
+ *
+ *    *IDN?         identification, e.g. "Agilent Technologies,U1252A,..."
+ *    CONF:VOLT:DC  switch to DC voltage (no reply)
+ *    FETC?         latest reading, e.g. "+1.2345E-03"
+ *
+ *  Readings are fetched with up to PIPELINE_DEPTH FETC? queries in flight,
+ *  so the meter has the next query queued when it sends a reply, instead
+ *  of idling for a serial round trip. Every reading is time-stamped with
+ *  System.nanoTime() when its reply is received.
+ *
+ *    AgilentMultimeter meter = new AgilentMultimeter(port);
+ *    meter.configureDcVoltage(timeout);
+ *    while (...) {
+ *      if (meter.fetch(timeout)) {
+ *        use(meter.getReading(), meter.getReadingTimeNanos());
+ *      }
+ *    }
+ *
+ *  Not thread safe, use from a single thread (see the AgilentSampler).
+ *
+ */
+public class AgilentMultimeter {
+
+  public static final String COMMAND_IDENTIFY = "*IDN?";
+  public static final String COMMAND_CONFIGURE_DC_VOLTAGE = "CONF:VOLT:DC";
+  public static final String COMMAND_FETCH = "FETC?";
+
+  // number of FETC? queries kept in flight
+  public static final int PIPELINE_DEPTH = 2;
+
+  // timeout for writing a command, in milliseconds
+  private static final int WRITE_TIMEOUT_MS = 100;
+
+  // longest reply we accept, longer replies are dropped
+  private static final int MAX_REPLY_LENGTH = 128; // in bytes
+
+  private static final byte LF = 0x0A;
+  private static final byte CR = 0x0D;
+
+  private static final byte[] FETCH_COMMAND = command(COMMAND_FETCH);
+
+  private final UsbSerialPort mPort;
+
+  // bytes read from the port, not yet split into replies
+  private final byte[] mReadBuffer;
+  private int mReadPosition;
+  private int mReadLength;
+
+  // the reply being assembled. a partial reply is kept when a read
+  // times out, so the rest of it is not taken for a whole reply.
+  private final byte[] mReply;
+  private int mReplyLength;
+  private boolean mReplyOverflow;
+  private boolean mReplyComplete;
+
+  // FETC? queries sent and not yet answered
+  private int mFetchesInFlight;
+
+  private float mReading;
+  private long mReadingTimeNanos;
+  private long mReadingCount;
+  private long mDroppedReplies;
+
+  public AgilentMultimeter(UsbSerialPort port) {
+    mPort = port;
+    mReadBuffer = new byte[64];
+    mReply = new byte[MAX_REPLY_LENGTH];
+    mReadPosition = 0;
+    mReadLength = 0;
+    mReplyLength = 0;
+    mReplyOverflow = false;
+    mReplyComplete = false;
+    mFetchesInFlight = 0;
+    mReading = 0.f;
+    mReadingTimeNanos = 0;
+    mReadingCount = 0;
+    mDroppedReplies = 0;
+  }
+
+  /**
+   * Query the identification of the meter.
+   *
+   * @return the reply, or null if there was none within timeoutMs
+   */
+  public String identify(int timeoutMs) throws IOException {
+    drainFetches(timeoutMs);
+    sendCommand(command(COMMAND_IDENTIFY));
+    if (!readReply(deadline(timeoutMs))) {
+      return null;
+    }
+    return new String(mReply, 0, mReplyLength, "US-ASCII");
+  }
+
+  /**
+   * Switch the meter to DC voltage measurements.
+   */
+  public void configureDcVoltage(int timeoutMs) throws IOException {
+    drainFetches(timeoutMs);
+    sendCommand(command(COMMAND_CONFIGURE_DC_VOLTAGE));
+  }
+
+  /**
+   * Wait for the next reading, keeping the FETC? pipeline full.
+   *
+   * @return true if a reading was received (see getReading() and
+   *         getReadingTimeNanos()), false if none arrived within timeoutMs
+   */
+  public boolean fetch(int timeoutMs) throws IOException {
+    long deadline = deadline(timeoutMs);
+
+    while (true) {
+      // top up the pipeline
+      while (mFetchesInFlight < PIPELINE_DEPTH) {
+        sendCommand(FETCH_COMMAND);
+        mFetchesInFlight++;
+      }
+
+      if (!readReply(deadline)) {
+        // the queries in flight are lost, or the meter is gone. send new
+        // ones next time, late replies to the old ones are still used.
+        mFetchesInFlight = 0;
+        return false;
+      }
+      long receiveTime = System.nanoTime();
+
+      if (mFetchesInFlight > 0) {
+        mFetchesInFlight--;
+      }
+
+      float reading = AgilentFrameDecoder.parseFloat(mReply, 0, mReplyLength);
+      if (!Float.isNaN(reading)) {
+        mReading = reading;
+        mReadingTimeNanos = receiveTime;
+        mReadingCount++;
+        return true;
+      }
+
+      // not a number, e.g. an overload reading or an error message
+      mDroppedReplies++;
+    }
+  }
+
+  /**
+   * @return the latest reading, in the unit the meter is configured for
+   */
+  public float getReading() {
+    return mReading;
+  }
+
+  /**
+   * @return the System.nanoTime() at which the latest reading was received
+   */
+  public long getReadingTimeNanos() {
+    return mReadingTimeNanos;
+  }
+
+  public long getReadingCount() {
+    return mReadingCount;
+  }
+
+  public long getDroppedReplies() {
+    return mDroppedReplies;
+  }
+
+  // wait for the replies to the FETC? queries in flight, so they are not
+  // taken for the reply to another command
+  private void drainFetches(int timeoutMs) throws IOException {
+    long deadline = deadline(timeoutMs);
+    while (mFetchesInFlight > 0 && readReply(deadline)) {
+      mFetchesInFlight--;
+    }
+    mFetchesInFlight = 0;
+  }
+
+  private void sendCommand(byte[] command) throws IOException {
+    int bytesWritten = mPort.write(command, WRITE_TIMEOUT_MS);
+    if (bytesWritten < command.length) {
+      throw new IOException("Wrote " + bytesWritten + " of " + command.length + " command bytes");
+    }
+  }
+
+  // read the next reply into mReply, without its terminator
+  private boolean readReply(long deadline) throws IOException {
+    if (mReplyComplete) {
+      mReplyLength = 0;
+      mReplyComplete = false;
+    }
+
+    while (true) {
+      while (mReadPosition < mReadLength) {
+        byte b = mReadBuffer[mReadPosition++];
+
+        if (b == LF) {
+          if (mReplyOverflow) {
+            mDroppedReplies++;
+          } else if (mReplyLength > 0) {
+            mReplyComplete = true;
+            return true;
+          }
+          // empty or dropped, wait for the next one
+          mReplyLength = 0;
+          mReplyOverflow = false;
+        } else if (b == CR) {
+          // part of the terminator
+        } else if (mReplyLength < MAX_REPLY_LENGTH) {
+          mReply[mReplyLength++] = b;
+        } else {
+          mReplyOverflow = true;
+        }
+      }
+
+      int timeoutMs = (int) ((deadline - System.nanoTime()) / 1000000L);
+      if (timeoutMs <= 0) {
+        return false;
+      }
+
+      mReadPosition = 0;
+      mReadLength = mPort.read(mReadBuffer, timeoutMs);
+      if (mReadLength < 0) {
+        mReadLength = 0;
+      }
+    }
+  }
+
+  private static long deadline(int timeoutMs) {
+    return System.nanoTime() + timeoutMs * 1000000L;
+  }
+
+  private static byte[] command(String command) {
+    byte[] bytes = new byte[command.length() + 1];
+    for (int i = 0; i < command.length(); i++) {
+      bytes[i] = (byte) command.charAt(i);
+    }
+    bytes[command.length()] = LF;
+    return bytes;
+  }
+} // public class AgilentMultimeter
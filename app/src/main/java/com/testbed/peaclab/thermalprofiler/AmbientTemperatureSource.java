@@ -0,0 +1,24 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.IOException;
+
+/**
+ *
+ * TYPE: AmbientTemperatureSource
+ *
+ *  Live ambient temperature sensor, e.g. a thermal zone near the
+ *  thermocouple's cold junction (see ThermalZoneAmbientSource). The
+ *  SensorRecorder reads it once per sample, and uses it for the cold
+ *  junction compensation of the thermocouple instead of the ambient
+ *  temperature set by hand.
+ *
+ */
+public interface AmbientTemperatureSource {
+
+  /**
+   * @return the ambient temperature, in Celsius
+   */
+  public float readAmbientTemperature() throws IOException;
+
+  public void close() throws IOException;
+}
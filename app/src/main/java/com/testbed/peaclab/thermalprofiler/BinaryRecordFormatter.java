@@ -0,0 +1,177 @@
+package com.testbed.peaclab.thermalprofiler;
+
+/**
+ *
+ * TYPE: BinaryRecordFormatter
+ *
+ *  Compact binary trace format for the sensor data log. All values are
+ *  little-endian. A trace is a 32-byte header followed by fixed-length
+ *  records of 44 bytes plus 8 per SensorBus channel, with the same fields
+ *  as the 'e' CSV record code plus the true time since the previous
+ *  sample and the staleness of the thermocouple readings (see
+ *  SensorStream).
+ *
+ *  Header:
+ *
+ *    offset  type    field
+ *     0      byte[4] magic "TPRF"
+ *     4      short   format version
+ *     6      byte    record code ('e')
+ *     7      byte    channel count
+ *     8      short   header length, in bytes
+ *    10      short   record length, in bytes
+ *    12      int     sampling interval, in microseconds
+ *    16      long    benchmark start time (Unix time, msec, 0 if none)
+ *    24      long    benchmark stop time (Unix time, msec, 0 if none)
+ *
+ *  Record:
+ *
+ *    offset  type    field
+ *     0      long    timestamp (Unix time, msec)
+ *     8      short   core 0 temperature
+ *    10      short   core 1 temperature
+ *    12      short   core 2 temperature
+ *    14      short   core 3 temperature
+ *    16      float   thermocouple temperature
+ *    20      float   ambient temperature
+ *    24      float   E_pcm
+ *    28      float   R_si
+ *    32      float   R_pcm
+ *    36      float   time since previous sample, in seconds
+ *    40      float   thermocouple staleness, in seconds
+ *    44      channel[] SensorBus channels
+ *
+ *  Channel:
+ *
+ *    offset  type    field
+ *     0      float   temperature (NaN if the sample lacks the channel)
+ *     4      float   staleness, in seconds
+ *
+ *  Readers should use the header and record lengths from the header,
+ *  so later versions can append fields.
+ *
+ */
+public class BinaryRecordFormatter implements SensorRecordFormat {
+
+  public static final byte[] MAGIC = { 'T', 'P', 'R', 'F' };
+  public static final short VERSION = 1;
+
+  public static final int HEADER_LENGTH = 32;
+  public static final int RECORD_LENGTH = 44; // without channels
+  public static final int CHANNEL_LENGTH = 8;
+
+  // header field offsets
+  public static final int HEADER_MAGIC = 0;
+  public static final int HEADER_VERSION = 4;
+  public static final int HEADER_RECORD_CODE = 6;
+  public static final int HEADER_CHANNEL_COUNT = 7;
+  public static final int HEADER_HEADER_LENGTH = 8;
+  public static final int HEADER_RECORD_LENGTH = 10;
+  public static final int HEADER_SAMPLING_INTERVAL_US = 12;
+  public static final int HEADER_BENCHMARK_START = 16;
+  public static final int HEADER_BENCHMARK_STOP = 24;
+
+  // record field offsets
+  public static final int RECORD_TIMESTAMP = 0;
+  public static final int RECORD_TEMPERATURE_CORE0 = 8;
+  public static final int RECORD_TEMPERATURE_CORE1 = 10;
+  public static final int RECORD_TEMPERATURE_CORE2 = 12;
+  public static final int RECORD_TEMPERATURE_CORE3 = 14;
+  public static final int RECORD_TEMPERATURE_THERMOCOUPLE = 16;
+  public static final int RECORD_TEMPERATURE_AMBIENT = 20;
+  public static final int RECORD_ENERGY_PCM = 24;
+  public static final int RECORD_R_SI = 28;
+  public static final int RECORD_R_PCM = 32;
+  public static final int RECORD_SAMPLE_TIME = 36;
+  public static final int RECORD_THERMOCOUPLE_STALENESS = 40;
+  public static final int RECORD_CHANNELS = 44;
+
+  // channel field offsets, within a channel
+  public static final int CHANNEL_TEMPERATURE = 0;
+  public static final int CHANNEL_STALENESS = 4;
+
+  private final char mRecordCode;
+  private final int mSamplingIntervalUs;
+  private final int mChannelCount;
+  private final int mRecordLength;
+
+  public BinaryRecordFormatter(char recordCode, int samplingIntervalUs) {
+    this(recordCode, samplingIntervalUs, 0);
+  }
+
+  /**
+   * Format records with channelCount SensorBus channels.
+   */
+  public BinaryRecordFormatter(char recordCode, int samplingIntervalUs, int channelCount) {
+    if (channelCount < 0 || channelCount > TestbedTemperatures.MAX_CHANNELS) {
+      throw new IllegalArgumentException("Invalid channel count " + channelCount);
+    }
+    mRecordCode = recordCode;
+    mSamplingIntervalUs = samplingIntervalUs;
+    mChannelCount = channelCount;
+    mRecordLength = RECORD_LENGTH + (channelCount * CHANNEL_LENGTH);
+  }
+
+  @Override
+  public int getHeaderLength() {
+    return HEADER_LENGTH;
+  }
+
+  @Override
+  public int getMaxRecordLength() {
+    return mRecordLength;
+  }
+
+  @Override
+  public int formatHeader(byte[] buf, int pos, TimeInterval benchmarkTime) {
+    System.arraycopy(MAGIC, 0, buf, pos + HEADER_MAGIC, MAGIC.length);
+    putShort(buf, pos + HEADER_VERSION, VERSION);
+    buf[pos + HEADER_RECORD_CODE] = (byte) mRecordCode;
+    buf[pos + HEADER_CHANNEL_COUNT] = (byte) mChannelCount;
+    putShort(buf, pos + HEADER_HEADER_LENGTH, (short) HEADER_LENGTH);
+    putShort(buf, pos + HEADER_RECORD_LENGTH, (short) mRecordLength);
+    putInt(buf, pos + HEADER_SAMPLING_INTERVAL_US, mSamplingIntervalUs);
+    putLong(buf, pos + HEADER_BENCHMARK_START, benchmarkTime.startTime);
+    putLong(buf, pos + HEADER_BENCHMARK_STOP, benchmarkTime.stopTime);
+    return pos + HEADER_LENGTH;
+  }
+
+  @Override
+  public int formatRecord(byte[] buf, int pos, TestbedTemperatures data) {
+    putLong(buf, pos + RECORD_TIMESTAMP, data.timestamp);
+    putShort(buf, pos + RECORD_TEMPERATURE_CORE0, data.temperatureCore0);
+    putShort(buf, pos + RECORD_TEMPERATURE_CORE1, data.temperatureCore1);
+    putShort(buf, pos + RECORD_TEMPERATURE_CORE2, data.temperatureCore2);
+    putShort(buf, pos + RECORD_TEMPERATURE_CORE3, data.temperatureCore3);
+    putInt(buf, pos + RECORD_TEMPERATURE_THERMOCOUPLE, Float.floatToRawIntBits(data.temperatureThermocouple));
+    putInt(buf, pos + RECORD_TEMPERATURE_AMBIENT, Float.floatToRawIntBits(data.temperatureAmbient));
+    putInt(buf, pos + RECORD_ENERGY_PCM, Float.floatToRawIntBits(data.energyPCM));
+    putInt(buf, pos + RECORD_R_SI, Float.floatToRawIntBits(data.R_si));
+    putInt(buf, pos + RECORD_R_PCM, Float.floatToRawIntBits(data.R_pcm));
+    putInt(buf, pos + RECORD_SAMPLE_TIME, Float.floatToRawIntBits(data.sampleTime));
+    putInt(buf, pos + RECORD_THERMOCOUPLE_STALENESS, Float.floatToRawIntBits(data.thermocoupleStaleness));
+    for (int i = 0; i < mChannelCount; i++) {
+      int channel = pos + RECORD_CHANNELS + (i * CHANNEL_LENGTH);
+      putInt(buf, channel + CHANNEL_TEMPERATURE, Float.floatToRawIntBits(data.getChannelTemperature(i)));
+      putInt(buf, channel + CHANNEL_STALENESS, Float.floatToRawIntBits(data.getChannelStaleness(i)));
+    }
+    return pos + mRecordLength;
+  }
+
+  private static void putShort(byte[] buf, int pos, short value) {
+    buf[pos] = (byte) value;
+    buf[pos + 1] = (byte) (value >> 8);
+  }
+
+  private static void putInt(byte[] buf, int pos, int value) {
+    buf[pos] = (byte) value;
+    buf[pos + 1] = (byte) (value >> 8);
+    buf[pos + 2] = (byte) (value >> 16);
+    buf[pos + 3] = (byte) (value >> 24);
+  }
+
+  private static void putLong(byte[] buf, int pos, long value) {
+    putInt(buf, pos, (int) value);
+    putInt(buf, pos + 4, (int) (value >> 32));
+  }
+} // public class BinaryRecordFormatter
@@ -0,0 +1,89 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.util.Locale;
+
+/**
+ *
+ * TYPE: ControlLatency
+ *
+ *  Sensing-to-actuation latency of the ThermalManagement control loop,
+ *  measured from the moment a sample was taken (System.nanoTime()) to
+ *  the moment the policy finished with it. Latencies are in nanoseconds.
+ *
+ *  Every sample the policy sees is counted as an evaluation. Samples that
+ *  made the policy change core or frequency settings are also counted as
+ *  actuations. Samples the recorder took while the policy was still busy
+ *  with an earlier one are counted as skipped.
+ *
+ */
+public class ControlLatency {
+  public long evaluations = 0;
+  public long skippedSamples = 0;
+  public long lastNs = 0;
+  public long maxNs = 0;
+  public long totalNs = 0;
+
+  public long actuations = 0;
+  public long lastActuationNs = 0;
+  public long maxActuationNs = 0;
+  public long totalActuationNs = 0;
+
+  public ControlLatency() {
+    this.clear();
+  }
+
+  public void clear() {
+    evaluations = 0;
+    skippedSamples = 0;
+    lastNs = 0;
+    maxNs = 0;
+    totalNs = 0;
+    actuations = 0;
+    lastActuationNs = 0;
+    maxActuationNs = 0;
+    totalActuationNs = 0;
+  }
+
+  public void copy(ControlLatency copy) {
+    this.evaluations = copy.evaluations;
+    this.skippedSamples = copy.skippedSamples;
+    this.lastNs = copy.lastNs;
+    this.maxNs = copy.maxNs;
+    this.totalNs = copy.totalNs;
+    this.actuations = copy.actuations;
+    this.lastActuationNs = copy.lastActuationNs;
+    this.maxActuationNs = copy.maxActuationNs;
+    this.totalActuationNs = copy.totalActuationNs;
+  }
+
+  public void addEvaluation(long latencyNs, boolean actuated) {
+    evaluations++;
+    lastNs = latencyNs;
+    maxNs = (latencyNs > maxNs) ? latencyNs : maxNs;
+    totalNs += latencyNs;
+
+    if (actuated) {
+      actuations++;
+      lastActuationNs = latencyNs;
+      maxActuationNs = (latencyNs > maxActuationNs) ? latencyNs : maxActuationNs;
+      totalActuationNs += latencyNs;
+    }
+  }
+
+  public long getMeanNs() {
+    return (evaluations > 0) ? totalNs / evaluations : 0;
+  }
+
+  public long getMeanActuationNs() {
+    return (actuations > 0) ? totalActuationNs / actuations : 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US,
+        "%d samples (%d skipped), latency mean %.3f ms, max %.3f ms; " +
+        "%d actuations, latency mean %.3f ms, max %.3f ms",
+        evaluations, skippedSamples, getMeanNs() / 1.e6, maxNs / 1.e6,
+        actuations, getMeanActuationNs() / 1.e6, maxActuationNs / 1.e6);
+  }
+} // public class ControlLatency
@@ -0,0 +1,47 @@
+package com.testbed.peaclab.thermalprofiler;
+
+/**
+ *
+ * TYPE: CorePowerModel
+ *
+ *  Power of an online core of the testbed's CPU, at a frequency f (in
+ *  kHz, as in Testbed.TESTBED_CPU_FREQUENCY) and a load from 0 (idle) to
+ *  1 (fully loaded):
+ *
+ *    P = P_IDLE + P_DYNAMIC_MAX * load * (f / f_max)^3
+ *
+ *  Dynamic power goes with C V^2 f, and the cpufreq table scales the
+ *  voltage about linearly with the frequency, hence the cube.
+ *
+ *  The values are NOT calibrated: P_IDLE and P_DYNAMIC_MAX are guesses
+ *  for a Krait core, not measurements of the board. The SimulatedTestbed
+ *  heats its cores with the absolute power. The ThermalPredictor and the
+ *  ParameterSweep only scale a power between frequencies, with
+ *  relativePower(), which still depends on the cubic shape and on the
+ *  ratio of P_IDLE to P_DYNAMIC_MAX. Measure the board before trusting
+ *  either.
+ *
+ */
+public abstract class CorePowerModel {
+
+  // in W, uncalibrated
+  public static final float P_IDLE = 0.1f;
+  public static final float P_DYNAMIC_MAX = 1.5f;
+
+  /**
+   * @return the power of an online core at a frequency (in kHz) and
+   *         load, in W
+   */
+  public static float corePower(int frequency, float load) {
+    float f = frequency / (float) Testbed.TESTBED_CPU_FREQUENCY[Testbed.TESTBED_CPU_FREQ_INDEX_MAX];
+    return P_IDLE + P_DYNAMIC_MAX * load * f * f * f;
+  }
+
+  /**
+   * @return the power of a fully loaded core at a frequency (in kHz),
+   *         relative to its power at the highest frequency
+   */
+  public static float relativePower(int frequency) {
+    return corePower(frequency, 1.f) / corePower(Testbed.TESTBED_CPU_FREQUENCY[Testbed.TESTBED_CPU_FREQ_INDEX_MAX], 1.f);
+  }
+} // public abstract class CorePowerModel
@@ -0,0 +1,167 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ *
+ * TYPE: CpuCoreActuator
+ *
+ *  Sets and reads back the online state and the frequency of one CPU
+ *  core through its sysfs attributes. The attributes are kept open
+ *  (see SysfsFile), and every frequency of Testbed.TESTBED_CPU_FREQUENCY
+ *  is formatted once up front, so an actuation is one positioned write
+ *  and its verification one positioned read, without allocating.
+ *
+ *  The kernel removes the cpufreq directory of a core when it goes
+ *  offline, and creates a new one when it comes back online, so handles
+ *  opened before are dead. setActive() therefore closes the cpufreq
+ *  handles, and a cpufreq handle that fails (e.g. after a hotplug by the
+ *  kernel itself) is re-opened and the call retried once.
+ *
+ *  NOTE: the attributes need read/write permissions for the app user,
+ *  which only root can grant (do this outside of this app).
+ *
+ */
+public class CpuCoreActuator {
+
+  // values written to the online and scaling_setspeed attributes. the
+  // trailing newline (as from echo) also terminates the value for
+  // readers when the attribute is a regular file with older contents.
+  private static final byte[] CORE_ENABLE = { '1', '\n' };
+  private static final byte[] CORE_DISABLE = { '0', '\n' };
+  private static final byte[][] FREQUENCY_SETTINGS = new byte[Testbed.TESTBED_CPU_FREQUENCY.length][];
+
+  static {
+    for (int i = 0; i < Testbed.TESTBED_CPU_FREQUENCY.length; i++) {
+      String freqSetting = Testbed.TESTBED_CPU_FREQUENCY[i] + "\n";
+      FREQUENCY_SETTINGS[i] = new byte[freqSetting.length()];
+      for (int j = 0; j < freqSetting.length(); j++) {
+        FREQUENCY_SETTINGS[i][j] = (byte) freqSetting.charAt(j);
+      }
+    }
+  }
+
+  private final String mEnableFilename;
+  private final String mSetFrequencyFilename;
+  private final String mGetFrequencyFilename;
+
+  // opened on first use, null after an error
+  private SysfsFile mEnableFile;
+  private SysfsFile mSetFrequencyFile;
+  private SysfsFile mGetFrequencyFile;
+
+  public CpuCoreActuator(String enableFilename, String setFrequencyFilename, String getFrequencyFilename) {
+    mEnableFilename = enableFilename;
+    mSetFrequencyFilename = setFrequencyFilename;
+    mGetFrequencyFilename = getFrequencyFilename;
+
+    mEnableFile = null;
+    mSetFrequencyFile = null;
+    mGetFrequencyFile = null;
+  }
+
+  public synchronized void setActive(boolean enabled) throws IOException {
+    if (mEnableFile != null && !mEnableFile.isWritable()) {
+      mEnableFile = close(mEnableFile);
+    }
+    if (mEnableFile == null) {
+      mEnableFile = new SysfsFile(mEnableFilename, true);
+    }
+
+    try {
+      mEnableFile.write(enabled ? CORE_ENABLE : CORE_DISABLE);
+    } catch (IOException e) {
+      mEnableFile = close(mEnableFile);
+      throw e;
+    }
+
+    // the cpufreq directory is removed or re-created by a hotplug
+    mSetFrequencyFile = close(mSetFrequencyFile);
+    mGetFrequencyFile = close(mGetFrequencyFile);
+  }
+
+  public synchronized boolean readActive() throws IOException {
+    if (mEnableFile == null) {
+      // reading the state does not need write permission
+      try {
+        mEnableFile = new SysfsFile(mEnableFilename, true);
+      } catch (FileNotFoundException e) {
+        mEnableFile = new SysfsFile(mEnableFilename, false);
+      }
+    }
+
+    try {
+      return (mEnableFile.readInt() > 0);
+    } catch (IOException e) {
+      mEnableFile = close(mEnableFile);
+      throw e;
+    }
+  }
+
+  /**
+   * Request the frequency Testbed.TESTBED_CPU_FREQUENCY[freqIndex].
+   */
+  public synchronized void setFrequency(int freqIndex) throws IOException {
+    if (freqIndex < Testbed.TESTBED_CPU_FREQ_INDEX_MIN || freqIndex > Testbed.TESTBED_CPU_FREQ_INDEX_MAX) {
+      throw new IllegalArgumentException("freqIndex argument (" + freqIndex + ") outside of allowed range [" +
+          Testbed.TESTBED_CPU_FREQ_INDEX_MIN + "," + Testbed.TESTBED_CPU_FREQ_INDEX_MAX + "]");
+    }
+
+    for (int attempt = 0; ; attempt++) {
+      boolean opened = (mSetFrequencyFile != null);
+      try {
+        if (mSetFrequencyFile == null) {
+          mSetFrequencyFile = new SysfsFile(mSetFrequencyFilename, true);
+        }
+        mSetFrequencyFile.write(FREQUENCY_SETTINGS[freqIndex]);
+        return;
+      } catch (IOException e) {
+        mSetFrequencyFile = close(mSetFrequencyFile);
+        // retry once with a fresh handle, if the failed one was old
+        if (!opened || attempt > 0) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Read the current frequency of the core, in kHz.
+   */
+  public synchronized int readFrequency() throws IOException {
+    for (int attempt = 0; ; attempt++) {
+      boolean opened = (mGetFrequencyFile != null);
+      try {
+        if (mGetFrequencyFile == null) {
+          mGetFrequencyFile = new SysfsFile(mGetFrequencyFilename);
+        }
+        return mGetFrequencyFile.readInt();
+      } catch (IOException e) {
+        mGetFrequencyFile = close(mGetFrequencyFile);
+        // retry once with a fresh handle, if the failed one was old
+        if (!opened || attempt > 0) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  public synchronized void close() {
+    mEnableFile = close(mEnableFile);
+    mSetFrequencyFile = close(mSetFrequencyFile);
+    mGetFrequencyFile = close(mGetFrequencyFile);
+  }
+
+  // close a handle, ignoring errors. always returns null.
+  private static SysfsFile close(SysfsFile file) {
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        // nothing left to do with a broken handle
+      }
+    }
+    return null;
+  }
+} // public class CpuCoreActuator
@@ -0,0 +1,233 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ *
+ * TYPE: CsvRecordFormatter
+ *
+ *  Formats sensor records as lines of the stat.csv data log directly
+ *  into a caller-supplied byte buffer. Numbers are formatted with
+ *  fixed-point arithmetic and timestamps from a cached date, so
+ *  formatting a record does not allocate (String.format and
+ *  SimpleDateFormat are only used for out-of-range values or values
+ *  too close to a rounding tie, and once per day, respectively).
+ *
+ *  Header and record layout ('e' record code):
+ *
+ *    e,benchmark start date,benchmark stop date
+ *    date,core0,core1,core2,core3,T_tcpl,T_ambient,E_pcm,R_si,R_pcm[,T_ch0,...]
+ *
+ *  A formatter for a SensorBus with channels appends one temperature
+ *  column per channel (NaN when a sample lacks that channel).
+ *
+ */
+public class CsvRecordFormatter implements SensorRecordFormat {
+
+  // longest line formatRecord() can produce without channels, in bytes
+  public static final int MAX_RECORD_LENGTH = 256;
+
+  // longest channel column, including its comma, in bytes
+  public static final int MAX_CHANNEL_LENGTH = 48;
+
+  // room for "e,<date>,<date>" and the newline. a shorter header
+  // (no benchmark times) is padded with spaces before the newline.
+  public static final int HEADER_LENGTH = 1 + 1 + 23 + 1 + 23 + 1;
+
+  private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+  // beyond this, fixed-point values no longer fit in a long
+  private static final double FIXED_POINT_MAX = 1.e17;
+
+  private static final long[] POWERS_OF_TEN = {
+    1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L
+  };
+
+  private final char mRecordCode;
+  private final int mChannelCount;
+
+  private final TimeZone mTimeZone;
+  private final SimpleDateFormat mDayFormat;
+  private final SimpleDateFormat mDateFormat;
+
+  // local time (in milliseconds) at the start of the cached day,
+  // and the formatted "yyyy-MM-dd " of that day
+  private long mDayStart;
+  private final byte[] mDayBytes;
+
+  public CsvRecordFormatter(char recordCode) {
+    this(recordCode, 0);
+  }
+
+  /**
+   * Format records with channelCount SensorBus channel columns.
+   */
+  public CsvRecordFormatter(char recordCode, int channelCount) {
+    mRecordCode = recordCode;
+    mChannelCount = channelCount;
+
+    mTimeZone = TimeZone.getDefault();
+    mDayFormat = new SimpleDateFormat("yyyy-MM-dd ", Locale.US);
+    mDayFormat.setTimeZone(mTimeZone);
+    mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+    mDateFormat.setTimeZone(mTimeZone);
+
+    mDayStart = Long.MIN_VALUE;
+    mDayBytes = new byte[11];
+  }
+
+  @Override
+  public int getHeaderLength() {
+    return HEADER_LENGTH;
+  }
+
+  @Override
+  public int getMaxRecordLength() {
+    return MAX_RECORD_LENGTH + (mChannelCount * MAX_CHANNEL_LENGTH);
+  }
+
+  @Override
+  public int formatHeader(byte[] buf, int pos, TimeInterval benchmarkTime) {
+    // format the benchmark start/stop time
+    long startTime = benchmarkTime.startTime;
+    String startTimeStr = (startTime != 0) ? mDateFormat.format(new Date(startTime)) : "0";
+    long stopTime = benchmarkTime.stopTime;
+    String stopTimeStr = (stopTime != 0) ? mDateFormat.format(new Date(stopTime)) : "0";
+
+    String line = mRecordCode + "," + startTimeStr + "," + stopTimeStr;
+    for (int i = 0; i < HEADER_LENGTH - 1; i++) {
+      buf[pos + i] = (i < line.length()) ? (byte) line.charAt(i) : (byte) ' ';
+    }
+    buf[pos + HEADER_LENGTH - 1] = '\n';
+    return pos + HEADER_LENGTH;
+  }
+
+  @Override
+  public int formatRecord(byte[] buf, int pos, TestbedTemperatures data) {
+    pos = appendDate(buf, pos, data.timestamp);
+    buf[pos++] = ',';
+    pos = appendLong(buf, pos, data.temperatureCore0);
+    buf[pos++] = ',';
+    pos = appendLong(buf, pos, data.temperatureCore1);
+    buf[pos++] = ',';
+    pos = appendLong(buf, pos, data.temperatureCore2);
+    buf[pos++] = ',';
+    pos = appendLong(buf, pos, data.temperatureCore3);
+    buf[pos++] = ',';
+    pos = appendFixed(buf, pos, data.temperatureThermocouple, 3);
+    buf[pos++] = ',';
+    pos = appendFixed(buf, pos, data.temperatureAmbient, 1);
+    buf[pos++] = ',';
+    pos = appendFixed(buf, pos, data.energyPCM, 4);
+    buf[pos++] = ',';
+    pos = appendFixed(buf, pos, data.R_si, 4);
+    buf[pos++] = ',';
+    pos = appendFixed(buf, pos, data.R_pcm, 4);
+    for (int i = 0; i < mChannelCount; i++) {
+      buf[pos++] = ',';
+      pos = appendFixed(buf, pos, data.getChannelTemperature(i), 3);
+    }
+    buf[pos++] = '\n';
+    return pos;
+  }
+
+  /**
+   * Format a timestamp as "yyyy-MM-dd HH:mm:ss.SSS" in the default time zone.
+   */
+  public int appendDate(byte[] buf, int pos, long millis) {
+    long local = millis + mTimeZone.getOffset(millis);
+
+    // re-format the date only when we cross into another day
+    if (local < mDayStart || local >= mDayStart + MILLIS_PER_DAY) {
+      long msOfDay = local % MILLIS_PER_DAY;
+      msOfDay = (msOfDay < 0) ? msOfDay + MILLIS_PER_DAY : msOfDay;
+      mDayStart = local - msOfDay;
+
+      String day = mDayFormat.format(new Date(millis));
+      for (int i = 0; i < mDayBytes.length; i++) {
+        mDayBytes[i] = (byte) day.charAt(i);
+      }
+    }
+
+    System.arraycopy(mDayBytes, 0, buf, pos, mDayBytes.length);
+    pos += mDayBytes.length;
+
+    int msOfDay = (int) (local - mDayStart);
+    pos = appendPadded(buf, pos, msOfDay / 3600000, 2);
+    buf[pos++] = ':';
+    pos = appendPadded(buf, pos, (msOfDay / 60000) % 60, 2);
+    buf[pos++] = ':';
+    pos = appendPadded(buf, pos, (msOfDay / 1000) % 60, 2);
+    buf[pos++] = '.';
+    pos = appendPadded(buf, pos, msOfDay % 1000, 3);
+    return pos;
+  }
+
+  /**
+   * Format a value with a fixed number of decimals (at most 6), giving
+   * the same text as String.format(Locale.US, "%.Nf", value).
+   */
+  public static int appendFixed(byte[] buf, int pos, float value, int decimals) {
+    double scaled = Math.abs((double) value) * POWERS_OF_TEN[decimals];
+
+    // NaN, infinite or huge values are rare, let the library handle them
+    if (!(scaled < FIXED_POINT_MAX)) {
+      return appendFormatted(buf, pos, value, decimals);
+    }
+
+    // String.format rounds the shortest decimal form of the value, not
+    // its binary value. the two only round differently when the value
+    // is within an ulp of a tie, so leave those to the library as well.
+    long fixed = (long) (scaled + 0.5);
+    double tieDistance = Math.abs(scaled - (fixed - 0.5));
+    if (tieDistance <= (double) Math.ulp(value) * POWERS_OF_TEN[decimals]) {
+      return appendFormatted(buf, pos, value, decimals);
+    }
+
+    // the sign bit, so -0 (and what rounds to it) keeps its '-'
+    if (Float.floatToRawIntBits(value) < 0) {
+      buf[pos++] = '-';
+    }
+
+    pos = appendLong(buf, pos, fixed / POWERS_OF_TEN[decimals]);
+    if (decimals > 0) {
+      buf[pos++] = '.';
+      pos = appendPadded(buf, pos, fixed % POWERS_OF_TEN[decimals], decimals);
+    }
+    return pos;
+  }
+
+  private static int appendFormatted(byte[] buf, int pos, float value, int decimals) {
+    String s = String.format(Locale.US, "%." + decimals + "f", value);
+    for (int i = 0; i < s.length(); i++) {
+      buf[pos++] = (byte) s.charAt(i);
+    }
+    return pos;
+  }
+
+  public static int appendLong(byte[] buf, int pos, long value) {
+    if (value < 0) {
+      buf[pos++] = '-';
+      value = -value;
+    }
+
+    // count digits, then fill in from the right
+    int digits = 1;
+    for (long v = value / 10; v != 0; v /= 10) {
+      digits++;
+    }
+    return appendPadded(buf, pos, value, digits);
+  }
+
+  // non-negative value, zero-padded to exactly the given number of digits
+  private static int appendPadded(byte[] buf, int pos, long value, int digits) {
+    for (int i = digits - 1; i >= 0; i--) {
+      buf[pos + i] = (byte) ('0' + (value % 10));
+      value /= 10;
+    }
+    return pos + digits;
+  }
+} // public class CsvRecordFormatter
@@ -79,6 +79,70 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
   public static final boolean THERMAL_MANAGEMENT_ENABLED = false;
 
 
+  // Set to true for the ThermalManagement thread to start with the predictive
+  // policy: twice a second, set the highest frequency that a model of
+  // the CPU, PCM and air predicts stays within the temperature and PCM energy
+  // limits for a few seconds (see ThermalPredictor). Otherwise it steps the
+  // frequency down and up on the PCM energy thresholds. A compile-time
+  // constant like the options above; ThermalManagement.setPredictivePolicy()
+  // switches policies while the app runs.
+  public static final boolean PREDICTIVE_THERMAL_MANAGEMENT = false;
+
+
+  // Set true to sample the testbed sensors in high-rate mode, once every
+  // HIGH_RATE_SAMPLING_INTERVAL_MS milliseconds (down to 1 ms). Otherwise the
+  // sensors are sampled every SensorRecorder.SAMPLING_INTERVAL_MS milliseconds.
+  private static final boolean HIGH_RATE_SAMPLING = false;
+  private static final int HIGH_RATE_SAMPLING_INTERVAL_MS = 10;
+
+
+  // Select the file format of the sensor data log:
+  //
+  //  CSV     Text, stat.csv
+  //  BINARY  Compact binary trace, stat.bin (about half the size, and no
+  //          formatting on the device). Convert it to the CSV layout with
+  //          BinaryTraceConverter, on a workstation (see tools/).
+  //
+  private static final SensorRecorder.LogFormat SENSOR_LOG_FORMAT = SensorRecorder.LogFormat.CSV;
+
+
+  // Set to a thermal zone (or other sysfs temperature attribute) near the
+  // thermocouple's cold junction to read the ambient temperature live, every
+  // sample, instead of using the ambient temperature set with the +/- buttons.
+  // The value read is multiplied by AMBIENT_SENSOR_SCALE (e.g. 0.001f for
+  // zones that report millidegrees). Set to null to set the ambient by hand.
+  private static final String AMBIENT_SENSOR_FILENAME = null;
+  private static final float AMBIENT_SENSOR_SCALE = 1.f;
+
+
+  // Set true to query the multimeter for readings (SCPI "FETC?", with the
+  // next query always queued), instead of listening to what it streams.
+  // Readings arrive as fast as the meter answers, and are time-stamped
+  // when they are received.
+  private static final boolean AGILENT_QUERY_READINGS = false;
+
+
+  // Set true to sample every attached serial instrument (up to
+  // SensorBus.MAX_CHANNELS, e.g. one multimeter per PCM location) on a
+  // SensorBus, instead of the one Agilent multimeter. Channel 0 is taken
+  // as the PCM thermocouple, and every channel is logged in its own column.
+  private static final boolean SENSOR_BUS_ENABLED = false;
+
+
+  // Set true to run the HotPathBenchmark microbenchmarks (cost of each
+  // sensor sampling and logging stage, in ns/op and bytes allocated/op)
+  // when you press the Debug button. Results go to the Debug Log.
+  private static final boolean RUN_HOT_PATH_BENCHMARK = false;
+
+
+  // Set true to run the sampling and control loops on a SimulatedTestbed
+  // instead of the board's sysfs, e.g. on another device or the emulator.
+  // The Benchmark button then fully loads the simulated cores it runs on,
+  // and when the benchmark finishes the Debug Log shows the missed
+  // sampling deadlines (and the control latency, if THERMAL_MANAGEMENT_ENABLED).
+  private static final boolean SIMULATED_TESTBED = false;
+
+
   /*
    * TO SET THE THERMAL MANAGEMENT POLICY TO USE:
    * see the updateThermalManagement() function in the ThermalManagement class.
@@ -160,6 +224,13 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
   private UsbDevice mAgilentDevice = null;
   private boolean mAgilentDevicePermission = false;
 
+  // all serial instruments, if SENSOR_BUS_ENABLED
+  private SensorBus mSensorBus = null;
+
+  // the sysfs the loops run on: the board's, or a SimulatedTestbed's
+  private SimulatedTestbed mSimulatedTestbed = null;
+  private SysfsRoot mSysfsRoot = SysfsRoot.DEVICE;
+
   /* ***********************************************************************/
   // BROADCAST INTENT RECEIVERS
   /* ***********************************************************************/
@@ -182,6 +253,11 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
             mUsbDevices.add(usbDevice);
             //debugLogMessage("USB Device \"" + deviceName + "\" attached.");
 
+            // the bus picks up the instrument once we have permission
+            if (mSensorBus != null && mSensorBus.isInstrument(usbDevice)) {
+              mUsbManager.requestPermission(usbDevice, mUsbPermissionIntent);
+            }
+
             if (usbDevice.getVendorId() == AGILENT_U1252A_VENDOR_ID &&
                     usbDevice.getProductId() == AGILENT_U1252A_PRODUCT_ID) {
               mAgilentDevice = usbDevice;
@@ -197,6 +273,11 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
             mUsbDevices.remove(usbDevice);
             debugLogMessage("USB Device \"" + deviceName + "\" detached.");
 
+            if (mSensorBus != null && mSensorBus.isInstrument(usbDevice)) {
+              debugLogMessage("Sensor Bus: rescanning");
+              mSensorBus.requestScan();
+            }
+
             if (usbDevice.getVendorId() == AGILENT_U1252A_VENDOR_ID &&
                     usbDevice.getProductId() == AGILENT_U1252A_PRODUCT_ID) {
               mAgilentDevice = null;
@@ -215,6 +296,11 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
                   usbDevice.getProductId() == AGILENT_U1252A_PRODUCT_ID) {
             mAgilentDevicePermission = permission;
           }
+
+          if (permission && mSensorBus != null && mSensorBus.isInstrument(usbDevice)) {
+            debugLogMessage("Sensor Bus: rescanning");
+            mSensorBus.requestScan();
+          }
         }
       }
     }
@@ -330,6 +416,10 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
     cmdFilter.addAction(ACTION_TPROF_COMMAND);
     registerReceiver(mCommandReceiver, cmdFilter);
 
+    if (SENSOR_BUS_ENABLED) {
+      mSensorBus = new SensorBus(mUsbManager);
+    }
+
     // initialize USB device list
     mUsbDevices.clear();
     for (UsbDevice device : mUsbManager.getDeviceList().values()) {
@@ -344,6 +434,8 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
 
         // request permission to communicate with the USB device.
         mUsbManager.requestPermission(mAgilentDevice, mUsbPermissionIntent);
+      } else if (mSensorBus != null && mSensorBus.isInstrument(device) && !mUsbManager.hasPermission(device)) {
+        mUsbManager.requestPermission(device, mUsbPermissionIntent);
       }
     }
 
@@ -390,11 +482,37 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
     editText_ambient.setText(String.format("%.1f", ambientTemp));
 
 
-    mSensorRecorderThread = new SensorRecorder(mUsbManager, ambientTemp);
+    if (SIMULATED_TESTBED) {
+      try {
+        mSimulatedTestbed = new SimulatedTestbed(ambientTemp);
+        mSimulatedTestbed.start();
+        mSysfsRoot = mSimulatedTestbed.getSysfsRoot();
+      } catch (IOException e) {
+        Log.e(e.getClass().toString(), e.getMessage(), e);
+      }
+    }
+
+    mSensorRecorderThread = new SensorRecorder(mUsbManager, ambientTemp, mSysfsRoot);
     mSensorRecorderThread.setAgilentDevice(mAgilentDevice);
+    if (HIGH_RATE_SAMPLING) {
+      mSensorRecorderThread.setSamplingInterval(HIGH_RATE_SAMPLING_INTERVAL_MS);
+    }
+    mSensorRecorderThread.setLogFormat(SENSOR_LOG_FORMAT);
+    mSensorRecorderThread.setAgilentQueryEnabled(AGILENT_QUERY_READINGS);
+    if (mSensorBus != null) {
+      mSensorBus.requestScan();
+      mSensorRecorderThread.setSensorBus(mSensorBus);
+    }
+    if (AMBIENT_SENSOR_FILENAME != null) {
+      try {
+        mSensorRecorderThread.setAmbientSource(new ThermalZoneAmbientSource(AMBIENT_SENSOR_FILENAME, AMBIENT_SENSOR_SCALE));
+      } catch (FileNotFoundException e) {
+        Log.e(e.getClass().toString(), e.getMessage(), e);
+      }
+    }
     mSensorRecorderThread.start();
 
-    mThermalManagementThread = new ThermalManagement(mSensorRecorderThread);
+    mThermalManagementThread = new ThermalManagement(mSensorRecorderThread, mSysfsRoot);
     mThermalManagementThread.start();
 
 
@@ -403,6 +521,11 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
     debugLogMessage("Benchmark Mode: " + (TIMED_BENCHMARK ? "Timed" : "Continuous"));
     debugLogMessage("Benchmark Freq: " + (BENCHMARK_SETS_FREQUENCY ? "Set by benchmark" : "Unmodified by benchmark"));
     debugLogMessage("Thermal Management: " + (THERMAL_MANAGEMENT_ENABLED ? "Enabled" : "Disabled"));
+    debugLogMessage("Testbed: " + ((mSimulatedTestbed != null) ? "Simulated (" + mSysfsRoot + ")" : "Board"));
+    debugLogMessage("Sensor Sampling: " + mSensorRecorderThread.getSamplingInterval() + " ms" + (HIGH_RATE_SAMPLING ? " (High-rate)" : ""));
+    debugLogMessage("Ambient Temperature: " + ((mSensorRecorderThread.getAmbientSource() != null) ? "Live (" + AMBIENT_SENSOR_FILENAME + ")" : "Set by hand"));
+    debugLogMessage("Multimeter Readings: " + (AGILENT_QUERY_READINGS ? "Queried" : "Streamed"));
+    debugLogMessage("Sensor Bus: " + ((mSensorBus != null) ? "Enabled" : "Disabled"));
   }
 
   @Override
@@ -423,6 +546,8 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
 
         // request permission to communicate with the USB device.
         mUsbManager.requestPermission(mAgilentDevice, mUsbPermissionIntent);
+      } else if (mSensorBus != null && mSensorBus.isInstrument(device) && !mUsbManager.hasPermission(device)) {
+        mUsbManager.requestPermission(device, mUsbPermissionIntent);
       }
     }
   }
@@ -445,6 +570,9 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
 
     mThermalManagementThread.terminate();
     mSensorRecorderThread.terminate();
+    if (mSimulatedTestbed != null) {
+      mSimulatedTestbed.terminate();
+    }
   }
 
   @Override
@@ -546,6 +674,10 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
     if (toggleButton_benchmark.isChecked()) {
 
       for (int i = 0; i < Testbed.TESTBED_NUM_CPU_CORES; i++) {
+        if (mSimulatedTestbed != null) {
+          mSimulatedTestbed.setLoad(i, (i < numThreads) ? 1.f : 0.f);
+        }
+
         if (i < numThreads) {
           asyncBenchmarks[i] = new BenchmarkRunner();
           asyncBenchmarks[i].executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, i);
@@ -637,6 +769,11 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
     //   Log.e(e.getClass().toString(), e.getMessage(), e);
     //
 
+    if (RUN_HOT_PATH_BENCHMARK) {
+      debugLogMessage("HotPathBenchmark: running ...");
+      new HotPathBenchmarkRunner().execute();
+    }
+
     if (true) {
       try {
         mThermalManagementThread.checkActiveCores();
@@ -1020,6 +1157,9 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
 
       // record benchmark has ended
       asyncBenchmarkRunning[m_ThreadNumber] = false;
+      if (mSimulatedTestbed != null) {
+        mSimulatedTestbed.setLoad(m_ThreadNumber, 0.f);
+      }
 
       if (ENABLE_GUI_DEBUG) {
         debugLogMessage("BenchmarkRunner: Core " + (m_ThreadNumber+1) + ": Finished benchmark in " +
@@ -1038,6 +1178,19 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
 
         // turn off thermal management
         mThermalManagementThread.setManagementEnabled(false);
+
+        if (ENABLE_GUI_DEBUG && THERMAL_MANAGEMENT_ENABLED) {
+          ControlLatency latency = new ControlLatency();
+          mThermalManagementThread.getControlLatency(latency);
+          debugLogMessage("ThermalManagement: " + latency);
+        }
+
+        if (ENABLE_GUI_DEBUG && mSimulatedTestbed != null) {
+          debugLogMessage("SensorRecorder: " + mSensorRecorderThread.getMissedDeadlines() + " missed sampling deadlines");
+          if (mSimulatedTestbed.getError() != null) {
+            debugLogMessage("SimulatedTestbed: " + mSimulatedTestbed.getError().getMessage());
+          }
+        }
       }
     }
 
@@ -1052,9 +1205,37 @@ public class Executive extends Activity implements SeekBar.OnSeekBarChangeListen
       // store benchmark timing
       latestBenchmarkTimes.get(m_ThreadNumber).setTimes(result.startTime, result.stopTime);
 
+      if (mSimulatedTestbed != null) {
+        mSimulatedTestbed.setLoad(m_ThreadNumber, 0.f);
+      }
+
       if (ENABLE_GUI_DEBUG)
         debugLogMessage("BenchmarkRunner: Core " + (m_ThreadNumber+1) + ": Cancelled benchmark!");
     }
 
   } // private class BenchmarkRunner
+
+  /**
+   *
+   * ASYNC TASK: Hot Path Benchmark Runner
+   *
+   *  Run the HotPathBenchmark in the background, it takes seconds, and
+   *  show the results in the Debug Log.
+   *
+   */
+  private class HotPathBenchmarkRunner extends AsyncTask<Void, Void, List<HotPathBenchmark.Result>> {
+
+    @Override
+    protected List<HotPathBenchmark.Result> doInBackground(Void... params) {
+      return HotPathBenchmark.run(mSysfsRoot);
+    }
+
+    @Override
+    protected void onPostExecute(List<HotPathBenchmark.Result> results) {
+      debugLogMessage("HotPathBenchmark:");
+      for (HotPathBenchmark.Result result : results) {
+        debugLogMessage("  " + result);
+      }
+    }
+  } // private class HotPathBenchmarkRunner
 }
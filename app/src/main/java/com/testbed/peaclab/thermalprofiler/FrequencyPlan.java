@@ -0,0 +1,88 @@
+package com.testbed.peaclab.thermalprofiler;
+
+/**
+ *
+ * TYPE: FrequencyPlan
+ *
+ *  Online state and frequency to apply to each CPU core in one batch
+ *  (see ThermalManagement.applyFrequencyPlan()). Cores and settings
+ *  that are not set in the plan are left alone.
+ *
+ *  The result of applying a plan is a bitmap with bit i set if core i
+ *  ended up as planned, so ALL_CORES means the whole plan succeeded.
+ *
+ */
+public class FrequencyPlan {
+
+  // result bitmap when every core ended up as planned
+  public static final int ALL_CORES = (1 << Testbed.TESTBED_NUM_CPU_CORES) - 1;
+
+  private static final int UNCHANGED = -1;
+
+  // per core: UNCHANGED, or the frequency index / 0 = offline, 1 = online
+  private final int[] mFrequencyIndex;
+  private final int[] mActive;
+
+  public FrequencyPlan() {
+    mFrequencyIndex = new int[Testbed.TESTBED_NUM_CPU_CORES];
+    mActive = new int[Testbed.TESTBED_NUM_CPU_CORES];
+    this.clear();
+  }
+
+  public void clear() {
+    for (int i = 0; i < Testbed.TESTBED_NUM_CPU_CORES; i++) {
+      mFrequencyIndex[i] = UNCHANGED;
+      mActive[i] = UNCHANGED;
+    }
+  }
+
+  /**
+   * Set core to Testbed.TESTBED_CPU_FREQUENCY[freqIndex]. Ignored if the
+   * core is offline once the plan's online states have been applied.
+   */
+  public FrequencyPlan setFrequency(int core, int freqIndex) {
+    checkCore(core);
+    if (freqIndex < Testbed.TESTBED_CPU_FREQ_INDEX_MIN || freqIndex > Testbed.TESTBED_CPU_FREQ_INDEX_MAX) {
+      throw new IllegalArgumentException("freqIndex argument (" + freqIndex + ") outside of allowed range [" +
+          Testbed.TESTBED_CPU_FREQ_INDEX_MIN + "," + Testbed.TESTBED_CPU_FREQ_INDEX_MAX + "]");
+    }
+    mFrequencyIndex[core] = freqIndex;
+    return this;
+  }
+
+  public FrequencyPlan setFrequencies(int freqIndex) {
+    for (int i = Testbed.TESTBED_CPU_CORE_INDEX_MIN; i <= Testbed.TESTBED_CPU_CORE_INDEX_MAX; i++) {
+      setFrequency(i, freqIndex);
+    }
+    return this;
+  }
+
+  public FrequencyPlan setActive(int core, boolean enabled) {
+    checkCore(core);
+    mActive[core] = enabled ? 1 : 0;
+    return this;
+  }
+
+  public boolean changesFrequency(int core) {
+    return (mFrequencyIndex[core] != UNCHANGED);
+  }
+
+  public int getFrequencyIndex(int core) {
+    return mFrequencyIndex[core];
+  }
+
+  public boolean changesActive(int core) {
+    return (mActive[core] != UNCHANGED);
+  }
+
+  public boolean getActive(int core) {
+    return (mActive[core] > 0);
+  }
+
+  private static void checkCore(int core) {
+    if (core < Testbed.TESTBED_CPU_CORE_INDEX_MIN || core > Testbed.TESTBED_CPU_CORE_INDEX_MAX) {
+      throw new IllegalArgumentException("core argument (" + core + ") outside of allowed range [" +
+          Testbed.TESTBED_CPU_CORE_INDEX_MIN + "," + Testbed.TESTBED_CPU_CORE_INDEX_MAX + "]");
+    }
+  }
+} // public class FrequencyPlan
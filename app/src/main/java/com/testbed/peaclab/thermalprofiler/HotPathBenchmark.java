@@ -0,0 +1,252 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ *
+ * TYPE: HotPathBenchmark
+ *
+ *  Microbenchmarks of the per-sample stages of the sensor sampling and
+ *  logging path, run on the device itself (what a stage costs on the
+ *  board's ART runtime is what limits the sampling rate):
+ *
+ *    readCoreTemperature  one thermal zone read (SensorRecorder)
+ *    voltsToCelsius       thermocouple conversion (Thermocouple)
+ *    updatePCMEnergy      R_si/R_pcm fits and PCM energy counters (PcmEnergyModel)
+ *    predictFrequency     RC model prediction at every frequency (ThermalPredictor)
+ *    decodeAgilentFrame   multimeter reading, parsed to a float (AgilentFrameDecoder)
+ *    formatCsvRecord      one stat.csv line (CsvRecordFormatter)
+ *    formatBinaryRecord   one stat.bin record (BinaryRecordFormatter)
+ *
+ *  Every stage is warmed up, then timed over MEASURED_ITERATIONS calls
+ *  with System.nanoTime(). Allocations are counted with the Dalvik/ART
+ *  per-thread allocation counter (android.os.Debug), and reported as
+ *  ns/op and bytes allocated/op.
+ *
+ *  Enable with Executive.RUN_HOT_PATH_BENCHMARK, and press the Debug
+ *  button. Takes seconds: run it off the UI thread.
+ *
+ */
+public class HotPathBenchmark {
+
+  private static final String TAG = "HotPathBenchmark";
+
+  public static final int WARMUP_ITERATIONS = 20000;
+  public static final int MEASURED_ITERATIONS = 100000;
+
+  // number of distinct inputs to cycle through, so no stage is
+  // measured on one constant input
+  private static final int INPUTS = 1024;
+
+  // results are folded into this, so the work can't be optimized away
+  private static volatile long sSink;
+
+  /**
+   *
+   * TYPE: Result
+   *
+   *  Cost of one benchmarked stage.
+   *
+   */
+  public static class Result {
+    public final String name;
+    public final double nsPerOp;
+    public final double bytesPerOp;
+
+    public Result(String name, double nsPerOp, double bytesPerOp) {
+      this.name = name;
+      this.nsPerOp = nsPerOp;
+      this.bytesPerOp = bytesPerOp;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "%-20s %10.1f ns/op %8.1f B/op", name, nsPerOp, bytesPerOp);
+    }
+  } // public static class Result
+
+  // one call of the benchmarked stage, on input i % INPUTS
+  private static abstract class Stage {
+    final String name;
+
+    Stage(String name) {
+      this.name = name;
+    }
+
+    abstract long call(int i) throws IOException;
+
+    // release what the stage opened
+    void close() throws IOException {
+    }
+  } // private static abstract class Stage
+
+  /**
+   * Run all benchmarks, reading the thermal zones below sysfsRoot.
+   */
+  public static List<Result> run(SysfsRoot sysfsRoot) {
+    List<Result> results = new ArrayList<Result>();
+    List<Stage> stages = createStages(sysfsRoot);
+
+    try {
+      for (Stage stage : stages) {
+        try {
+          Result result = measure(stage);
+          Log.i(TAG, result.toString());
+          results.add(result);
+        } catch (IOException e) {
+          Log.e(e.getClass().toString(), e.getMessage(), e);
+        }
+      }
+    } finally {
+      for (Stage stage : stages) {
+        try {
+          stage.close();
+        } catch (IOException e) {
+          Log.e(e.getClass().toString(), e.getMessage(), e);
+        }
+      }
+    }
+
+    return results;
+  }
+
+  private static Result measure(Stage stage) throws IOException {
+    long sink = 0;
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      sink += stage.call(i);
+    }
+
+    Debug.startAllocCounting();
+    Debug.resetThreadAllocSize();
+    long startTime = System.nanoTime();
+
+    for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+      sink += stage.call(i);
+    }
+
+    long stopTime = System.nanoTime();
+    long allocated = Debug.getThreadAllocSize();
+    Debug.stopAllocCounting();
+
+    sSink += sink;
+
+    return new Result(stage.name,
+        (double) (stopTime - startTime) / MEASURED_ITERATIONS,
+        (double) allocated / MEASURED_ITERATIONS);
+  }
+
+  private static List<Stage> createStages(SysfsRoot sysfsRoot) {
+    List<Stage> stages = new ArrayList<Stage>();
+
+    // thermocouple voltages across the table, and matching samples
+    final float[] voltages = new float[INPUTS];
+    final TestbedTemperatures[] samples = new TestbedTemperatures[INPUTS];
+    final float[] cpuTemperatures = new float[INPUTS];
+    final byte[][] frames = new byte[INPUTS][];
+
+    for (int i = 0; i < INPUTS; i++) {
+      float pcmTemperature = 30.f + 40.f * i / INPUTS;
+      voltages[i] = Thermocouple.celsiusToVolts(pcmTemperature - 25.f);
+      cpuTemperatures[i] = pcmTemperature + 5.f + (i % 20);
+
+      TestbedTemperatures sample = new TestbedTemperatures();
+      sample.timestamp = System.currentTimeMillis() + 10L * i;
+      sample.temperatureCore0 = (short) (cpuTemperatures[i] - 1);
+      sample.temperatureCore1 = (short) (cpuTemperatures[i]);
+      sample.temperatureCore2 = (short) (cpuTemperatures[i] + 1);
+      sample.temperatureCore3 = (short) (cpuTemperatures[i]);
+      sample.temperatureThermocouple = pcmTemperature;
+      sample.temperatureAmbient = 25.f;
+      sample.energyPCM = 100.f * i / INPUTS;
+      sample.R_si = 0.9f;
+      sample.R_pcm = 12.3f;
+      sample.sampleTime = 0.01f;
+      samples[i] = sample;
+
+      // a reading as the meter sends it
+      String reading = "\n" + String.format(Locale.US, "%+.4fE-03", voltages[i] * 1000.f) + "\r";
+      frames[i] = new byte[reading.length()];
+      for (int j = 0; j < reading.length(); j++) {
+        frames[i][j] = (byte) reading.charAt(j);
+      }
+    }
+
+    // thermal zone read, the body of SensorRecorder.readCoreTemperature()
+    try {
+      final SysfsFile coreTemperatureFile = new SysfsFile(sysfsRoot.getCoreTemperatureFilename(0));
+      stages.add(new Stage("readCoreTemperature") {
+        long call(int i) throws IOException {
+          return (short) coreTemperatureFile.readInt();
+        }
+
+        void close() throws IOException {
+          coreTemperatureFile.close();
+        }
+      });
+    } catch (IOException e) {
+      Log.w(TAG, "Skipping readCoreTemperature: " + e.getMessage());
+    }
+
+    stages.add(new Stage("voltsToCelsius") {
+      long call(int i) {
+        return Float.floatToRawIntBits(Thermocouple.voltsToCelsius(voltages[i % INPUTS]));
+      }
+    });
+
+    final SensorRecorder recorder = new SensorRecorder(null, 25.f, sysfsRoot);
+    stages.add(new Stage("updatePCMEnergy") {
+      long call(int i) {
+        int input = i % INPUTS;
+        return Float.floatToRawIntBits(recorder.updatePCMEnergy(cpuTemperatures[input], samples[input]));
+      }
+    });
+
+    // the worst case of a prediction: every frequency simulated over
+    // the whole horizon
+    final ThermalPredictor predictor = new ThermalPredictor();
+    stages.add(new Stage("predictFrequency") {
+      long call(int i) {
+        int input = i % INPUTS;
+        predictor.observe(cpuTemperatures[input], samples[input], Testbed.TESTBED_CPU_FREQ_INDEX_MAX, 0.01f);
+        long safe = 0;
+        for (int f = Testbed.TESTBED_CPU_FREQ_INDEX_MIN; f <= Testbed.TESTBED_CPU_FREQ_INDEX_MAX; f++) {
+          safe += predictor.isSafe(f, Float.MAX_VALUE, Float.MAX_VALUE) ? 1 : 0;
+        }
+        return safe;
+      }
+    });
+
+    final AgilentFrameDecoder decoder = new AgilentFrameDecoder();
+    stages.add(new Stage("decodeAgilentFrame") {
+      long call(int i) {
+        byte[] frame = frames[i % INPUTS];
+        decoder.decode(frame, 0, frame.length);
+        return Float.floatToRawIntBits(decoder.getReading());
+      }
+    });
+
+    final byte[] recordBuffer = new byte[CsvRecordFormatter.MAX_RECORD_LENGTH];
+    final CsvRecordFormatter csvFormatter = new CsvRecordFormatter('e');
+    stages.add(new Stage("formatCsvRecord") {
+      long call(int i) {
+        return csvFormatter.formatRecord(recordBuffer, 0, samples[i % INPUTS]);
+      }
+    });
+
+    final BinaryRecordFormatter binaryFormatter = new BinaryRecordFormatter('e', 10000);
+    stages.add(new Stage("formatBinaryRecord") {
+      long call(int i) {
+        return binaryFormatter.formatRecord(recordBuffer, 0, samples[i % INPUTS]);
+      }
+    });
+
+    return stages;
+  }
+} // public class HotPathBenchmark
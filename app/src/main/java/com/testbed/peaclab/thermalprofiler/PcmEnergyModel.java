@@ -0,0 +1,310 @@
+package com.testbed.peaclab.thermalprofiler;
+
+/**
+ *
+ * TYPE: PcmEnergyModel
+ *
+ *  Energy stored in the PCM, from the CPU, PCM and air temperatures.
+ *  Heat flows CPU -> PCM -> air through two thermal resistances, each a
+ *  logarithmic fit in the temperature difference across it:
+ *
+ *    R_si  = siLogScale  * ln(max(|T_cpu - T_pcm|, minDeltaT)) + siOffset
+ *    R_pcm = pcmLogScale * ln(max(|T_pcm - T_air|, minDeltaT)) + pcmOffset
+ *
+ *    P_net = (T_cpu - T_pcm) / R_si - (T_pcm - T_air) / R_pcm
+ *
+ *  The net power is integrated into two energy counters:
+ *
+ *    energy           integrated while the PCM is at or above the melting
+ *                     temperature, reset below it
+ *    saturated energy capped at energyMax, when the PCM counts as melted.
+ *                     once melted, it only drains below the freezing
+ *                     temperature, down to 0, when the PCM is frozen again
+ *
+ *  Use update() once per sample (streaming, as the SensorRecorder does),
+ *  or process() to run the model over whole traces of primitive arrays,
+ *  e.g. to re-run archived traces with other Parameters (with the
+ *  BinaryTraceReader of tools/):
+ *
+ *    PcmEnergyModel.Inputs trace = reader.getModelInputs();
+ *    PcmEnergyModel model = new PcmEnergyModel(parameters);
+ *    model.process(trace, 0, trace.length, netPower, energy, null);
+ *
+ *  Not thread safe.
+ *
+ */
+public class PcmEnergyModel {
+
+  // the fit of the testbed, and its PCM
+  public static final double DEFAULT_SI_LOG_SCALE = 0.35;
+  public static final double DEFAULT_SI_OFFSET = 0.54;
+  public static final double DEFAULT_PCM_LOG_SCALE = 0.0436;
+  public static final double DEFAULT_PCM_OFFSET = 12.221;
+  public static final float DEFAULT_MIN_DELTA_T = 0.3f;
+
+  public static final float DEFAULT_MELTING_TEMP = 55.f;
+  public static final float DEFAULT_FREEZING_TEMP = 60.f;
+  public static final float DEFAULT_ENERGY_MAX = 230.f;
+
+  // fixed resistances, in K/W, for setFixedResistances()
+  public static final float FIXED_R_SI = 0.4060f;
+  public static final float FIXED_R_PCM = 10.267f;
+  //public static final float FIXED_R_SI = 0.0686f; // base assumptions
+  //public static final float FIXED_R_PCM = 53.3f;
+
+  /**
+   *
+   * TYPE: Parameters
+   *
+   *  Fit coefficients (resistances in K/W, temperatures in C) and PCM
+   *  properties (energy in J) of the model.
+   *
+   */
+  public static class Parameters {
+    public double siLogScale = DEFAULT_SI_LOG_SCALE;
+    public double siOffset = DEFAULT_SI_OFFSET;
+    public double pcmLogScale = DEFAULT_PCM_LOG_SCALE;
+    public double pcmOffset = DEFAULT_PCM_OFFSET;
+    public float minDeltaT = DEFAULT_MIN_DELTA_T;
+
+    public float meltingTemp = DEFAULT_MELTING_TEMP;
+    public float freezingTemp = DEFAULT_FREEZING_TEMP;
+    public float energyMax = DEFAULT_ENERGY_MAX;
+
+    public Parameters() {
+    }
+
+    public Parameters(Parameters copy) {
+      this.copy(copy);
+    }
+
+    public void copy(Parameters copy) {
+      this.siLogScale = copy.siLogScale;
+      this.siOffset = copy.siOffset;
+      this.pcmLogScale = copy.pcmLogScale;
+      this.pcmOffset = copy.pcmOffset;
+      this.minDeltaT = copy.minDeltaT;
+      this.meltingTemp = copy.meltingTemp;
+      this.freezingTemp = copy.freezingTemp;
+      this.energyMax = copy.energyMax;
+    }
+
+    /**
+     * Fixed resistances, in K/W, instead of fits (e.g. FIXED_R_SI and
+     * FIXED_R_PCM).
+     */
+    public Parameters setFixedResistances(float R_si, float R_pcm) {
+      siLogScale = 0.;
+      siOffset = R_si;
+      pcmLogScale = 0.;
+      pcmOffset = R_pcm;
+      return this;
+    }
+  } // public static class Parameters
+
+  /**
+   *
+   * TYPE: Inputs
+   *
+   *  The model's inputs over a whole trace, as primitive arrays.
+   *
+   */
+  public static class Inputs {
+    public final int length;
+    public final float[] cpuTemperature; // average of the cores
+    public final float[] pcmTemperature;
+    public final float[] airTemperature;
+    public final float[] sampleTime;     // time since the previous sample, in seconds
+
+    public Inputs(int length) {
+      this.length = length;
+      cpuTemperature = new float[length];
+      pcmTemperature = new float[length];
+      airTemperature = new float[length];
+      sampleTime = new float[length];
+    }
+  } // public static class Inputs
+
+  private final Parameters mParameters;
+
+  // energy counters
+  private float mEnergy;
+  private float mEnergySaturated; // capped at energyMax
+  private boolean mMelted;
+
+  // resistances of the latest update()
+  private float mR_si;
+  private float mR_pcm;
+
+  public PcmEnergyModel() {
+    this(new Parameters());
+  }
+
+  public PcmEnergyModel(Parameters parameters) {
+    mParameters = new Parameters(parameters);
+    this.reset();
+  }
+
+  /**
+   * Clear the energy counters: the PCM is frozen.
+   */
+  public void reset() {
+    mEnergy = 0.f;
+    mEnergySaturated = 0.f;
+    mMelted = false;
+    mR_si = 0.f;
+    mR_pcm = 0.f;
+  }
+
+  /**
+   * @return a copy of the model's parameters
+   */
+  public Parameters getParameters() {
+    return new Parameters(mParameters);
+  }
+
+  /**
+   * Update the energy counters with a sample, sampleTime seconds after
+   * the previous one.
+   *
+   * @return the net power into the PCM, in W
+   */
+  public float update(float cpuTemperature, float pcmTemperature, float airTemperature, float sampleTime) {
+    final Parameters p = mParameters;
+
+    mR_si = resistance(p.siLogScale, p.siOffset, p.minDeltaT, cpuTemperature - pcmTemperature);
+    mR_pcm = resistance(p.pcmLogScale, p.pcmOffset, p.minDeltaT, pcmTemperature - airTemperature);
+
+    float pwrIn     = (cpuTemperature - pcmTemperature) / mR_si;
+    float pwrOut    = (pcmTemperature - airTemperature) / mR_pcm;
+    float netPower  = pwrIn - pwrOut;
+
+    integrate(netPower, pcmTemperature, sampleTime);
+    return netPower;
+  }
+
+  /**
+   * Update the energy counters with a SensorRecorder sample, and fill in
+   * its R_si, R_pcm and energyPCM.
+   *
+   * @return the net power into the PCM, in W
+   */
+  public float update(float cpuTemperature, TestbedTemperatures sample) {
+    float netPower = update(cpuTemperature, sample.temperatureThermocouple,
+        sample.temperatureAmbient, sample.sampleTime);
+    sample.R_si = mR_si;
+    sample.R_pcm = mR_pcm;
+    sample.energyPCM = mEnergy;
+    return netPower;
+  }
+
+  /**
+   * Run the model over count samples of a trace, from offset, continuing
+   * from the current energy counters. The output arrays (any of which
+   * may be null) get the values of the samples at the same indices.
+   */
+  public void process(Inputs inputs, int offset, int count,
+      float[] netPower, float[] energy, float[] energySaturated) {
+    process(inputs.cpuTemperature, inputs.pcmTemperature, inputs.airTemperature, inputs.sampleTime,
+        offset, count, netPower, energy, energySaturated);
+  }
+
+  /**
+   * Run the model over count samples of primitive arrays, from offset.
+   * See process(Inputs, ...).
+   */
+  public void process(float[] cpuTemperature, float[] pcmTemperature, float[] airTemperature,
+      float[] sampleTime, int offset, int count,
+      float[] netPower, float[] energy, float[] energySaturated) {
+    final Parameters p = mParameters;
+    final int end = offset + count;
+
+    // the net power of each sample does not depend on the others, so
+    // compute them all in one tight pass, then integrate
+    float[] power = (netPower != null) ? netPower : new float[end];
+    for (int i = offset; i < end; i++) {
+      float cpu = cpuTemperature[i];
+      float pcm = pcmTemperature[i];
+      float air = airTemperature[i];
+      float R_si = resistance(p.siLogScale, p.siOffset, p.minDeltaT, cpu - pcm);
+      float R_pcm = resistance(p.pcmLogScale, p.pcmOffset, p.minDeltaT, pcm - air);
+      power[i] = (cpu - pcm) / R_si - (pcm - air) / R_pcm;
+    }
+
+    for (int i = offset; i < end; i++) {
+      integrate(power[i], pcmTemperature[i], sampleTime[i]);
+      if (energy != null) {
+        energy[i] = mEnergy;
+      }
+      if (energySaturated != null) {
+        energySaturated[i] = mEnergySaturated;
+      }
+    }
+  }
+
+  /**
+   * @return the energy stored in the PCM while it is above the melting
+   *         temperature, in J
+   */
+  public float getEnergy() {
+    return mEnergy;
+  }
+
+  /**
+   * @return the energy stored in the PCM, capped at energyMax and
+   *         including freezing, in J
+   */
+  public float getSaturatedEnergy() {
+    return mEnergySaturated;
+  }
+
+  public boolean isMelted() {
+    return mMelted;
+  }
+
+  public float getR_si() {
+    return mR_si;
+  }
+
+  public float getR_pcm() {
+    return mR_pcm;
+  }
+
+  private void integrate(float netPower, float pcmTemperature, float sampleTime) {
+    final Parameters p = mParameters;
+
+    // report stored PCM energy
+    if (pcmTemperature < p.meltingTemp) {
+      mEnergy = 0.f;
+    } else {
+      mEnergy += netPower * sampleTime;
+    }
+
+    // keep a 2nd pcm counter that caps at energyMax
+    // and incorporates freezing
+    if (!mMelted && (pcmTemperature < p.meltingTemp)) {
+      mEnergySaturated = 0.f;
+    } else if (!mMelted) {
+      mEnergySaturated += netPower * sampleTime;
+      if (mEnergySaturated >= p.energyMax) {
+        mEnergySaturated = p.energyMax;
+        mMelted = true;
+      }
+    } else if (pcmTemperature < p.freezingTemp) {
+      mEnergySaturated += netPower * sampleTime;
+
+      if (mEnergySaturated < 0.f) {
+        mEnergySaturated = 0.f;
+        mMelted = false;
+      }
+    }
+  }
+
+  // a logarithmic fit in the temperature difference, in K/W
+  private static float resistance(double logScale, double offset, float minDeltaT, float deltaT) {
+    if (logScale == 0.) {
+      return (float) offset;
+    }
+    return (float) (logScale * Math.log(Math.max(Math.abs(deltaT), minDeltaT)) + offset);
+  }
+} // public class PcmEnergyModel
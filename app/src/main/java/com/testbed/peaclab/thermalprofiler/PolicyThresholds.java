@@ -0,0 +1,31 @@
+package com.testbed.peaclab.thermalprofiler;
+
+/**
+ *
+ * TYPE: PolicyThresholds
+ *
+ *  Thresholds of the ThermalManagement policies. They are kept out of
+ *  ThermalManagement, which needs Android, so that the offline tools
+ *  (see tools/, e.g. ParameterSweep) simulate the policies with the
+ *  same values.
+ *
+ */
+public abstract class PolicyThresholds {
+
+  // fractions of the PCM's energyMax at which policy_throttleFrequency2
+  // throttles down, and back up
+  public static final float PCM_ENERGY_THROTTLE_FRACTION = 0.75f;
+  public static final float PCM_ENERGY_COOLDOWN_FRACTION = 0.10f;
+
+  // temperature thresholds
+  public static final float T_CPU_CRITICAL = 80.f;
+  public static final float T_CPU_COOLDOWN = 70.f;
+
+  // least time between actuations of the threshold policies, in
+  // milliseconds
+  public static final int THERMAL_CONTROL_DELAY_MS = 3000;
+
+  // how much longer the frequency policies wait after throttling on the
+  // critical temperature, in milliseconds
+  public static final int CRITICAL_EXTRA_DELAY_MS = 2000;
+} // public abstract class PolicyThresholds
@@ -0,0 +1,351 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+import com.hoho.android.usbserial.driver.UsbSerialProber;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+/**
+ *
+ * TYPE: SensorBus
+ *
+ *  Samples several serial instruments at once, e.g. one Agilent U1252A
+ *  multimeter (with its thermocouple) per PCM location. scan() finds
+ *  every attached device the UsbSerialProber has a driver for (by
+ *  default those of the library's ProbeTable, which include the
+ *  multimeters' Prolific cables) and that we have permission to open,
+ *  and makes each one a channel, ordered by device name so channels
+ *  keep their numbers across scans.
+ *
+ *  Instead of a thread per instrument, all channels are polled by a
+ *  small shared pool: each poll reads whatever bytes have arrived (with
+ *  a short timeout) and feeds them to the channel's AgilentFrameDecoder.
+ *  Every reading goes into the channel's SensorStream, time-stamped with
+ *  the System.nanoTime() at which it arrived, so alignChannels() can
+ *  interpolate all channels onto the times of the SensorRecorder's
+ *  samples.
+ *
+ *  Channels stream readings, they are not queried (see AgilentMultimeter).
+ *
+ *  Opening the instruments blocks on USB, so requestScan() scans on a
+ *  thread of the bus, for callers on the UI thread. A recording fixes
+ *  the channel count in its header, and each column to a channel, so
+ *  while the bus is held (hold(), by the SensorRecorder while it
+ *  records) scans are deferred to release(): a channel whose instrument
+ *  is unplugged reads NaN until then, and a new instrument is not
+ *  sampled until then.
+ *
+ */
+public class SensorBus {
+
+  private static final String TAG = "SensorBus";
+
+  // most instruments on the bus
+  public static final int MAX_CHANNELS = TestbedTemperatures.MAX_CHANNELS;
+
+  // serial settings of the instruments
+  public static final int BAUD_RATE = 19200;
+
+  // threads polling the channels
+  private static final int POLL_THREADS = 2;
+
+  // time between polls of a channel, and the read timeout of a poll.
+  // the timeout must not be 0, which waits forever.
+  private static final int POLL_INTERVAL_MS = 10;
+  private static final int READ_TIMEOUT_MS = 5;
+
+  private final UsbManager mUsbManager;
+  private final UsbSerialProber mProber;
+
+  private ScheduledExecutorService mExecutor;
+  private ExecutorService mScanExecutor;
+
+  // a recording is in progress, and a scan waits for it to stop
+  private boolean mHeld;
+  private boolean mScanPending;
+
+  // replaced as a whole by scan() and close()
+  private volatile Channel[] mChannels;
+
+  public SensorBus(UsbManager usbManager) {
+    this(usbManager, UsbSerialProber.getDefaultProber());
+  }
+
+  /**
+   * Sample only the devices in a ProbeTable, e.g. to leave other serial
+   * devices alone:
+   *
+   *    new SensorBus(usbManager, new UsbSerialProber(new ProbeTable()
+   *        .addProduct(0x067B, 0x2303, ProlificSerialDriver.class)));
+   */
+  public SensorBus(UsbManager usbManager, UsbSerialProber prober) {
+    mUsbManager = usbManager;
+    mProber = prober;
+    mExecutor = null;
+    mScanExecutor = null;
+    mHeld = false;
+    mScanPending = false;
+    mChannels = new Channel[0];
+  }
+
+  /**
+   * @return true if the device is an instrument the bus would sample,
+   *         once we have permission to open it
+   */
+  public boolean isInstrument(UsbDevice device) {
+    return mProber.probeDevice(device) != null;
+  }
+
+  /**
+   * scan() on a thread of the bus, e.g. when an instrument is attached,
+   * detached or allowed. Scans run one at a time, in order.
+   */
+  public synchronized void requestScan() {
+    if (mScanExecutor == null) {
+      mScanExecutor = Executors.newSingleThreadExecutor();
+    }
+    mScanExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        scan();
+      }
+    });
+  }
+
+  /**
+   * Close all channels, and open a channel for each attached instrument.
+   * Deferred to release() while the bus is held.
+   *
+   * @return the number of channels
+   */
+  public synchronized int scan() {
+    if (mHeld) {
+      Log.i(TAG, "Recording, scanning when it stops");
+      mScanPending = true;
+      return mChannels.length;
+    }
+
+    closeChannels();
+
+    List<UsbSerialDriver> drivers = mProber.findAllDrivers(mUsbManager);
+    Collections.sort(drivers, new Comparator<UsbSerialDriver>() {
+      @Override
+      public int compare(UsbSerialDriver a, UsbSerialDriver b) {
+        return a.getDevice().getDeviceName().compareTo(b.getDevice().getDeviceName());
+      }
+    });
+
+    ArrayList<Channel> channels = new ArrayList<Channel>(MAX_CHANNELS);
+    for (UsbSerialDriver driver : drivers) {
+      if (channels.size() == MAX_CHANNELS) {
+        Log.w(TAG, "More than " + MAX_CHANNELS + " instruments, ignoring the rest");
+        break;
+      }
+
+      UsbDevice device = driver.getDevice();
+      if (!mUsbManager.hasPermission(device)) {
+        Log.w(TAG, "No permission for \"" + device.getDeviceName() + "\"");
+        continue;
+      }
+
+      try {
+        channels.add(new Channel(channels.size(), openPort(driver)));
+      } catch (IOException e) {
+        Log.e(e.getClass().toString(), e.getMessage(), e);
+      }
+    }
+
+    if (!channels.isEmpty() && mExecutor == null) {
+      mExecutor = Executors.newScheduledThreadPool(POLL_THREADS);
+    }
+    for (Channel channel : channels) {
+      channel.mFuture = mExecutor.scheduleWithFixedDelay(channel, 0, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    mChannels = channels.toArray(new Channel[channels.size()]);
+    Log.i(TAG, "Sampling " + mChannels.length + " instrument(s)");
+    return mChannels.length;
+  }
+
+  /**
+   * Keep the channels, and their numbers, until release(). Waits for a
+   * scan in progress.
+   */
+  public synchronized void hold() {
+    mHeld = true;
+  }
+
+  /**
+   * Run the scans deferred by hold(), on a thread of the bus.
+   */
+  public synchronized void release() {
+    mHeld = false;
+    if (mScanPending) {
+      mScanPending = false;
+      requestScan();
+    }
+  }
+
+  /**
+   * Close all channels and stop polling.
+   */
+  public synchronized void close() {
+    closeChannels();
+    if (mExecutor != null) {
+      mExecutor.shutdown();
+      mExecutor = null;
+    }
+    if (mScanExecutor != null) {
+      mScanExecutor.shutdown();
+      mScanExecutor = null;
+    }
+    mHeld = false;
+    mScanPending = false;
+  }
+
+  public int getChannelCount() {
+    return mChannels.length;
+  }
+
+  /**
+   * The value of each channel at timeNanos (System.nanoTime(), see
+   * SensorStream.valueAt()), in volts, and its staleness in seconds. A
+   * channel without readings, or that failed, is NaN.
+   *
+   * @return the number of channels
+   */
+  public int alignChannels(long timeNanos, float[] volts, float[] staleness) {
+    Channel[] channels = mChannels;
+    int count = Math.min(channels.length, volts.length);
+    for (int i = 0; i < count; i++) {
+      channels[i].align(timeNanos, volts, staleness, i);
+    }
+    return count;
+  }
+
+  private UsbSerialPort openPort(UsbSerialDriver driver) throws IOException {
+    UsbDevice device = driver.getDevice();
+    UsbDeviceConnection connection = mUsbManager.openDevice(device);
+    if (connection == null) {
+      throw new IOException("Could not open \"" + device.getDeviceName() + "\"");
+    }
+
+    List<UsbSerialPort> ports = driver.getPorts();
+    if (ports.isEmpty()) {
+      connection.close();
+      throw new IOException("No serial ports on \"" + device.getDeviceName() + "\"");
+    }
+
+    UsbSerialPort port = ports.get(0);
+    port.open(connection);
+    try {
+      port.setParameters(BAUD_RATE, UsbSerialPort.DATABITS_8, UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
+      port.purgeHwBuffers(true, true);
+    } catch (IOException e) {
+      port.close();
+      throw e;
+    }
+    return port;
+  }
+
+  private void closeChannels() {
+    Channel[] channels = mChannels;
+    mChannels = new Channel[0];
+    for (Channel channel : channels) {
+      channel.close();
+    }
+  }
+
+  /**
+   *
+   * TYPE: Channel
+   *
+   *  One instrument on the bus. run() is one poll, called by the pool.
+   *
+   */
+  private static class Channel implements Runnable {
+    private final int mIndex;
+    private final UsbSerialPort mPort;
+    private final AgilentFrameDecoder mDecoder;
+    private final byte[] mReadBuffer;
+    private final SensorStream mStream;
+    private ScheduledFuture<?> mFuture;
+
+    private volatile boolean mFailed;
+
+    public Channel(int index, UsbSerialPort port) {
+      mIndex = index;
+      mPort = port;
+      mDecoder = new AgilentFrameDecoder();
+      mReadBuffer = new byte[64];
+      mStream = new SensorStream();
+      mFuture = null;
+      mFailed = false;
+    }
+
+    @Override
+    public void run() {
+      if (mFailed) {
+        return;
+      }
+
+      try {
+        int bytesRead = mPort.read(mReadBuffer, READ_TIMEOUT_MS);
+        long receiveTime = System.nanoTime();
+
+        // every reading of the read, at the time it arrived
+        int i = 0;
+        while (i < bytesRead) {
+          i += mDecoder.decode(mReadBuffer, i, bytesRead - i);
+          if (mDecoder.hasReading()) {
+            mStream.add(receiveTime - (bytesRead - i) * AgilentFrameDecoder.BYTE_TIME_NS, mDecoder.getReading());
+          }
+        }
+      } catch (IOException e) {
+        // unplugged, most likely. the channel reads NaN until the next scan.
+        Log.w(TAG, "Channel " + mIndex + ": " + e.getMessage());
+        fail();
+      }
+    }
+
+    public void align(long timeNanos, float[] volts, float[] staleness, int i) {
+      float value = mStream.valueAt(timeNanos);
+      volts[i] = mFailed ? Float.NaN : value;
+      staleness[i] = mStream.getStaleness();
+    }
+
+    public void close() {
+      if (mFuture != null) {
+        mFuture.cancel(false);
+      }
+      fail();
+    }
+
+    private synchronized void fail() {
+      if (mFailed) {
+        return;
+      }
+      mFailed = true;
+      try {
+        mPort.close();
+      } catch (IOException e) {
+        Log.e(e.getClass().toString(), e.getMessage(), e);
+      }
+    }
+  } // private static class Channel
+} // public class SensorBus
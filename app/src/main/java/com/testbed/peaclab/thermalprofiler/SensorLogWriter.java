@@ -0,0 +1,206 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ *
+ * TYPE: SensorLogWriter
+ *
+ *  Background stage that writes the sensor data log while recording,
+ *  instead of dumping the whole recording when it stops. The layout of
+ *  the log is defined by a SensorRecordFormat (CSV or binary trace).
+ *
+ *  The SensorRecorder thread hands samples over with offer(), which
+ *  copies them into a preallocated pool, so the hand-over does not
+ *  allocate, and memory stays bounded however long the recording is.
+ *  This thread formats the samples into a reused byte buffer
+ *  and writes it out in large batches, at least every FLUSH_INTERVAL_MS
+ *  so a crash loses at most the last second of data.
+ *
+ */
+public class SensorLogWriter extends Thread {
+
+  private static final String TAG = "SensorLogWriter";
+
+  // default number of samples that may be waiting to be written
+  public static final int DEFAULT_QUEUE_LENGTH = 1024;
+
+  private static final int WRITE_BUFFER_LENGTH = 64 * 1024; // in bytes
+  private static final int FLUSH_INTERVAL_MS = 1000;
+
+  private final File mFile;
+  private final SensorRecordFormat mFormat;
+
+  // samples waiting to be written, and empty samples to copy into
+  private final ArrayBlockingQueue<TestbedTemperatures> mPendingSamples;
+  private final ArrayBlockingQueue<TestbedTemperatures> mFreeSamples;
+
+  private final byte[] mWriteBuffer;
+  private final ByteBuffer mWriteByteBuffer;
+  private int mWriteBufferIndex;
+
+  private RandomAccessFile mOutputFile;
+  private FileChannel mOutputChannel;
+
+  private final TimeInterval mBenchmarkTime;
+  private volatile long mDroppedSamples; // counted by the recording thread
+  private long mWrittenSamples;
+
+  private volatile boolean mFinish;
+
+  public SensorLogWriter(File file, SensorRecordFormat format, int queueLength) {
+    mFile = file;
+    mFormat = format;
+
+    mPendingSamples = new ArrayBlockingQueue<TestbedTemperatures>(queueLength);
+    mFreeSamples = new ArrayBlockingQueue<TestbedTemperatures>(queueLength);
+    for (int i = 0; i < queueLength; i++) {
+      mFreeSamples.add(new TestbedTemperatures());
+    }
+
+    mWriteBuffer = new byte[WRITE_BUFFER_LENGTH];
+    mWriteByteBuffer = ByteBuffer.wrap(mWriteBuffer);
+    mWriteBufferIndex = 0;
+
+    mBenchmarkTime = new TimeInterval(0, 0);
+    mDroppedSamples = 0;
+    mWrittenSamples = 0;
+
+    mFinish = false;
+  }
+
+  /**
+   * Queue a copy of a sample to be written. Called from the recording
+   * thread, never blocks. If the writer has fallen too far behind, the
+   * sample is dropped (and counted) and false is returned.
+   */
+  public boolean offer(TestbedTemperatures sample) {
+    TestbedTemperatures copy = mFreeSamples.poll();
+    if (copy == null) {
+      mDroppedSamples++;
+      return false;
+    }
+
+    copy.copy(sample);
+    mPendingSamples.offer(copy);
+    return true;
+  }
+
+  /**
+   * Write out the remaining samples, record the benchmark times in the
+   * header and close the file. Returns immediately; the writer thread
+   * terminates once everything is written (join() it before writing the
+   * same file again).
+   */
+  public void finish(TimeInterval benchmarkTime) {
+    synchronized (mBenchmarkTime) {
+      mBenchmarkTime.setTimes(benchmarkTime);
+    }
+    mFinish = true;
+  }
+
+  public File getFile() {
+    return mFile;
+  }
+
+  @Override
+  public void run() {
+    boolean error = false;
+
+    Log.v(TAG, "Starting SensorLogWriter thread");
+
+    try {
+      mOutputFile = new RandomAccessFile(mFile, "rw");
+      mOutputFile.setLength(0);
+      mOutputChannel = mOutputFile.getChannel();
+
+      // the header is written before the benchmark times are
+      // known, so reserve it now and rewrite it at the end
+      writeHeader(new TimeInterval(0, 0));
+      mOutputChannel.position(mFormat.getHeaderLength());
+
+      while (!mFinish || !mPendingSamples.isEmpty()) {
+        TestbedTemperatures sample = mPendingSamples.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        if (sample == null) {
+          // nothing new for a while, push out what we have
+          flushWriteBuffer();
+          continue;
+        }
+
+        if (WRITE_BUFFER_LENGTH - mWriteBufferIndex < mFormat.getMaxRecordLength()) {
+          flushWriteBuffer();
+        }
+        mWriteBufferIndex = mFormat.formatRecord(mWriteBuffer, mWriteBufferIndex, sample);
+        mWrittenSamples++;
+
+        mFreeSamples.offer(sample);
+      }
+
+      flushWriteBuffer();
+
+      synchronized (mBenchmarkTime) {
+        writeHeader(mBenchmarkTime);
+      }
+    }
+    // catch any errors
+    catch (Throwable e) {
+      Log.e(e.getClass().toString(), e.getMessage(), e);
+      error = true;
+    }
+    // close out the file at the end
+    finally {
+      if (mOutputFile != null) {
+        try {
+          mOutputFile.close();
+        } catch (IOException e) {
+          Log.e(e.getClass().toString(), e.getMessage(), e);
+          error = true;
+        }
+      }
+    }
+
+    if (mDroppedSamples > 0) {
+      Log.w(TAG, "Dropped " + mDroppedSamples + " samples, writer could not keep up");
+    }
+
+    if (!error) {
+      Log.i(TAG, "Data saved to: " + mFile.getAbsolutePath() + " (" + mWrittenSamples + " samples)");
+    }
+
+    Log.v(TAG, "Terminated SensorLogWriter thread");
+  }
+
+  private void flushWriteBuffer() throws IOException {
+    if (mWriteBufferIndex == 0) {
+      return;
+    }
+
+    mWriteByteBuffer.clear();
+    mWriteByteBuffer.limit(mWriteBufferIndex);
+    while (mWriteByteBuffer.hasRemaining()) {
+      mOutputChannel.write(mWriteByteBuffer);
+    }
+    mWriteBufferIndex = 0;
+  }
+
+  // (over)write the fixed-length header at the start of the file
+  private void writeHeader(TimeInterval benchmarkTime) throws IOException {
+    byte[] header = new byte[mFormat.getHeaderLength()];
+    mFormat.formatHeader(header, 0, benchmarkTime);
+
+    ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+    long position = 0;
+    while (headerBuffer.hasRemaining()) {
+      position += mOutputChannel.write(headerBuffer, position);
+    }
+  }
+} // public class SensorLogWriter
@@ -0,0 +1,39 @@
+package com.testbed.peaclab.thermalprofiler;
+
+/**
+ *
+ * TYPE: SensorRecordFormat
+ *
+ *  File format of the sensor data log, as written by SensorLogWriter.
+ *  A log is a fixed-length header followed by one record per sample.
+ *  Implementations format directly into the writer's byte buffer.
+ *
+ */
+public interface SensorRecordFormat {
+
+  /**
+   * Length of the header, in bytes. The header is written when the log
+   * is opened, and rewritten in place once the benchmark times are known,
+   * so it must not depend on them.
+   */
+  int getHeaderLength();
+
+  /**
+   * Upper bound on the length of a single record, in bytes.
+   */
+  int getMaxRecordLength();
+
+  /**
+   * Format the header (exactly getHeaderLength() bytes).
+   *
+   * @return the position in buf after the header
+   */
+  int formatHeader(byte[] buf, int pos, TimeInterval benchmarkTime);
+
+  /**
+   * Format one sample.
+   *
+   * @return the position in buf after the record
+   */
+  int formatRecord(byte[] buf, int pos, TestbedTemperatures data);
+}
@@ -2,15 +2,9 @@ package com.testbed.peaclab.thermalprofiler;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 import com.hoho.android.usbserial.driver.ProlificSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
@@ -26,39 +20,47 @@ public class SensorRecorder extends Thread {
   
   private static final String TAG = "SensorRecorder";
   
-  // set the recording interval, in milliseconds
-  private static final int SAMPLING_INTERVAL_MS = 500;
+  // enum for the sensor data log file format
+  public enum LogFormat {
+    CSV,    // text, SENSOR_DATA_LOG_FILENAME
+    BINARY  // compact binary trace, SENSOR_DATA_TRACE_FILENAME (see BinaryRecordFormatter)
+  }
   
-  // set the default number of data elements to store
-  private static final int DEFAULT_SAMPLE_STORAGE = 600;
+  // set the default recording interval, in milliseconds
+  public static final int SAMPLING_INTERVAL_MS = 500;
   
-  // map a CPU core to a thermal sensor file handle
-  private static final String[] CPU_CORE_THERMAL_SENSOR_FILENAMES = {
-      "/sys/class/thermal/thermal_zone7/temp",
-      "/sys/class/thermal/thermal_zone8/temp",
-      "/sys/class/thermal/thermal_zone9/temp",
-      "/sys/class/thermal/thermal_zone10/temp"
-    };
+  // bounds on the recording interval. intervals below
+  // SAMPLING_INTERVAL_MS are considered high-rate sampling.
+  public static final int SAMPLING_INTERVAL_MS_MIN = 1;
+  public static final int SAMPLING_INTERVAL_MS_MAX = 10000;
   
   private static final String SENSOR_DATA_LOG_FILENAME = "stat.csv";
+  private static final String SENSOR_DATA_TRACE_FILENAME = "stat.bin";
   private static final String SENSOR_EVENT_LOG_FILENAME = "event.csv";
   
+  // least time between warnings about the thermocouple, in milliseconds.
+  // they would otherwise be logged every sample.
+  private static final int THERMOCOUPLE_WARNING_INTERVAL_MS = 10000;
+  
+  // wait this long, in milliseconds, before trying the Agilent port
+  // again when it is not ready or reading fails
+  private static final int AGILENT_RETRY_INTERVAL_MS = 1000;
+  
 
-  public static final float PCM_MELTING_TEMP = 55.f;
-  public static final float PCM_FREEZING_TEMP = 60.f;
-  public static final float PCM_ENERGY_MAX = 230.f;
+  public static final float PCM_MELTING_TEMP = PcmEnergyModel.DEFAULT_MELTING_TEMP;
+  public static final float PCM_FREEZING_TEMP = PcmEnergyModel.DEFAULT_FREEZING_TEMP;
+  public static final float PCM_ENERGY_MAX = PcmEnergyModel.DEFAULT_ENERGY_MAX;
   
   
-  // Use a RandomAccessFile to read the temperature files on the
-  // filesystem. RandomAccessFile allows "rewinding" to re-read
-  // from the beginning of the file, without having to close and
-  // re-open the file. Index by core:
-  //   0 = core 0  (/sys/class/thermal/thermal_zone7/temp)
-  //   1 = core 1  (/sys/class/thermal/thermal_zone8/temp)
-  //   2 = core 2  (/sys/class/thermal/thermal_zone9/temp)
-  //   3 = core 3  (/sys/class/thermal/thermal_zone10/temp)
+  // Use a SysfsFile to read the temperature files on the
+  // filesystem. SysfsFile keeps the file open and re-reads it
+  // from the beginning with a single positioned read into a
+  // preallocated buffer, so sampling allocates nothing. Index by core
+  // (on the board, core 0-3 = /sys/class/thermal/thermal_zone7-10/temp,
+  // see SysfsRoot).
   //
-  ArrayList<RandomAccessFile> mCpuCoreTempFiles;
+  private SysfsRoot mSysfsRoot;
+  ArrayList<SysfsFile> mCpuCoreTempFiles;
   
   // this USB device corresponds to the Agilent U1252A multimeter, which
   // uses a Prolific serial port interface.
@@ -66,26 +68,58 @@ public class SensorRecorder extends Thread {
   private UsbDevice mAgilentDevice;
   private UsbSerialPort mAgilentPort;
   private AgilentSampler mAgilentSamplerThread;
+  private long mAgilentRetryNanos; // latest attempt to open the port
+  
+  // the multimeter's readings, time-stamped when they are received.
+  // kept across re-opening the port.
+  private final SensorStream mThermocoupleStream;
+  
+  // latest thermocouple temperature that was in range, held while there
+  // is no reading. NaN before the first one.
+  private float mThermocoupleTemperature;
+  private long mThermocoupleWarningNanos;
+  
+  // several instruments, sampled instead of the Agilent device if set.
+  // channel 0 is taken as the PCM thermocouple.
+  private volatile SensorBus mSensorBus;
+  private final float[] mChannelVolts;
   
   // keep track of how many samples have been recorded
   private int mSampleCounter;
-  private float mSampleTime;
+  private float mSampleTime; // true time since the previous sample, in seconds
   
-  // recording state
-  private boolean mRecordSensors;
+  // sampling period, and number of sampling deadlines that were
+  // missed because a sample took longer than the period
+  private volatile long mSamplingIntervalNs;
+  private volatile long mMissedDeadlines;
+  
+  // recording state. read every sample, so volatile rather
+  // than guarded by this object's monitor
+  private volatile boolean mRecordSensors;
   private boolean mRecordSensors_prev;
   
-  // temperature records
+  // latest sample. it is reused for every sample, and published
+  // to other threads through mCurrentTestbedTemperaturesChannel
   private TestbedTemperatures mCurrentTestbedTemperatures;
-  private ArrayList<TestbedTemperatures> mTestbedTemperatures;
+  private TestbedTemperaturesChannel mCurrentTestbedTemperaturesChannel;
+  
+  // writes the data log while recording, and the writer of the previous
+  // recording, which may still be finishing the same file
+  private SensorLogWriter mLogWriter;
+  private SensorLogWriter mFinishingLogWriter;
+  private LogFormat mLogFormat;
+  
+  // ambient temperature, which is also the temperature of the
+  // thermocouple's cold junction. set by hand, or read every
+  // sample from a live sensor if there is one.
+  private volatile float mAmbientTemperature;
+  private volatile AmbientTemperatureSource mAmbientSource;
   
-  // ambient temperature
-  private float mAmbientTemperature;
+  // query the multimeter for readings, instead of listening to its stream
+  private volatile boolean mAgilentQueryEnabled;
   
-  // pcm energy counters
-  private float mPCMEnergy;
-  private float mPCMEnergy_Saturated; // this counter will be capped at PCM_ENERGY_MAX
-  private boolean mPCMMelted;
+  // pcm energy counters, and the thermal resistances
+  private final PcmEnergyModel mPcmEnergyModel;
   
   // benchmark timestamps
   private TimeInterval mBenchmarkTime;
@@ -95,27 +129,46 @@ public class SensorRecorder extends Thread {
   
   
   public SensorRecorder(UsbManager usbManager, float ambientTemp) {
+    this(usbManager, ambientTemp, SysfsRoot.DEVICE);
+  }
+  
+  /**
+   * Read the core temperatures below another sysfs root, e.g. that
+   * of a SimulatedTestbed.
+   */
+  public SensorRecorder(UsbManager usbManager, float ambientTemp, SysfsRoot sysfsRoot) {
     mUsbManager = usbManager;
     
-    mCpuCoreTempFiles = new ArrayList<RandomAccessFile>(Testbed.TESTBED_NUM_CPU_CORES);
+    mSysfsRoot = sysfsRoot;
+    mCpuCoreTempFiles = new ArrayList<SysfsFile>(Testbed.TESTBED_NUM_CPU_CORES);
     
     mAgilentDevice = null;
+    mThermocoupleStream = new SensorStream();
+    mThermocoupleTemperature = Float.NaN;
+    mThermocoupleWarningNanos = System.nanoTime() - THERMOCOUPLE_WARNING_INTERVAL_MS * 1000000L;
+    mSensorBus = null;
+    mChannelVolts = new float[SensorBus.MAX_CHANNELS];
     
     mSampleCounter = 0;
     mSampleTime = 0.f;
     
+    mSamplingIntervalNs = SAMPLING_INTERVAL_MS * 1000000L;
+    mMissedDeadlines = 0;
+    
     mRecordSensors = false;
     mRecordSensors_prev = false;
     
     mCurrentTestbedTemperatures = new TestbedTemperatures();
-    mTestbedTemperatures = new ArrayList<TestbedTemperatures>(DEFAULT_SAMPLE_STORAGE);
+    mCurrentTestbedTemperaturesChannel = new TestbedTemperaturesChannel();
     
     mAmbientTemperature = ambientTemp;
-    mPCMEnergy = 0.f;
-    mPCMEnergy_Saturated = 0.f;
-    mPCMMelted = false;
+    mAmbientSource = null;
+    mPcmEnergyModel = new PcmEnergyModel();
     
     mBenchmarkTime = new TimeInterval(0,0);
+    mLogWriter = null;
+    mFinishingLogWriter = null;
+    mLogFormat = LogFormat.CSV;
     
     mTerminate = false;
   }
@@ -126,7 +179,9 @@ public class SensorRecorder extends Thread {
     long T_start = 0;
     long T_stop = 0;
     long T_sleep = 0;
-    long T_prev = System.currentTimeMillis();
+    long T_prev = 0;
+    long T_deadline = 0;
+    long T_period = 0;
     
     Log.v(TAG, "Starting SensorRecorder thread");
     
@@ -138,63 +193,111 @@ public class SensorRecorder extends Thread {
       mTerminate = true;
     }
     
-    try {
-      openAgilentPort();
-      sleep(300);
-    } catch (Throwable e) {
-      Log.e(e.getClass().toString(), e.getMessage(), e);
+    if (mSensorBus == null) {
+      try {
+        mAgilentRetryNanos = System.nanoTime();
+        openAgilentPort();
+        sleep(300);
+      } catch (Throwable e) {
+        Log.e(e.getClass().toString(), e.getMessage(), e);
+      }
     }
 
+    // schedule samples against absolute System.nanoTime() deadlines,
+    // so that the sampling period does not drift with the time it
+    // takes to sample the sensors
+    T_period = mSamplingIntervalNs;
+    T_deadline = System.nanoTime();
+    T_prev = T_deadline - T_period;
+
     while (!mTerminate) {
-      // start loop
-      T_start = System.currentTimeMillis();
-      mSampleTime = (T_start - T_prev) / 1000.f;
+      // start loop. record the true time since the previous sample,
+      // this is the timestep used to integrate PCM energy.
+      T_start = System.nanoTime();
+      mSampleTime = (T_start - T_prev) / 1000000000.f;
       
       // get recording state
       boolean recordState = getRecordState();
       
       // detect if we are starting to record
       if (!mRecordSensors_prev && recordState) {
-        // clear out temperature records
-        mTestbedTemperatures.clear();
+        mMissedDeadlines = 0;
+        // keep the bus's channels as they are in the header
+        if (mSensorBus != null) {
+          mSensorBus.hold();
+        }
+        startSensorLog();
         Log.i(TAG, "Data recording activated");
       }
       // detect if we are ending recording
       else if (mRecordSensors_prev && !recordState) {
-        // dump data to file
-        Log.i(TAG, "Data recording terminated");
-        logSensorRecords();
+        // finish writing data to file
+        Log.i(TAG, "Data recording terminated (" + mMissedDeadlines + " missed sampling deadlines)");
+        stopSensorLog();
+        if (mSensorBus != null) {
+          mSensorBus.release();
+        }
       }
       
-      // sample testbed sensors
-      mCurrentTestbedTemperatures = sampleSensors();
+      // sample testbed sensors, and publish the sample
+      sampleSensors(mCurrentTestbedTemperatures);
+      mCurrentTestbedTemperaturesChannel.publish(mCurrentTestbedTemperatures);
       
-      // save data if we are recording
-      if (recordState) {
-        mTestbedTemperatures.add(mCurrentTestbedTemperatures);
+      // save data if we are recording. the writer's bounded queue is
+      // the only copy, samples are not kept in memory.
+      if (recordState && mLogWriter != null) {
+        mLogWriter.offer(mCurrentTestbedTemperatures);
       }
       
       // wrap up
       mRecordSensors_prev = recordState;
-      T_stop = System.currentTimeMillis();
+      T_stop = System.nanoTime();
       T_prev = T_start;
 
-      //Log.d(TAG, "SensorRecorder loop: " + (T_stop - T_start) + " msec");
+      //Log.d(TAG, "SensorRecorder loop: " + (T_stop - T_start) / 1000 + " usec");
       
-      // sleep until next sampling period
-      T_sleep = SAMPLING_INTERVAL_MS - (T_stop - T_start);
-      T_sleep = (T_sleep < 0) ? 0 : T_sleep;
+      // pick up a new sampling interval, re-anchoring the schedule
+      if (T_period != mSamplingIntervalNs) {
+        T_period = mSamplingIntervalNs;
+        T_deadline = T_start;
+      }
+      
+      // advance to the next deadline. if sampling overran one or more
+      // deadlines, count them as missed and skip ahead to the next
+      // deadline still in the future, keeping the original phase.
+      T_deadline += T_period;
+      if (T_stop >= T_deadline) {
+        long missed = (T_stop - T_deadline) / T_period + 1;
+        mMissedDeadlines += missed;
+        T_deadline += missed * T_period;
+      }
+      
+      // sleep until next sampling deadline
+      T_sleep = T_deadline - T_stop;
       try {
-        Thread.sleep(T_sleep);
+        Thread.sleep(T_sleep / 1000000L, (int) (T_sleep % 1000000L));
       } catch (InterruptedException e) {
         Log.e(e.getClass().toString(), e.getMessage(), e);
       }
     }
     
+    // don't lose a recording in progress
+    if (mRecordSensors_prev) {
+      stopSensorLog();
+    }
+    
     // attempt to close sensors
     try {
       closeCoreTemperatureFiles();
-      mAgilentSamplerThread.terminate();
+      if (mAgilentSamplerThread != null) {
+        mAgilentSamplerThread.terminate();
+      }
+      if (mSensorBus != null) {
+        mSensorBus.close();
+      }
+      if (mAmbientSource != null) {
+        mAmbientSource.close();
+      }
     } catch (IOException e) {
       Log.e(e.getClass().toString(), e.getMessage(), e);
     }
@@ -202,53 +305,91 @@ public class SensorRecorder extends Thread {
     Log.v(TAG, "Terminated SensorRecorder thread");
   }
   
-  private TestbedTemperatures sampleSensors() {
-    TestbedTemperatures dataSample = new TestbedTemperatures();
-    float tcplVoltage = 0.f;
+  private void sampleSensors(TestbedTemperatures dataSample) {
+    float tcplVoltage = Float.NaN;
+    float tcplStaleness = Float.POSITIVE_INFINITY;
+    float ambientTemperature = readAmbientTemperature();
 
     long T0 = 0, T1 = 0;
 
-    // sample thermocouple sensor
-    try {
-      tcplVoltage = readAgilentPort();
-      //tcplVoltage = 0.0013f;
-    } catch (IOException e) {
-      Log.w("sampleSensors", e.getMessage());
-      Log.i("sampleSensors", "Attempting to re-open Agilent port ...");
-
-      if (mAgilentSamplerThread != null) {
-        mAgilentSamplerThread.terminate();
+    long timestamp = System.currentTimeMillis();
+    long timestampNanos = System.nanoTime();
+    
+    // sample thermocouple sensor: channel 0 of the bus, if there is
+    // one, otherwise the Agilent device. both are read at their own
+    // rate, so their readings are interpolated to the time of this sample.
+    SensorBus sensorBus = mSensorBus;
+    int channelCount = 0;
+    if (sensorBus != null) {
+      channelCount = sensorBus.alignChannels(timestampNanos, mChannelVolts, dataSample.channelStaleness);
+      if (channelCount > 0) {
+        tcplVoltage = mChannelVolts[0];
+        tcplStaleness = dataSample.channelStaleness[0];
       }
-      
-      // attempt to re-open serial port
+    } else {
       try {
-        openAgilentPort();
-      } catch (IOException e1) {
-        Log.w("sampleSensors", e1.getMessage());
+        tcplVoltage = readAgilentPort(timestampNanos);
+        tcplStaleness = mThermocoupleStream.getStaleness();
+        //tcplVoltage = 0.0013f;
+      } catch (IOException e) {
+        // attempt to re-open serial port, at most once per retry
+        // interval rather than every sample, and log only then
+        if (timestampNanos - mAgilentRetryNanos >= AGILENT_RETRY_INTERVAL_MS * 1000000L) {
+          mAgilentRetryNanos = timestampNanos;
+          Log.w("sampleSensors", e.getMessage());
+          Log.i("sampleSensors", "Attempting to re-open Agilent port ...");
+
+          if (mAgilentSamplerThread != null) {
+            mAgilentSamplerThread.terminate();
+          }
+
+          try {
+            openAgilentPort();
+          } catch (IOException e1) {
+            Log.w("sampleSensors", e1.getMessage());
+          }
+        }
       }
-      
     }
     
-    long timestamp = System.currentTimeMillis();
-    
     // sample CPU temperature sensors
     //T0 = System.currentTimeMillis();
     dataSample.timestamp = timestamp;
+    dataSample.timestampNanos = timestampNanos;
+    dataSample.sampleTime = mSampleTime;
     dataSample.temperatureCore0 = readCoreTemperature(0);
     dataSample.temperatureCore1 = readCoreTemperature(1);
     dataSample.temperatureCore2 = readCoreTemperature(2);
     dataSample.temperatureCore3 = readCoreTemperature(3);
-    dataSample.temperatureAmbient = mAmbientTemperature;
+    dataSample.temperatureAmbient = ambientTemperature;
     //T1 = System.currentTimeMillis();
 
-    try {
-      dataSample.temperatureThermocouple = Thermocouple.voltsToCelsius(tcplVoltage) + mAmbientTemperature;
-      //dataSample.temperatureThermocouple = tcplVoltage;
-    } catch (Throwable e) {
-      Log.w("sampleSensors", "TCPL Voltage = " + String.format("%.6f", tcplVoltage));
-      Log.e(e.getClass().toString(), e.getMessage(), e);
-      dataSample.temperatureThermocouple = 0.f;
+    // every channel is a thermocouple with its cold junction at ambient.
+    // channels without a reading, or out of range, are NaN.
+    dataSample.channelCount = channelCount;
+    for (int i = 0; i < channelCount; i++) {
+      dataSample.channelTemperatures[i] = Thermocouple.voltsToCelsius(mChannelVolts[i], ambientTemperature);
+    }
+
+    // the cold junction of the thermocouple is at ambient temperature.
+    // without a reading (none yet, or the channel failed; the staleness
+    // is then infinite), or out of the table's range, hold the latest
+    // temperature, or ambient before the first, rather than feed the
+    // PCM model a temperature the PCM never had.
+    dataSample.thermocoupleStaleness = tcplStaleness;
+    float tcplTemperature = Thermocouple.voltsToCelsius(tcplVoltage, ambientTemperature);
+    if (!Float.isNaN(tcplTemperature)) {
+      mThermocoupleTemperature = tcplTemperature;
+    } else if (timestampNanos - mThermocoupleWarningNanos >= THERMOCOUPLE_WARNING_INTERVAL_MS * 1000000L) {
+      mThermocoupleWarningNanos = timestampNanos;
+      if (Float.isNaN(tcplVoltage)) {
+        Log.w("sampleSensors", "No thermocouple reading, holding the last temperature");
+      } else {
+        Log.w("sampleSensors", "TCPL Voltage = " + String.format("%.6f", tcplVoltage) + 
+            ", T_ambient = " + String.format("%.1f", ambientTemperature) + " out of range");
+      }
     }
+    dataSample.temperatureThermocouple = !Float.isNaN(mThermocoupleTemperature) ? mThermocoupleTemperature : ambientTemperature;
 
     // calculate average core temperature
     float cpuTemperature = (float)(
@@ -257,60 +398,34 @@ public class SensorRecorder extends Thread {
         dataSample.temperatureCore2 + 
         dataSample.temperatureCore3) / ((float)Testbed.TESTBED_NUM_CPU_CORES);
     float pcmTemperature = dataSample.temperatureThermocouple;
-    float airTemperature = dataSample.temperatureAmbient;
 
     // PCM energy calculations
-    float dT_si  = Math.max(Math.abs(cpuTemperature - pcmTemperature), 0.3f);
-    float dT_pcm = Math.max(Math.abs(pcmTemperature - airTemperature), 0.3f);
-    float R_si   = (float) (0.35 * Math.log(dT_si) + 0.54);
-    float R_pcm  = (float) (0.0436 * Math.log(dT_pcm) + 12.221);
-    dataSample.R_si = R_si;
-    dataSample.R_pcm = R_pcm;
-    
-    float pwrIn     = (cpuTemperature - pcmTemperature) / R_si;
-    float pwrOut    = (pcmTemperature - airTemperature) / R_pcm;
-    float netPower  = pwrIn - pwrOut;
-    
-    // report stored PCM energy
-    if (pcmTemperature < PCM_MELTING_TEMP) {
-      mPCMEnergy = 0.f;
-    } else {
-      mPCMEnergy += netPower * mSampleTime;
-    }
-    dataSample.energyPCM = mPCMEnergy;
-    
-    
-    // keep a 2nd pcm counter that caps at PCM_ENERGY_MAX
-    // and incorporates freezing
-    if (!mPCMMelted && (pcmTemperature < PCM_MELTING_TEMP)) {
-      mPCMEnergy_Saturated = 0.f;
-    } else if (!mPCMMelted) {
-      mPCMEnergy_Saturated += netPower * mSampleTime;
-      if (mPCMEnergy_Saturated >= PCM_ENERGY_MAX) {
-        mPCMEnergy_Saturated = PCM_ENERGY_MAX;
-        mPCMMelted = true;
-      }
-    } else if (mPCMMelted && (pcmTemperature < PCM_FREEZING_TEMP)) {
-      mPCMEnergy_Saturated += netPower * mSampleTime;
-      
-      if (mPCMEnergy_Saturated < 0.f) {
-        mPCMEnergy_Saturated = 0.f;
-        mPCMMelted = false;
-      }
+    float netPower = updatePCMEnergy(cpuTemperature, dataSample);
+
+
+    // skip the per-sample log in high-rate mode, formatting it
+    // costs more than sampling the sensors
+    if (mSamplingIntervalNs >= SAMPLING_INTERVAL_MS * 1000000L) {
+      Log.v(TAG,
+          "T_CPU=" + String.format("%.2f", cpuTemperature) + ", " +
+          //"T_CPU=" + dataSample.temperatureCore0 + ", " +
+          "T_PCM=" + String.format("%.2f", pcmTemperature) + ", " +
+          "E_PCM=" + String.format("%6.2f", mPcmEnergyModel.getEnergy()) + " (" + String.format("%.2f", mPcmEnergyModel.getSaturatedEnergy()) + "), " +
+          "P_net=" + String.format("%6.3f", netPower)      + ", " +
+          "Rsi/pcm= " + String.format("%.3f", dataSample.R_si) + ", " + String.format("%.3f", dataSample.R_pcm)
+      );
     }
 
-
-    Log.v(TAG,
-        "T_CPU=" + String.format("%.2f", cpuTemperature) + ", " +
-        //"T_CPU=" + dataSample.temperatureCore0 + ", " +
-        "T_PCM=" + String.format("%.2f", pcmTemperature) + ", " +
-        "E_PCM=" + String.format("%6.2f", mPCMEnergy)    + " (" + String.format("%.2f", mPCMEnergy_Saturated) + "), " +
-        "P_net=" + String.format("%6.3f", netPower)      + ", " +
-        "Rsi/pcm= " + String.format("%.3f", R_si) + ", " + String.format("%.3f", R_pcm)
-    );
-
-    
-    return dataSample;
+  }
+  
+  /**
+   * Update the PCM energy counters from a sample, and fill in its
+   * R_si, R_pcm and energyPCM. Package-private for HotPathBenchmark.
+   * 
+   * @return the net power into the PCM, in W
+   */
+  float updatePCMEnergy(float cpuTemperature, TestbedTemperatures dataSample) {
+    return mPcmEnergyModel.update(cpuTemperature, dataSample);
   }
   
   private short readCoreTemperature(int core) throws IllegalArgumentException {
@@ -321,21 +436,12 @@ public class SensorRecorder extends Thread {
       throw new IllegalArgumentException("invalid core index " + core);
     }
     
-    RandomAccessFile coreTemperatureFile = mCpuCoreTempFiles.get(core);
-    String fileContents = "";
+    SysfsFile coreTemperatureFile = mCpuCoreTempFiles.get(core);
     
     try {
-      String line;
-      while ((line = coreTemperatureFile.readLine()) != null) {
-        fileContents = fileContents.concat(line);
-      }
-      //Log.v("readCoreTemp", "Core " + coreNum + " Temp: " + fileContents);
-      
-      // parse temperature
-      temperature = Short.parseShort(fileContents);
-      
-      // reset the file
-      coreTemperatureFile.seek(0);
+      // read and parse temperature in place
+      temperature = (short) coreTemperatureFile.readInt();
+      //Log.v("readCoreTemp", "Core " + core + " Temp: " + temperature);
     } catch (IOException e) {
       //Log.e(e.getClass().toString(), e.getMessage(), e);
       Log.e("readCoreTemperature", "Unable to read core temperature, check file permissions!");
@@ -345,13 +451,10 @@ public class SensorRecorder extends Thread {
     return temperature;
   }
   
-  private void logSensorRecords() {
-    
-    FileOutputStream fos = null;
-    boolean error = false;
+  private void startSensorLog() {
     
     /**
-     * Identify what data we are dumping. The first character
+     * Identify what data we are logging. The first character
      * of the data file denotes the format of the rest of the
      * file.
      * 
@@ -368,16 +471,17 @@ public class SensorRecorder extends Thread {
     //char recordCode = 'p';
     char recordCode = 'e';
     
-    // define how to store timestamps
-    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
-    
-    // format the benchmark start time
-    long startTime = getBenchmarkTime().startTime;
-    String startTimeStr = (startTime != 0) ? sdf.format(new Date(startTime)) : "0";
+    mLogWriter = null;
     
-    // format the benchmark stop time
-    long stopTime = getBenchmarkTime().stopTime;
-    String stopTimeStr = (stopTime != 0) ? sdf.format(new Date(stopTime)) : "0";
+    // don't truncate the file while the previous writer still drains into it
+    if (mFinishingLogWriter != null) {
+      try {
+        mFinishingLogWriter.join();
+      } catch (InterruptedException e) {
+        Log.e(e.getClass().toString(), e.getMessage(), e);
+      }
+      mFinishingLogWriter = null;
+    }
     
     // check if we can store on the SD card
     String state = Environment.getExternalStorageState();
@@ -386,73 +490,48 @@ public class SensorRecorder extends Thread {
       return;
     }
     
-    // give it a file name
-    File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), SENSOR_DATA_LOG_FILENAME);
+    // log a column for each instrument on the bus
+    SensorBus sensorBus = mSensorBus;
+    int channelCount = (sensorBus != null) ? sensorBus.getChannelCount() : 0;
     
-    // attempt to open file
-    try {
-      fos = new FileOutputStream(file);
-      String line, date;
-      TestbedTemperatures data;
-      
-      // record benchmark times
-      line = recordCode + "," + startTimeStr + "," + stopTimeStr + "\n";
-      fos.write(line.getBytes());
-      
-      // record data points
-      for (int i = 0; i < mTestbedTemperatures.size(); i++) {
-        data = mTestbedTemperatures.get(i);
-        date = sdf.format(data.timestamp);
-        line = date + "," +
-            data.temperatureCore0 + "," +
-            data.temperatureCore1 + "," +
-            data.temperatureCore2 + "," +
-            data.temperatureCore3 + "," +
-            String.format("%.3f", data.temperatureThermocouple) + "," + 
-            String.format("%.1f", data.temperatureAmbient) + "," +
-            String.format("%.4f", data.energyPCM) + "," + 
-            String.format("%.4f", data.R_si) + "," +
-            String.format("%.4f", data.R_pcm) + /*"," + 
-            data.timestamp +*/
-            "\n";
-        fos.write(line.getBytes());
-      }
-    }
-    // catch any errors
-    catch (Throwable e) {
-      Log.e(e.getClass().toString(), e.getMessage(), e);
-      error = true;
-    }
-    // close out the file at the end
-    finally {
-      if (fos != null) {
-        try {
-          fos.close();
-        } catch (IOException e) {
-          Log.e(e.getClass().toString(), e.getMessage(), e);
-          error = true;
-        }
-      }
+    // give it a file name and a format
+    File file;
+    SensorRecordFormat format;
+    if (getLogFormat() == LogFormat.BINARY) {
+      file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), SENSOR_DATA_TRACE_FILENAME);
+      format = new BinaryRecordFormatter(recordCode, (int) (mSamplingIntervalNs / 1000L), channelCount);
+    } else {
+      file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS), SENSOR_DATA_LOG_FILENAME);
+      format = new CsvRecordFormatter(recordCode, channelCount);
     }
     
-    if (!error) {
-      Log.i(TAG, "Data saved to: " + file.getAbsolutePath());
+    // samples are written out while recording, by a background writer
+    mLogWriter = new SensorLogWriter(file, format, SensorLogWriter.DEFAULT_QUEUE_LENGTH);
+    mLogWriter.start();
+  }
+  
+  private void stopSensorLog() {
+    // the writer records the benchmark times, then flushes and
+    // closes the file on its own thread
+    if (mLogWriter != null) {
+      mLogWriter.finish(getBenchmarkTime());
+      mFinishingLogWriter = mLogWriter;
+      mLogWriter = null;
     }
-    
   }
   
   private void openCoreTemperatureFiles() throws FileNotFoundException {
     mCpuCoreTempFiles.clear();
     
     for (int i = 0; i < Testbed.TESTBED_NUM_CPU_CORES; i++) {
-      RandomAccessFile coreTemperatureFile = new RandomAccessFile(CPU_CORE_THERMAL_SENSOR_FILENAMES[i], "r");
+      SysfsFile coreTemperatureFile = new SysfsFile(mSysfsRoot.getCoreTemperatureFilename(i));
       mCpuCoreTempFiles.add(coreTemperatureFile);
     }
   }
   
   private void closeCoreTemperatureFiles() throws IOException {
     for (int i = 0; i < Testbed.TESTBED_NUM_CPU_CORES; i++) {
-      RandomAccessFile coreTemperatureFile = mCpuCoreTempFiles.get(i);
+      SysfsFile coreTemperatureFile = mCpuCoreTempFiles.get(i);
       coreTemperatureFile.close();
     }
   }
@@ -477,17 +556,18 @@ public class SensorRecorder extends Thread {
       mAgilentPort.purgeHwBuffers(true, true);
     }
 
-    mAgilentSamplerThread = new AgilentSampler(mAgilentPort);
+    mAgilentSamplerThread = new AgilentSampler(mAgilentPort, mAgilentQueryEnabled, mThermocoupleStream);
     mAgilentSamplerThread.start();
   }
   
-  private float readAgilentPort() throws IOException {
+  // the multimeter's reading at timeNanos, see SensorStream.valueAt()
+  private float readAgilentPort(long timeNanos) throws IOException {
     float voltage = 0.f;
     if (mAgilentSamplerThread == null) {
       throw new IOException("AgilentSampler not ready!");
     }
 
-    voltage = mAgilentSamplerThread.getSample();
+    voltage = mThermocoupleStream.valueAt(timeNanos);
     return voltage;
   }
 
@@ -495,19 +575,106 @@ public class SensorRecorder extends Thread {
     mTerminate = true;
   }
   
-  public synchronized void setRecordState(boolean active) {
+  public void setRecordState(boolean active) {
     mRecordSensors = active;
   }
   
-  public synchronized boolean getRecordState() {
+  public boolean getRecordState() {
     return mRecordSensors;
   }
   
-  public synchronized void setAmbientTemperature(float temperature) {
+  /**
+   * Set the sensor sampling interval. Intervals below SAMPLING_INTERVAL_MS
+   * (down to SAMPLING_INTERVAL_MS_MIN) select high-rate sampling.
+   */
+  public synchronized void setSamplingInterval(int intervalMs) {
+    if (intervalMs < SAMPLING_INTERVAL_MS_MIN || intervalMs > SAMPLING_INTERVAL_MS_MAX) {
+      throw new IllegalArgumentException("sampling interval " + intervalMs + " ms outside of allowed range [" +
+          SAMPLING_INTERVAL_MS_MIN + "," + SAMPLING_INTERVAL_MS_MAX + "]");
+    }
+    mSamplingIntervalNs = intervalMs * 1000000L;
+  }
+  
+  public int getSamplingInterval() {
+    return (int) (mSamplingIntervalNs / 1000000L);
+  }
+  
+  public long getMissedDeadlines() {
+    return mMissedDeadlines;
+  }
+  
+  /**
+   * Select the data log file format. Takes effect when the next
+   * recording starts.
+   */
+  public synchronized void setLogFormat(LogFormat format) {
+    mLogFormat = format;
+  }
+  
+  public synchronized LogFormat getLogFormat() {
+    return mLogFormat;
+  }
+  
+  /**
+   * Read the ambient temperature from a live sensor every sample, instead
+   * of using the temperature set with setAmbientTemperature(). Set to null
+   * to go back to the temperature set by hand.
+   */
+  public void setAmbientSource(AmbientTemperatureSource source) {
+    mAmbientSource = source;
+  }
+  
+  public AmbientTemperatureSource getAmbientSource() {
+    return mAmbientSource;
+  }
+  
+  /**
+   * Query the multimeter for readings with an AgilentMultimeter, instead
+   * of listening to the readings it streams. Takes effect when the port
+   * is next opened.
+   */
+  public void setAgilentQueryEnabled(boolean enabled) {
+    mAgilentQueryEnabled = enabled;
+  }
+  
+  public boolean isAgilentQueryEnabled() {
+    return mAgilentQueryEnabled;
+  }
+  
+  /**
+   * Sample the instruments of a SensorBus, instead of the Agilent device.
+   * Set before the thread starts. The bus is closed when the thread
+   * terminates.
+   */
+  public void setSensorBus(SensorBus sensorBus) {
+    mSensorBus = sensorBus;
+  }
+  
+  public SensorBus getSensorBus() {
+    return mSensorBus;
+  }
+  
+  // read the live ambient sensor, if there is one. if it fails,
+  // keep using the last ambient temperature.
+  private float readAmbientTemperature() {
+    AmbientTemperatureSource source = mAmbientSource;
+    
+    if (source != null) {
+      try {
+        mAmbientTemperature = source.readAmbientTemperature();
+      } catch (IOException e) {
+        Log.w("readAmbientTemperature", e.getMessage());
+      }
+    }
+    
+    return mAmbientTemperature;
+  }
+  
+  public void setAmbientTemperature(float temperature) {
     mAmbientTemperature = temperature;
   }
   
-  public synchronized float getAmbientTemperature() {
+  public float getAmbientTemperature() {
     return mAmbientTemperature;
   }
   
@@ -532,172 +699,172 @@ public class SensorRecorder extends Thread {
     return mAgilentDevice;
   }
   
-  public synchronized TestbedTemperatures getCurrentTestbedTemperatures() {
-    return mCurrentTestbedTemperatures;
+  /**
+   * Copy the latest sample into snapshot, without locking. Never
+   * blocks the recorder thread, and never returns a torn sample.
+   *
+   * @return the sample number of the copied sample
+   */
+  public long getCurrentTestbedTemperatures(TestbedTemperatures snapshot) {
+    return mCurrentTestbedTemperaturesChannel.read(snapshot);
+  }
+  
+  /**
+   * Number of samples taken so far, to check for a new sample
+   * without copying it.
+   */
+  public long getCurrentSampleNumber() {
+    return mCurrentTestbedTemperaturesChannel.getSampleNumber();
+  }
+  
+  /**
+   * Subscribe to new samples: block until a sample newer than
+   * sampleNumber has been taken, or until the timeout expires.
+   *
+   * @return the latest sample number, which is not newer than
+   *         sampleNumber if the wait timed out
+   */
+  public long awaitSample(long sampleNumber, long timeoutMs) throws InterruptedException {
+    return mCurrentTestbedTemperaturesChannel.awaitSample(sampleNumber, timeoutMs);
   }
 
   private class AgilentSampler extends Thread {
     private final String TAG = "AgilentSampler";
 
-    // set the sampling interval, in milliseconds.
-    // note, the serial communication with the Agilent multimeter
-    // is slow. reading a full voltage value takes about 300-400 msec.
-    // I suspect this may be due to a sloppy serial port interface
-    // (the hoho.android.usbserial package).
-    private static final int SAMPLING_INTERVAL_MS = 1000;
+    // when streamed, the sampler reads the meter's readings as they
+    // arrive, at the meter's own rate. a read returns after this long,
+    // in milliseconds, if nothing arrives, so that termination is noticed.
+    private static final int AGILENT_READ_TIMEOUT_MS = 100;
+    
+    // when queried, wait this long, in milliseconds, for a reply
+    private static final int AGILENT_REPLY_TIMEOUT_MS = 1000;
 
-    private static final int AGILENT_WORD_BUFFER_LENGTH = 40; // in bytes
-    private static final int AGILENT_READ_BUFFER_LENGTH = 8; // in bytes
-    private static final byte AGILENT_START_BYTE = 0x0A;
-    private static final byte AGILENT_STOP_BYTE = 0x0D;
+    private static final int AGILENT_READ_BUFFER_LENGTH = 64; // in bytes
 
     private UsbSerialPort mAgilentPort;
+    private final boolean mQueryReadings;
 
-    private boolean mTerminate;
+    private volatile boolean mTerminate;
 
-    private volatile float mSample;
+    // every reading, with the System.nanoTime() at which it was received
+    private final SensorStream mStream;
 
-    public AgilentSampler(UsbSerialPort agilentPort) {
+    public AgilentSampler(UsbSerialPort agilentPort, boolean queryReadings, SensorStream stream) {
       this.mAgilentPort = agilentPort;
+      mQueryReadings = queryReadings;
       mTerminate = false;
-      mSample = 0.f;
+      mStream = stream;
     }
 
     public void run() {
-      long T_start = 0;
-      long T_stop = 0;
-      long T_sleep = 0;
-      long T_prev = System.currentTimeMillis();
-
       Log.v(TAG, "Starting AgilentSampler thread");
 
-      while (!mTerminate) {
-        // start loop
-        T_start = System.currentTimeMillis();
-        mSampleTime = (T_start - T_prev) / 1000.f;
+      if (mQueryReadings) {
+        queryReadings();
+      } else {
+        receiveReadings();
+      }
 
+      try {
+        if (mAgilentPort != null) {
+          mAgilentPort.close();
+        }
+      } catch (IOException e) {
+        Log.e(e.getClass().toString(), e.getMessage(), e);
+      }
+
+      Log.v(TAG, "Terminated AgilentSampler thread");
+    }
+
+    // listen to the readings the meter streams
+    private void receiveReadings() {
+      byte[] serialReadBuffer = new byte[AGILENT_READ_BUFFER_LENGTH];
+      AgilentFrameDecoder decoder = new AgilentFrameDecoder();
+
+      while (!mTerminate) {
         // check port
         if (mAgilentPort == null) {
           Log.w(TAG, "Agilent port not ready!");
-
-        } else {
-          int numReads = 0;
-          int wordBufferIndex = 0;
-          float voltage = 0.f;
-
-          byte[] wordBuffer = new byte[AGILENT_WORD_BUFFER_LENGTH];
-          Arrays.fill(wordBuffer, (byte)0);
-
-          while (wordBufferIndex < AGILENT_WORD_BUFFER_LENGTH) {
-            byte[] serialReadBuffer = new byte[AGILENT_READ_BUFFER_LENGTH];
-
-            // read incoming data
-            int bytesRead = 0;
-            try {
-              bytesRead = mAgilentPort.read(serialReadBuffer, 100);
-            } catch (IOException e) {
-              Log.e(e.getClass().toString(), e.getMessage(), e);
-            }
-            numReads++;
-
-            // continue processing if you've read something
-            if (bytesRead > 0) {
-
-              // append the bytes read to the word buffer
-              int freeBytes = AGILENT_WORD_BUFFER_LENGTH - wordBufferIndex;
-              bytesRead = (bytesRead > freeBytes) ? freeBytes : bytesRead;
-              System.arraycopy(serialReadBuffer, 0, wordBuffer, wordBufferIndex, bytesRead);
-              wordBufferIndex += bytesRead;
-
-              // when buffer full, parse the word buffer
-              if (wordBufferIndex >= AGILENT_WORD_BUFFER_LENGTH) {
-                byte[] dataSampleBuffer = parseAgilentBuffer(wordBuffer);
-
-                try {
-                  mAgilentPort.purgeHwBuffers(true, true);
-                } catch (IOException e) {
-                  Log.e(e.getClass().toString(), e.getMessage(), e);
-                }
-
-                if (dataSampleBuffer != null) {
-                  String dataSampleString = new String(dataSampleBuffer);
-
-                  // parse string into float
-                  try {
-                    voltage = Float.parseFloat(dataSampleString);
-                    setSample(voltage);
-                  } catch (NumberFormatException e) {
-                    Log.w(TAG, "Unable to parse Agilent buffer!");
-                  }
-
-                }
-              }
-            }
-          } // while (!terminate)
+          retryDelay();
+          continue;
         }
 
-        // wrap up
-        T_stop = System.currentTimeMillis();
-        T_prev = T_start;
-
-        //Log.d(TAG, "AgilentSampler loop: " + (T_stop - T_start) + " msec");
-
-        // sleep until next sampling period
-        T_sleep = SAMPLING_INTERVAL_MS - (T_stop - T_start);
-        T_sleep = (T_sleep < 0) ? 0 : T_sleep;
+        // read incoming data. readings can start and end anywhere in
+        // the bytes read, the decoder keeps partial readings across reads.
+        int bytesRead = 0;
         try {
-          Thread.sleep(T_sleep);
-        } catch (InterruptedException e) {
+          bytesRead = mAgilentPort.read(serialReadBuffer, AGILENT_READ_TIMEOUT_MS);
+        } catch (IOException e) {
           Log.e(e.getClass().toString(), e.getMessage(), e);
+          retryDelay();
+          continue;
         }
-      }
 
-      try {
-        mAgilentPort.close();
-      } catch (IOException e) {
-        Log.e(e.getClass().toString(), e.getMessage(), e);
+        long receiveTime = System.nanoTime();
+
+        // every reading of the read, at the time it arrived
+        int i = 0;
+        while (i < bytesRead) {
+          i += decoder.decode(serialReadBuffer, i, bytesRead - i);
+          if (decoder.hasReading()) {
+            mStream.add(receiveTime - (bytesRead - i) * AgilentFrameDecoder.BYTE_TIME_NS, decoder.getReading());
+          }
+        }
       }
 
-      Log.v(TAG, "Terminated AgilentSampler thread");
+      if (decoder.getDroppedFrames() > 0) {
+        Log.w(TAG, "Dropped " + decoder.getDroppedFrames() + " malformed readings");
+      }
     }
 
-    private byte[] parseAgilentBuffer(byte[] wordBuffer) {
-      int startByteIndex = -1;
-      int stopByteIndex = -1;
-      byte[] parsedBuffer = null;
+    // ask the meter for readings, with the next query always queued
+    private void queryReadings() {
+      AgilentMultimeter meter = null;
+      boolean configured = false;
 
-      for (int i = 0; i < AGILENT_WORD_BUFFER_LENGTH; i++) {
-        if (wordBuffer[i] == AGILENT_START_BYTE) {
-          startByteIndex = i;
+      while (!mTerminate) {
+        // check port
+        if (mAgilentPort == null) {
+          Log.w(TAG, "Agilent port not ready!");
+          retryDelay();
+          continue;
         }
 
-        if (startByteIndex > 0 && wordBuffer[i] == AGILENT_STOP_BYTE) {
-          stopByteIndex = i;
-          break;
+        if (meter == null) {
+          meter = new AgilentMultimeter(mAgilentPort);
         }
-      }
-
-      if (startByteIndex > 0 && stopByteIndex > startByteIndex) {
-        int wordSize = stopByteIndex - startByteIndex - 1;
 
-        if (wordSize > 0) {
-          parsedBuffer = Arrays.copyOfRange(wordBuffer, startByteIndex+1, stopByteIndex);
+        try {
+          if (!configured) {
+            Log.i(TAG, "Multimeter: " + meter.identify(AGILENT_REPLY_TIMEOUT_MS));
+            meter.configureDcVoltage(AGILENT_REPLY_TIMEOUT_MS);
+            configured = true;
+          }
+
+          if (meter.fetch(AGILENT_REPLY_TIMEOUT_MS)) {
+            mStream.add(meter.getReadingTimeNanos(), meter.getReading());
+          }
+        } catch (IOException e) {
+          Log.e(e.getClass().toString(), e.getMessage(), e);
+          retryDelay();
         }
       }
 
-      return parsedBuffer;
+      if (meter != null && meter.getDroppedReplies() > 0) {
+        Log.w(TAG, "Dropped " + meter.getDroppedReplies() + " malformed replies");
+      }
     }
 
     public synchronized void terminate() {
       mTerminate = true;
     }
 
-    public synchronized float getSample() {
-      return mSample;
-    }
-
-    private synchronized void  setSample(float sample) {
-      mSample = sample;
+    private void retryDelay() {
+      try {
+        Thread.sleep(AGILENT_RETRY_INTERVAL_MS);
+      } catch (InterruptedException e) {
+        Log.e(e.getClass().toString(), e.getMessage(), e);
+      }
     }
 
     public void setAgilentPort(UsbSerialPort agilentPort) {
@@ -0,0 +1,177 @@
+package com.testbed.peaclab.thermalprofiler;
+
+/**
+ *
+ * TYPE: SensorStream
+ *
+ *  The recent readings of a sensor that is read asynchronously (e.g. the
+ *  thermocouple multimeter, at its own ~1 Hz), each time-stamped with the
+ *  System.nanoTime() at which it was acquired, and their value at the
+ *  times of the SensorRecorder's samples:
+ *
+ *    - between two readings, linearly interpolated
+ *    - after the latest reading, extrapolated along the last two
+ *      readings for at most the time between them (and at most
+ *      maxExtrapolationNs), then held
+ *    - before the oldest reading kept, held
+ *
+ *  Readings arrive after the fact, so a sample taken now is usually past
+ *  the latest reading. Extrapolating keeps the value from lagging by up
+ *  to a reading interval during fast transients, such as sprints.
+ *
+ *  With every value, valueAt() records its staleness: how far the sample
+ *  time is from the nearest reading the value was computed from.
+ *
+ *  Thread safe, readings are added by the thread sampling the sensor.
+ *  valueAt() and its staleness are meant for one reader, the recorder.
+ *
+ */
+public class SensorStream {
+
+  // readings kept, a power of two
+  public static final int HISTORY_LENGTH = 8;
+  private static final int HISTORY_MASK = HISTORY_LENGTH - 1;
+
+  // staleness of a stream without readings
+  public static final long NO_READING = Long.MAX_VALUE;
+
+  // extrapolate at most about one multimeter reading interval
+  public static final long DEFAULT_MAX_EXTRAPOLATION_NS = 1000000000L;
+
+  private final long mMaxExtrapolationNs;
+
+  // readings, indexed by count & HISTORY_MASK, in time order
+  private final long[] mTimesNanos;
+  private final float[] mValues;
+  private long mCount;
+
+  // staleness of the latest valueAt(), in nanoseconds
+  private long mStalenessNanos;
+
+  public SensorStream() {
+    this(DEFAULT_MAX_EXTRAPOLATION_NS);
+  }
+
+  /**
+   * Extrapolate at most maxExtrapolationNs past the latest reading,
+   * 0 to hold it.
+   */
+  public SensorStream(long maxExtrapolationNs) {
+    mMaxExtrapolationNs = maxExtrapolationNs;
+    mTimesNanos = new long[HISTORY_LENGTH];
+    mValues = new float[HISTORY_LENGTH];
+    mCount = 0;
+    mStalenessNanos = NO_READING;
+  }
+
+  /**
+   * Add a reading acquired at timeNanos (System.nanoTime()). Readings
+   * older than the latest one are dropped.
+   */
+  public synchronized void add(long timeNanos, float value) {
+    if (mCount > 0 && timeNanos < mTimesNanos[(int) ((mCount - 1) & HISTORY_MASK)]) {
+      return;
+    }
+
+    int index = (int) (mCount & HISTORY_MASK);
+    mTimesNanos[index] = timeNanos;
+    mValues[index] = value;
+    mCount++;
+  }
+
+  /**
+   * Forget all readings.
+   */
+  public synchronized void clear() {
+    mCount = 0;
+    mStalenessNanos = NO_READING;
+  }
+
+  /**
+   * @return the number of readings added
+   */
+  public synchronized long getCount() {
+    return mCount;
+  }
+
+  /**
+   * @return the latest reading, NaN if there is none
+   */
+  public synchronized float getLatest() {
+    return (mCount > 0) ? mValues[(int) ((mCount - 1) & HISTORY_MASK)] : Float.NaN;
+  }
+
+  /**
+   * The value of the stream at timeNanos (System.nanoTime()). Its
+   * staleness is then getStalenessNanos().
+   *
+   * @return the value, NaN if there are no readings
+   */
+  public synchronized float valueAt(long timeNanos) {
+    int n = (int) Math.min(mCount, HISTORY_LENGTH);
+    if (n == 0) {
+      mStalenessNanos = NO_READING;
+      return Float.NaN;
+    }
+
+    // newest reading at or before timeNanos
+    long j = mCount - 1;
+    long oldest = mCount - n;
+    while (j >= oldest && mTimesNanos[(int) (j & HISTORY_MASK)] > timeNanos) {
+      j--;
+    }
+
+    // before the oldest reading kept
+    if (j < oldest) {
+      int first = (int) (oldest & HISTORY_MASK);
+      mStalenessNanos = mTimesNanos[first] - timeNanos;
+      return mValues[first];
+    }
+
+    int i1 = (int) (j & HISTORY_MASK);
+    long t1 = mTimesNanos[i1];
+    float v1 = mValues[i1];
+
+    // after the latest reading
+    if (j == mCount - 1) {
+      mStalenessNanos = timeNanos - t1;
+      if (n < 2) {
+        return v1;
+      }
+
+      int i0 = (int) ((j - 1) & HISTORY_MASK);
+      long interval = t1 - mTimesNanos[i0];
+      long horizon = Math.min(Math.min(timeNanos - t1, interval), mMaxExtrapolationNs);
+      if (interval <= 0 || horizon <= 0) {
+        return v1;
+      }
+      return v1 + (v1 - mValues[i0]) * ((float) horizon / (float) interval);
+    }
+
+    // between two readings
+    int i2 = (int) ((j + 1) & HISTORY_MASK);
+    long t2 = mTimesNanos[i2];
+    mStalenessNanos = Math.min(timeNanos - t1, t2 - timeNanos);
+    if (t2 == t1) {
+      return mValues[i2];
+    }
+    return v1 + (mValues[i2] - v1) * ((float) (timeNanos - t1) / (float) (t2 - t1));
+  }
+
+  /**
+   * @return the staleness of the latest valueAt(), in nanoseconds:
+   *         the time from the nearest reading its value was computed
+   *         from, NO_READING if there were no readings
+   */
+  public synchronized long getStalenessNanos() {
+    return mStalenessNanos;
+  }
+
+  /**
+   * @return the staleness of the latest valueAt(), in seconds, infinite
+   *         if there were no readings
+   */
+  public synchronized float getStaleness() {
+    return (mStalenessNanos == NO_READING) ? Float.POSITIVE_INFINITY : mStalenessNanos / 1000000000.f;
+  }
+} // public class SensorStream
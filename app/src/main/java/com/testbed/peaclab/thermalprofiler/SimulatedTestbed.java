@@ -0,0 +1,289 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ *
+ * TYPE: SimulatedTestbed
+ *
+ *  Stand-in for the IFC6410 sysfs, for running and benchmarking the
+ *  sampling and control loops without the board, e.g. on another Android
+ *  device or the emulator. It creates the thermal_zone and cpufreq
+ *  attributes the testbed uses (see SysfsRoot) in a temporary directory,
+ *  and keeps them up to date from a thermal RC model in its own thread:
+ *
+ *    core i:   C_CORE dT_i/dt = P_i - (T_i - T_pkg) / R_CORE_TO_PKG
+ *    package:  C_PKG dT_pkg/dt = sum_i (T_i - T_pkg) / R_CORE_TO_PKG
+ *                                - (T_pkg - T_amb) / R_PKG_TO_AIR
+ *
+ *  P_i is the CorePowerModel's power at the core's frequency and load
+ *  while it is online, 0 otherwise. The load of each core is set with
+ *  setLoad().
+ *
+ *  Writes to online and scaling_setspeed take effect (and show up in
+ *  scaling_cur_freq) at the next model step. Unlike the real sysfs, the
+ *  cpufreq files of an offline core stay in place.
+ *
+ *  The simulator itself has no Android dependencies, but the loops do
+ *  (SensorRecorder and ThermalManagement log with android.util.Log, and
+ *  record to external storage), so they still need an Android runtime.
+ *  Executive.SIMULATED_TESTBED runs the app's loops on a simulated
+ *  testbed, loaded by the Benchmark button:
+ *
+ *    SimulatedTestbed testbed = new SimulatedTestbed(25.f);
+ *    testbed.start();
+ *    SensorRecorder sensors = new SensorRecorder(null, 25.f, testbed.getSysfsRoot());
+ *    ThermalManagement management = new ThermalManagement(sensors, testbed.getSysfsRoot());
+ *    ...
+ *    testbed.terminate();
+ *
+ */
+public class SimulatedTestbed extends Thread {
+
+  // model step, in milliseconds
+  public static final int MODEL_STEP_MS = 10;
+
+  // thermal RC model parameters
+  private static final float C_CORE = 0.2f; // J/K
+  private static final float C_PKG = 10.f; // J/K
+  private static final float R_CORE_TO_PKG = 2.f; // K/W
+  private static final float R_PKG_TO_AIR = 6.f; // K/W
+
+  private final SysfsRoot mSysfsRoot;
+  private final float mAmbientTemperature;
+
+  // simulated attributes, per core
+  private final SysfsFile[] mTemperatureFiles;
+  private final SysfsFile[] mEnableFiles;
+  private final SysfsFile[] mSetFrequencyFiles;
+  private final SysfsFile[] mGetFrequencyFiles;
+
+  // model state
+  private final float[] mCoreTemperatures;
+  private float mPackageTemperature;
+  private final boolean[] mActiveCores;
+  private final int[] mCoreFrequencies;
+  private final float[] mCoreLoads;
+
+  // formatted attribute values
+  private final byte[] mValueBuffer;
+
+  private volatile boolean mTerminate;
+
+  // what stopped the model thread, if it failed
+  private volatile IOException mError;
+
+  /**
+   * Create the simulated sysfs in a new temporary directory, with all
+   * cores online at the highest frequency and at ambient temperature.
+   */
+  public SimulatedTestbed(float ambientTemp) throws IOException {
+    File root = File.createTempFile("sysfs", "");
+    if (!root.delete() || !root.mkdir()) {
+      throw new IOException("unable to create " + root);
+    }
+
+    mSysfsRoot = new SysfsRoot(root);
+    mAmbientTemperature = ambientTemp;
+
+    mTemperatureFiles = new SysfsFile[Testbed.TESTBED_NUM_CPU_CORES];
+    mEnableFiles = new SysfsFile[Testbed.TESTBED_NUM_CPU_CORES];
+    mSetFrequencyFiles = new SysfsFile[Testbed.TESTBED_NUM_CPU_CORES];
+    mGetFrequencyFiles = new SysfsFile[Testbed.TESTBED_NUM_CPU_CORES];
+
+    mCoreTemperatures = new float[Testbed.TESTBED_NUM_CPU_CORES];
+    mPackageTemperature = ambientTemp;
+    mActiveCores = new boolean[Testbed.TESTBED_NUM_CPU_CORES];
+    mCoreFrequencies = new int[Testbed.TESTBED_NUM_CPU_CORES];
+    mCoreLoads = new float[Testbed.TESTBED_NUM_CPU_CORES];
+
+    mValueBuffer = new byte[16];
+
+    mTerminate = false;
+    mError = null;
+
+    int maxFrequency = Testbed.TESTBED_CPU_FREQUENCY[Testbed.TESTBED_CPU_FREQ_INDEX_MAX];
+    for (int i = 0; i < Testbed.TESTBED_NUM_CPU_CORES; i++) {
+      mCoreTemperatures[i] = ambientTemp;
+      mActiveCores[i] = true;
+      mCoreFrequencies[i] = maxFrequency;
+      mCoreLoads[i] = 0.f;
+
+      mTemperatureFiles[i] = createAttribute(mSysfsRoot.getCoreTemperatureFilename(i), Math.round(ambientTemp));
+      mEnableFiles[i] = createAttribute(mSysfsRoot.getCoreEnableFilename(i), 1);
+      mSetFrequencyFiles[i] = createAttribute(mSysfsRoot.getCoreSetFrequencyFilename(i), maxFrequency);
+      mGetFrequencyFiles[i] = createAttribute(mSysfsRoot.getCoreGetFrequencyFilename(i), maxFrequency);
+    }
+  }
+
+  public SysfsRoot getSysfsRoot() {
+    return mSysfsRoot;
+  }
+
+  /**
+   * Set the utilization of a core, from 0 (idle) to 1 (fully loaded).
+   */
+  public synchronized void setLoad(int core, float load) {
+    if (core < Testbed.TESTBED_CPU_CORE_INDEX_MIN || core > Testbed.TESTBED_CPU_CORE_INDEX_MAX) {
+      throw new IllegalArgumentException("invalid core index " + core);
+    }
+    mCoreLoads[core] = (load < 0.f) ? 0.f : ((load > 1.f) ? 1.f : load);
+  }
+
+  public synchronized void setLoads(float load) {
+    for (int i = Testbed.TESTBED_CPU_CORE_INDEX_MIN; i <= Testbed.TESTBED_CPU_CORE_INDEX_MAX; i++) {
+      setLoad(i, load);
+    }
+  }
+
+  public synchronized float getCoreTemperature(int core) {
+    return mCoreTemperatures[core];
+  }
+
+  public synchronized float getPackageTemperature() {
+    return mPackageTemperature;
+  }
+
+  public void terminate() {
+    mTerminate = true;
+  }
+
+  /**
+   * @return the error that stopped the model, null while it runs
+   *         (or if it was terminated)
+   */
+  public IOException getError() {
+    return mError;
+  }
+
+  @Override
+  public void run() {
+    long deadline = System.nanoTime();
+
+    try {
+      while (!mTerminate) {
+        step(MODEL_STEP_MS / 1000.f);
+
+        deadline += MODEL_STEP_MS * 1000000L;
+        long sleepTime = (deadline - System.nanoTime()) / 1000000L;
+        if (sleepTime > 0) {
+          Thread.sleep(sleepTime);
+        } else {
+          // we fell behind, don't try to catch up
+          deadline = System.nanoTime();
+        }
+      }
+    } catch (InterruptedException e) {
+      // terminate
+    } catch (IOException e) {
+      mError = e;
+    } finally {
+      delete();
+    }
+  }
+
+  /**
+   * Advance the model by dt seconds, and update the attributes.
+   */
+  public synchronized void step(float dt) throws IOException {
+    float heatToPackage = 0.f;
+
+    for (int i = 0; i < Testbed.TESTBED_NUM_CPU_CORES; i++) {
+      // apply the settings written by the thermal management
+      boolean active = (mEnableFiles[i].readInt() > 0);
+      if (active != mActiveCores[i]) {
+        mActiveCores[i] = active;
+        writeAttribute(mEnableFiles[i], active ? 1 : 0);
+      }
+
+      int frequency = mSetFrequencyFiles[i].readInt();
+      if (frequency != mCoreFrequencies[i] && isValidFrequency(frequency)) {
+        mCoreFrequencies[i] = frequency;
+        writeAttribute(mGetFrequencyFiles[i], frequency);
+      }
+
+      // heat up the core
+      float power = mActiveCores[i] ? CorePowerModel.corePower(mCoreFrequencies[i], mCoreLoads[i]) : 0.f;
+
+      float heatOut = (mCoreTemperatures[i] - mPackageTemperature) / R_CORE_TO_PKG;
+      heatToPackage += heatOut;
+
+      int previousTemperature = Math.round(mCoreTemperatures[i]);
+      mCoreTemperatures[i] += (power - heatOut) * dt / C_CORE;
+
+      // the thermal zones report whole degrees
+      int temperature = Math.round(mCoreTemperatures[i]);
+      if (temperature != previousTemperature) {
+        writeAttribute(mTemperatureFiles[i], temperature);
+      }
+    }
+
+    mPackageTemperature += (heatToPackage - (mPackageTemperature - mAmbientTemperature) / R_PKG_TO_AIR) * dt / C_PKG;
+  }
+
+  /**
+   * Close and remove the simulated sysfs.
+   */
+  public synchronized void delete() {
+    for (int i = 0; i < Testbed.TESTBED_NUM_CPU_CORES; i++) {
+      close(mTemperatureFiles[i]);
+      close(mEnableFiles[i]);
+      close(mSetFrequencyFiles[i]);
+      close(mGetFrequencyFiles[i]);
+    }
+    deleteRecursive(mSysfsRoot.getRoot());
+  }
+
+  private static boolean isValidFrequency(int frequency) {
+    for (int f : Testbed.TESTBED_CPU_FREQUENCY) {
+      if (f == frequency) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private SysfsFile createAttribute(String filename, int value) throws IOException {
+    File file = new File(filename);
+    if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+      throw new IOException("unable to create " + file.getParent());
+    }
+
+    FileOutputStream fout = new FileOutputStream(file);
+    fout.close();
+
+    SysfsFile attribute = new SysfsFile(filename, true);
+    writeAttribute(attribute, value);
+    return attribute;
+  }
+
+  // write "<value>\n" at offset 0. a shorter value leaves stale bytes
+  // after the newline, which readers of sysfs attributes ignore.
+  private void writeAttribute(SysfsFile attribute, int value) throws IOException {
+    int length = CsvRecordFormatter.appendLong(mValueBuffer, 0, value);
+    mValueBuffer[length++] = '\n';
+    attribute.write(mValueBuffer, 0, length);
+  }
+
+  private static void close(SysfsFile file) {
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        // already gone
+      }
+    }
+  }
+
+  private static void deleteRecursive(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursive(child);
+      }
+    }
+    file.delete();
+  }
+} // public class SimulatedTestbed
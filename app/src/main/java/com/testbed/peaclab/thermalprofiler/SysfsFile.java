@@ -0,0 +1,130 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * TYPE: SysfsFile
+ *
+ *  Keeps a sysfs attribute (e.g. /sys/class/thermal/thermal_zone7/temp)
+ *  open for repeated reads. Every read is a single positioned read
+ *  (pread) at offset 0 into a preallocated buffer, and the ASCII
+ *  integer is parsed in place, so sampling a sensor allocates nothing.
+ *
+ *  Writable attributes (e.g. cpufreq/scaling_setspeed) are written the
+ *  same way, with a single positioned write (pwrite) at offset 0 from a
+ *  preallocated buffer.
+ *
+ */
+public class SysfsFile {
+
+  // sysfs attributes we read hold a single integer, e.g. "45\n" or "1242000\n"
+  private static final int SYSFS_READ_BUFFER_LENGTH = 32; // in bytes
+  private static final int SYSFS_WRITE_BUFFER_LENGTH = 32; // in bytes
+
+  private final String mFilename;
+  private final RandomAccessFile mFile;
+  private final FileChannel mChannel;
+  private final ByteBuffer mReadBuffer;
+  private final ByteBuffer mWriteBuffer;
+
+  public SysfsFile(String filename) throws FileNotFoundException {
+    this(filename, false);
+  }
+
+  public SysfsFile(String filename, boolean writable) throws FileNotFoundException {
+    mFilename = filename;
+    mFile = new RandomAccessFile(filename, writable ? "rw" : "r");
+    mChannel = mFile.getChannel();
+    mReadBuffer = ByteBuffer.allocateDirect(SYSFS_READ_BUFFER_LENGTH);
+    mWriteBuffer = writable ? ByteBuffer.allocateDirect(SYSFS_WRITE_BUFFER_LENGTH) : null;
+  }
+
+  public String getFilename() {
+    return mFilename;
+  }
+
+  public boolean isWritable() {
+    return (mWriteBuffer != null);
+  }
+
+  /**
+   * Read the attribute and parse its contents as a decimal integer.
+   * Leading whitespace and an optional sign are accepted, parsing stops
+   * at the first non-digit (usually the trailing newline).
+   */
+  public int readInt() throws IOException {
+    // sysfs regenerates the attribute on every read from offset 0,
+    // so no seek (or re-open) is needed between samples
+    mReadBuffer.clear();
+    int bytesRead = mChannel.read(mReadBuffer, 0);
+
+    int i = 0;
+    while (i < bytesRead && isWhitespace(mReadBuffer.get(i))) {
+      i++;
+    }
+
+    boolean negative = false;
+    if (i < bytesRead && (mReadBuffer.get(i) == '-' || mReadBuffer.get(i) == '+')) {
+      negative = (mReadBuffer.get(i) == '-');
+      i++;
+    }
+
+    int start = i;
+    int value = 0;
+    while (i < bytesRead) {
+      int digit = mReadBuffer.get(i) - '0';
+      if (digit < 0 || digit > 9) {
+        break;
+      }
+      value = (value * 10) + digit;
+      i++;
+    }
+
+    if (i == start) {
+      throw new IOException("unable to parse integer from " + mFilename);
+    }
+
+    return negative ? -value : value;
+  }
+
+  /**
+   * Write a preformatted value (e.g. "1242000") to the attribute.
+   * The file must have been opened writable.
+   */
+  public void write(byte[] value) throws IOException {
+    write(value, 0, value.length);
+  }
+
+  public void write(byte[] value, int offset, int length) throws IOException {
+    if (mWriteBuffer == null) {
+      throw new IOException(mFilename + " is not open for writing");
+    }
+    if (length > SYSFS_WRITE_BUFFER_LENGTH) {
+      throw new IOException("value too long for " + mFilename);
+    }
+
+    mWriteBuffer.clear();
+    mWriteBuffer.put(value, offset, length);
+    mWriteBuffer.flip();
+
+    // sysfs takes the whole value from a single write at offset 0
+    int bytesWritten = mChannel.write(mWriteBuffer, 0);
+    if (bytesWritten != length) {
+      throw new IOException("short write to " + mFilename);
+    }
+  }
+
+  public void close() throws IOException {
+    mChannel.close();
+    mFile.close();
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return (b == ' ' || b == '\t' || b == '\n' || b == '\r');
+  }
+} // public class SysfsFile
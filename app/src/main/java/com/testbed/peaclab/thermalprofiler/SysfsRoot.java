@@ -0,0 +1,75 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.File;
+
+/**
+ *
+ * TYPE: SysfsRoot
+ *
+ *  Locations of the sysfs attributes the testbed reads and writes, as
+ *  laid out on the IFC6410 board, below a root directory. DEVICE is the
+ *  real /sys of the board. A SimulatedTestbed generates the same layout
+ *  in a temporary directory, so SensorRecorder and ThermalManagement can
+ *  run against it off the board.
+ *
+ */
+public class SysfsRoot {
+
+  public static final SysfsRoot DEVICE = new SysfsRoot(new File("/"));
+
+  // map a CPU core to a thermal sensor
+  private static final String[] CPU_CORE_THERMAL_SENSOR_PATHS = {
+    "sys/class/thermal/thermal_zone7/temp",
+    "sys/class/thermal/thermal_zone8/temp",
+    "sys/class/thermal/thermal_zone9/temp",
+    "sys/class/thermal/thermal_zone10/temp"
+  };
+
+  private static final String CPU_PATH = "sys/devices/system/cpu/cpu";
+  private static final String CPU_ENABLE_PATH = "/online";
+  private static final String CPU_SET_FREQUENCY_PATH = "/cpufreq/scaling_setspeed";
+  private static final String CPU_GET_FREQUENCY_PATH = "/cpufreq/scaling_cur_freq";
+
+  private final File mRoot;
+
+  public SysfsRoot(File root) {
+    mRoot = root;
+  }
+
+  public File getRoot() {
+    return mRoot;
+  }
+
+  public String getCoreTemperatureFilename(int core) {
+    return filename(CPU_CORE_THERMAL_SENSOR_PATHS[checkCore(core)]);
+  }
+
+  public String getCoreEnableFilename(int core) {
+    return filename(CPU_PATH + checkCore(core) + CPU_ENABLE_PATH);
+  }
+
+  public String getCoreSetFrequencyFilename(int core) {
+    return filename(CPU_PATH + checkCore(core) + CPU_SET_FREQUENCY_PATH);
+  }
+
+  public String getCoreGetFrequencyFilename(int core) {
+    return filename(CPU_PATH + checkCore(core) + CPU_GET_FREQUENCY_PATH);
+  }
+
+  @Override
+  public String toString() {
+    return mRoot.getPath();
+  }
+
+  private String filename(String path) {
+    return new File(mRoot, path).getPath();
+  }
+
+  private static int checkCore(int core) {
+    if (core < Testbed.TESTBED_CPU_CORE_INDEX_MIN || core > Testbed.TESTBED_CPU_CORE_INDEX_MAX) {
+      throw new IllegalArgumentException("core argument (" + core + ") outside of allowed range [" +
+          Testbed.TESTBED_CPU_CORE_INDEX_MIN + "," + Testbed.TESTBED_CPU_CORE_INDEX_MAX + "]");
+    }
+    return core;
+  }
+} // public class SysfsRoot
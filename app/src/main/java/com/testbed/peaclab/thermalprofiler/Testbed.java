@@ -1,7 +1,5 @@
 package com.testbed.peaclab.thermalprofiler;
 
-import android.util.Log;
-
 public abstract class Testbed {
   public static final int TESTBED_NUM_CPU_CORES = 4;
   
@@ -36,42 +34,4 @@ public abstract class Testbed {
   public static final int FREQ_1134MHZ = 7;
   public static final int FREQ_1242MHZ = 8;
   
-  public static int freq2index(int freqHz) {
-    int index = 0;
-    switch (freqHz) {
-    case 384000:
-      index = FREQ_384MHZ;
-      break;
-    case 486000:
-      index = FREQ_486MHZ;
-      break;
-    case 594000:
-      index = FREQ_594MHZ;
-      break;
-    case 702000:
-      index = FREQ_702MHZ;
-      break;
-    case 810000:
-      index = FREQ_810MHZ;
-      break;
-    case 918000:
-      index = FREQ_918MHZ;
-      break;
-    case 1026000:
-      index = FREQ_1026MHZ;
-      break;
-    case 1134000:
-      index = FREQ_1134MHZ;
-      break;
-    case 1242000:
-      index = FREQ_1242MHZ;
-      break;
-    default:
-      index = FREQ_384MHZ;
-      Log.w("freq2index", "bad argument: " + freqHz);
-      break;
-    }
-    return index;
-  }
-  
 }
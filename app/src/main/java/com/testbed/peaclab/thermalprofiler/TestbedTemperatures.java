@@ -1,7 +1,12 @@
 package com.testbed.peaclab.thermalprofiler;
 
 public class TestbedTemperatures {
+  
+  // most SensorBus channels in a sample
+  public static final int MAX_CHANNELS = 8;
+  
   public long timestamp = 0;
+  public long timestampNanos = 0; // System.nanoTime() when the sample was taken
   public short temperatureCore0 = 0;
   public short temperatureCore1 = 0;
   public short temperatureCore2 = 0;
@@ -11,10 +16,23 @@ public class TestbedTemperatures {
   public float energyPCM = 0.f;
   public float R_si = 0.f;
   public float R_pcm = 0.f;
+  public float sampleTime = 0.f; // time since the previous sample, in seconds
+  
+  // how far, in seconds, the thermocouple temperature is from the
+  // reading it was interpolated from (see SensorStream). infinite if
+  // there was no reading.
+  public float thermocoupleStaleness = Float.POSITIVE_INFINITY;
+  
+  // temperatures of the SensorBus channels, the first channelCount are valid.
+  // NaN for a channel that has no reading.
+  public int channelCount = 0;
+  public final float[] channelTemperatures = new float[MAX_CHANNELS];
+  public final float[] channelStaleness = new float[MAX_CHANNELS];
   
   
   public TestbedTemperatures() {
     timestamp = 0;
+    timestampNanos = 0;
     temperatureCore0 = 0;
     temperatureCore1 = 0;
     temperatureCore2 = 0;
@@ -24,6 +42,9 @@ public class TestbedTemperatures {
     energyPCM = 0.f;
     R_si = 0.f;
     R_pcm = 0.f;
+    sampleTime = 0.f;
+    thermocoupleStaleness = Float.POSITIVE_INFINITY;
+    channelCount = 0;
   }
   
   public TestbedTemperatures(
@@ -53,6 +74,7 @@ public class TestbedTemperatures {
   
   public void copy(TestbedTemperatures copy) {
     this.timestamp = copy.timestamp;
+    this.timestampNanos = copy.timestampNanos;
     this.temperatureCore0 = copy.temperatureCore0;
     this.temperatureCore1 = copy.temperatureCore1;
     this.temperatureCore2 = copy.temperatureCore2;
@@ -62,5 +84,26 @@ public class TestbedTemperatures {
     this.energyPCM = copy.energyPCM;
     this.R_si = copy.R_si;
     this.R_pcm = copy.R_pcm;
+    this.sampleTime = copy.sampleTime;
+    this.thermocoupleStaleness = copy.thermocoupleStaleness;
+    this.channelCount = copy.channelCount;
+    System.arraycopy(copy.channelTemperatures, 0, this.channelTemperatures, 0, copy.channelCount);
+    System.arraycopy(copy.channelStaleness, 0, this.channelStaleness, 0, copy.channelCount);
+  }
+  
+  /**
+   * @return the temperature of a SensorBus channel, NaN if the sample
+   *         has no such channel
+   */
+  public float getChannelTemperature(int channel) {
+    return (channel < channelCount) ? channelTemperatures[channel] : Float.NaN;
+  }
+  
+  /**
+   * @return the staleness of a SensorBus channel, in seconds, infinite if
+   *         the sample has no such channel
+   */
+  public float getChannelStaleness(int channel) {
+    return (channel < channelCount) ? channelStaleness[channel] : Float.POSITIVE_INFINITY;
   }
 }
@@ -0,0 +1,182 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ *
+ * TYPE: TestbedTemperaturesChannel
+ *
+ *  Lock-free publication of the latest TestbedTemperatures sample from a
+ *  single writer (the SensorRecorder thread) to any number of readers,
+ *  implemented as a sequence lock.
+ *
+ *  The writer never blocks: it makes the sequence number odd, writes the
+ *  fields and makes the sequence number even again. A reader copies the
+ *  fields and retries if the sequence number was odd or changed while it
+ *  was copying, so it always gets a consistent (torn-free) copy without
+ *  taking a lock. All fields are volatile, which orders the field accesses
+ *  against the sequence number under the Java memory model.
+ *
+ *  Readers that want to react to every new sample can block in
+ *  awaitSample(). The writer only takes a lock (to wake them up) while
+ *  somebody is waiting.
+ *
+ */
+public class TestbedTemperaturesChannel {
+
+  // even while the fields are consistent, odd while they are written.
+  // sequence / 2 is the number of samples published.
+  private volatile long mSequence;
+
+  private volatile long mTimestamp;
+  private volatile long mTimestampNanos;
+  private volatile short mTemperatureCore0;
+  private volatile short mTemperatureCore1;
+  private volatile short mTemperatureCore2;
+  private volatile short mTemperatureCore3;
+  private volatile float mTemperatureThermocouple;
+  private volatile float mTemperatureAmbient;
+  private volatile float mEnergyPCM;
+  private volatile float mR_si;
+  private volatile float mR_pcm;
+  private volatile float mSampleTime;
+  private volatile float mThermocoupleStaleness;
+  private volatile int mChannelCount;
+  private final AtomicIntegerArray mChannelTemperatures; // float bits, volatile elements
+  private final AtomicIntegerArray mChannelStaleness;
+
+  // readers blocked in awaitSample(), guarded by mWaitLock
+  private final Object mWaitLock;
+  private volatile int mWaiters;
+
+  public TestbedTemperaturesChannel() {
+    mSequence = 0;
+    mChannelCount = 0;
+    mChannelTemperatures = new AtomicIntegerArray(TestbedTemperatures.MAX_CHANNELS);
+    mChannelStaleness = new AtomicIntegerArray(TestbedTemperatures.MAX_CHANNELS);
+    mWaitLock = new Object();
+    mWaiters = 0;
+  }
+
+  /**
+   * Publish a new sample. Must only be called from a single thread.
+   */
+  public void publish(TestbedTemperatures sample) {
+    long sequence = mSequence;
+    mSequence = sequence + 1;
+
+    mTimestamp = sample.timestamp;
+    mTimestampNanos = sample.timestampNanos;
+    mTemperatureCore0 = sample.temperatureCore0;
+    mTemperatureCore1 = sample.temperatureCore1;
+    mTemperatureCore2 = sample.temperatureCore2;
+    mTemperatureCore3 = sample.temperatureCore3;
+    mTemperatureThermocouple = sample.temperatureThermocouple;
+    mTemperatureAmbient = sample.temperatureAmbient;
+    mEnergyPCM = sample.energyPCM;
+    mR_si = sample.R_si;
+    mR_pcm = sample.R_pcm;
+    mSampleTime = sample.sampleTime;
+    mThermocoupleStaleness = sample.thermocoupleStaleness;
+    mChannelCount = sample.channelCount;
+    for (int i = 0; i < sample.channelCount; i++) {
+      mChannelTemperatures.set(i, Float.floatToRawIntBits(sample.channelTemperatures[i]));
+      mChannelStaleness.set(i, Float.floatToRawIntBits(sample.channelStaleness[i]));
+    }
+
+    mSequence = sequence + 2;
+
+    // wake up readers waiting for this sample
+    if (mWaiters > 0) {
+      synchronized (mWaitLock) {
+        mWaitLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Copy the latest sample into an existing TestbedTemperatures.
+   *
+   * @return the sample number of the copied sample (0 if nothing has
+   *         been published yet)
+   */
+  public long read(TestbedTemperatures sample) {
+    long before, after;
+
+    do {
+      before = mSequence;
+      while ((before & 1) != 0) {
+        // the writer is in the middle of publishing, it is never
+        // preempted for long, so just spin
+        before = mSequence;
+      }
+
+      sample.timestamp = mTimestamp;
+      sample.timestampNanos = mTimestampNanos;
+      sample.temperatureCore0 = mTemperatureCore0;
+      sample.temperatureCore1 = mTemperatureCore1;
+      sample.temperatureCore2 = mTemperatureCore2;
+      sample.temperatureCore3 = mTemperatureCore3;
+      sample.temperatureThermocouple = mTemperatureThermocouple;
+      sample.temperatureAmbient = mTemperatureAmbient;
+      sample.energyPCM = mEnergyPCM;
+      sample.R_si = mR_si;
+      sample.R_pcm = mR_pcm;
+      sample.sampleTime = mSampleTime;
+      sample.thermocoupleStaleness = mThermocoupleStaleness;
+      int channelCount = mChannelCount;
+      for (int i = 0; i < channelCount; i++) {
+        sample.channelTemperatures[i] = Float.intBitsToFloat(mChannelTemperatures.get(i));
+        sample.channelStaleness[i] = Float.intBitsToFloat(mChannelStaleness.get(i));
+      }
+      sample.channelCount = channelCount;
+
+      after = mSequence;
+    } while (before != after);
+
+    return after >> 1;
+  }
+
+  /**
+   * Number of samples published so far. Cheap way for a reader to
+   * tell whether there is a new sample.
+   */
+  public long getSampleNumber() {
+    return mSequence >> 1;
+  }
+
+  /**
+   * Block until a sample newer than sampleNumber has been published,
+   * or until the timeout expires.
+   *
+   * @return the latest sample number, which is still sampleNumber
+   *         (or lower) if the wait timed out
+   */
+  public long awaitSample(long sampleNumber, long timeoutMs) throws InterruptedException {
+    long latest = getSampleNumber();
+    if (latest > sampleNumber) {
+      return latest;
+    }
+
+    long deadline = System.nanoTime() + timeoutMs * 1000000L;
+
+    synchronized (mWaitLock) {
+      // register before checking the sequence number again, so
+      // that either we see the new sample, or the writer sees us
+      mWaiters++;
+      try {
+        while ((latest = getSampleNumber()) <= sampleNumber) {
+          long remainingMs = (deadline - System.nanoTime()) / 1000000L;
+          if (remainingMs <= 0) {
+            break;
+          }
+          mWaitLock.wait(remainingMs);
+        }
+      } finally {
+        mWaiters--;
+      }
+    }
+
+    return latest;
+  }
+} // public class TestbedTemperaturesChannel
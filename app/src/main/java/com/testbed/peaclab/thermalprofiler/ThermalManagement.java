@@ -1,12 +1,7 @@
 package com.testbed.peaclab.thermalprofiler;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Locale;
-import java.util.Scanner;
 
 import android.util.Log;
 
@@ -14,50 +9,37 @@ public class ThermalManagement extends Thread {
 
   private static final String TAG = "ThermalManagement";
 
-  // file handles to manage CPU cores
-  private static final String[] CPU_ENABLE_FILENAMES = {
-    "/sys/devices/system/cpu/cpu0/online",
-    "/sys/devices/system/cpu/cpu1/online",
-    "/sys/devices/system/cpu/cpu2/online",
-    "/sys/devices/system/cpu/cpu3/online"    
-  };
-  
-  private static final String[] CPU_SET_FREQUENCY_FILENAMES = {
-    "/sys/devices/system/cpu/cpu0/cpufreq/scaling_setspeed",
-    "/sys/devices/system/cpu/cpu1/cpufreq/scaling_setspeed",
-    "/sys/devices/system/cpu/cpu2/cpufreq/scaling_setspeed",
-    "/sys/devices/system/cpu/cpu3/cpufreq/scaling_setspeed"
-  };
-  
-  private static final String[] CPU_GET_FREQUENCY_FILENAMES = {
-    "/sys/devices/system/cpu/cpu0/cpufreq/scaling_cur_freq",
-    "/sys/devices/system/cpu/cpu1/cpufreq/scaling_cur_freq",
-    "/sys/devices/system/cpu/cpu2/cpufreq/scaling_cur_freq",
-    "/sys/devices/system/cpu/cpu3/cpufreq/scaling_cur_freq"
-  };
-
-  
-  //private static final float R_PCM_TO_AIR = 53.3f; // base assumptions
-  //private static final float R_SI_TO_PCM = 0.0686f;
   
-  private static final float R_PCM_TO_AIR = 10.267f; // units K/W. relates power going out of PCM
-  private static final float R_SI_TO_PCM = 0.4060f; // units K/W. relates power going into PCM
+  // the thermal resistances, and the PCM energy, are modeled by the
+  // SensorRecorder's PcmEnergyModel
   
-  private static final float PCM_ENERGY_COOLDOWN_FRACTION = 0.10f;
+  // policy thresholds, shared with the offline tools (see PolicyThresholds)
+  private static final float PCM_ENERGY_THROTTLE_FRACTION = PolicyThresholds.PCM_ENERGY_THROTTLE_FRACTION;
+  private static final float PCM_ENERGY_COOLDOWN_FRACTION = PolicyThresholds.PCM_ENERGY_COOLDOWN_FRACTION;
   
   
   // temperature thresholds
-  private static final float T_CPU_CRITICAL = 80.f;
-  private static final float T_CPU_COOLDOWN = 70.f;
+  private static final float T_CPU_CRITICAL = PolicyThresholds.T_CPU_CRITICAL;
+  private static final float T_CPU_COOLDOWN = PolicyThresholds.T_CPU_COOLDOWN;
+  
+  // the control loop runs once per new sensor sample. stop waiting
+  // after this long, in milliseconds, to check for termination.
+  private static final int SAMPLE_WAIT_TIMEOUT_MS = 1000;
+  private static final int THERMAL_CONTROL_DELAY_MS = PolicyThresholds.THERMAL_CONTROL_DELAY_MS;
+  private static final int CRITICAL_EXTRA_DELAY_MS = PolicyThresholds.CRITICAL_EXTRA_DELAY_MS;
   
-  // set the update interval, in milliseconds
-  private static final int SAMPLING_INTERVAL_MS = 1000;
-  private static final int THERMAL_CONTROL_DELAY_MS = 3000;
+  // the predictive policy re-plans more often: its predictions already
+  // hold the frequency for ThermalPredictor.HORIZON_S
+  private static final int PREDICTIVE_CONTROL_DELAY_MS = 500;
+  
+  // time for a batch of core settings to take effect before they are verified
+  private static final int ACTUATION_SETTLE_DELAY_MS = 2;
   
 
   private SensorRecorder mSensors;
   
   private volatile boolean mManagementEnabled;
+  private volatile boolean mPredictivePolicy;
   private long mTimeOfLastUpdate;
   
   private volatile boolean mTerminate;
@@ -67,6 +49,7 @@ public class ThermalManagement extends Thread {
   
   // policy fields
   private boolean mPolicy_Cooldown;
+  private ThermalPredictor mPredictor;
   
   // running avg of CPU temp.
   private int mNumCpuSamples;
@@ -80,10 +63,26 @@ public class ThermalManagement extends Thread {
   private volatile boolean[] mActiveCores;
   private volatile int[] mCoreFrequencies;
   
+  // open sysfs handles to manage each core (online,
+  // cpufreq/scaling_setspeed and cpufreq/scaling_cur_freq)
+  private CpuCoreActuator[] mCoreActuators;
+  
+  // sensing-to-actuation latency of the control loop
+  private ControlLatency mControlLatency;
+  
   public ThermalManagement(SensorRecorder sensors) {
+    this(sensors, SysfsRoot.DEVICE);
+  }
+  
+  /**
+   * Manage the cores below another sysfs root, e.g. that of
+   * a SimulatedTestbed.
+   */
+  public ThermalManagement(SensorRecorder sensors, SysfsRoot sysfsRoot) {
     mSensors = sensors;
     
     mManagementEnabled = Executive.THERMAL_MANAGEMENT_ENABLED;
+    mPredictivePolicy = Executive.PREDICTIVE_THERMAL_MANAGEMENT;
     mTimeOfLastUpdate = 0;
     
     mTerminate = false;
@@ -92,6 +91,7 @@ public class ThermalManagement extends Thread {
     mPreviousTestbedTemperatures = new TestbedTemperatures();
     
     mPolicy_Cooldown = false;
+    mPredictor = new ThermalPredictor();
     
     mNumCpuSamples = 0;
     mCpuSampleIndex = 0;
@@ -103,6 +103,14 @@ public class ThermalManagement extends Thread {
     
     mActiveCores = new boolean[Testbed.TESTBED_NUM_CPU_CORES];
     mCoreFrequencies = new int[Testbed.TESTBED_NUM_CPU_CORES];
+    
+    mCoreActuators = new CpuCoreActuator[Testbed.TESTBED_NUM_CPU_CORES];
+    for (int i = 0; i < Testbed.TESTBED_NUM_CPU_CORES; i++) {
+      mCoreActuators[i] = new CpuCoreActuator(sysfsRoot.getCoreEnableFilename(i),
+          sysfsRoot.getCoreSetFrequencyFilename(i), sysfsRoot.getCoreGetFrequencyFilename(i));
+    }
+    
+    mControlLatency = new ControlLatency();
   }
   
   public void run() {
@@ -112,10 +120,14 @@ public class ThermalManagement extends Thread {
     float airTemperature = 0.f;
     
     long currentTime = System.currentTimeMillis();
-    long previousTime = currentTime;
-    long endTime = 0;
-    long sleepTime = 0;
-    float deltaTime = 0.f;
+    
+    // recorder's time of the latest sample the predictor observed
+    long observedTimeNanos = 0;
+    boolean observed = false;
+    
+    long sampleNumber = 0;
+    long previousSampleNumber = 0;
+    long timeOfLastUpdate = 0;
     
     Log.v(TAG, "Starting ThermalManagement thread");
     
@@ -139,15 +151,25 @@ public class ThermalManagement extends Thread {
     
     
     while (!mTerminate) {
+      // wait for the SensorRecorder to take a new sample
+      try {
+        if (mSensors.awaitSample(previousSampleNumber, SAMPLE_WAIT_TIMEOUT_MS) <= previousSampleNumber) {
+          continue;
+        }
+      } catch (InterruptedException e) {
+        Log.e(e.getClass().toString(), e.getMessage(), e);
+        continue;
+      }
+      
       // timestamp
       currentTime = System.currentTimeMillis();
-      deltaTime = (float)(currentTime - previousTime) / 1000.f;
       
       // get ambient air temperature
       airTemperature = mSensors.getAmbientTemperature();
       
-      // get current testbed temperatures
-      mCurrentTestbedTemperatures = mSensors.getCurrentTestbedTemperatures();
+      // get current testbed temperatures. if we were too slow
+      // for the recorder, we only see the latest sample.
+      sampleNumber = mSensors.getCurrentTestbedTemperatures(mCurrentTestbedTemperatures);
       pcmTemperature = mCurrentTestbedTemperatures.temperatureThermocouple;
       
       // calculate average core temperature
@@ -172,6 +194,21 @@ public class ThermalManagement extends Thread {
       //------------------------------------------------------------------------
       float pcmEnergy = mCurrentTestbedTemperatures.energyPCM;
       
+      // keep the predictor's state and power estimate current, whether
+      // or not the predictive policy is in use. the kernel's governor may
+      // change the frequency at any time, so read it every sample, and
+      // skip samples at an unknown frequency (e.g. core 0 offline). the
+      // time between the observed samples is taken from the recorder's
+      // nanosecond timestamps, not from when this thread woke up.
+      int freqIndex = readFrequencyIndex(0);
+      if (freqIndex >= 0) {
+        float sampleTime = observed ?
+            (mCurrentTestbedTemperatures.timestampNanos - observedTimeNanos) / 1000000000.f : 0.f;
+        mPredictor.observe(cpuTemperature, mCurrentTestbedTemperatures, freqIndex, sampleTime);
+        observedTimeNanos = mCurrentTestbedTemperatures.timestampNanos;
+        observed = true;
+      }
+      
       /*
       Log.v(TAG, "CPU T=" + String.format("%.2f", cpuTemperature) + " (Av " + String.format("%.2f", cpuAvgTemp) + ")" +
           ", PCM T=" + String.format("%.2f", pcmTemperature) + 
@@ -185,24 +222,24 @@ public class ThermalManagement extends Thread {
       // any changes in active cores or frequency settings cannot
       // occur in quick succession.
       //------------------------------------------------------------------------
-      if (mManagementEnabled && (currentTime > (mTimeOfLastUpdate + THERMAL_CONTROL_DELAY_MS))) {
-        updateThermalManagement(cpuTemperature, pcmEnergy);
+      if (mManagementEnabled) {
+        timeOfLastUpdate = mTimeOfLastUpdate;
+        int controlDelay = mPredictivePolicy ? PREDICTIVE_CONTROL_DELAY_MS : THERMAL_CONTROL_DELAY_MS;
+        if (currentTime > (mTimeOfLastUpdate + controlDelay)) {
+          updateThermalManagement(cpuTemperature, pcmEnergy);
+        }
+        
+        // policies set a new update time whenever they actuate
+        recordLatency(sampleNumber - previousSampleNumber - 1, mTimeOfLastUpdate != timeOfLastUpdate);
       }
       
       // wrap-up
       mPreviousTestbedTemperatures.copy(mCurrentTestbedTemperatures);
-      previousTime = currentTime;
-      
-      endTime = System.currentTimeMillis();
-      sleepTime = SAMPLING_INTERVAL_MS - (endTime - currentTime);
-      sleepTime = (sleepTime < 0) ? 0 : sleepTime;
-      
-      // sleep
-      try {
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
-        Log.e(e.getClass().toString(), e.getMessage(), e);
-      }
+      previousSampleNumber = sampleNumber;
+    }
+    
+    for (CpuCoreActuator actuator : mCoreActuators) {
+      actuator.close();
     }
     
     Log.v(TAG, "Terminated ThermalManagement thread");
@@ -215,7 +252,12 @@ public class ThermalManagement extends Thread {
     //policy_throttleCores(cpuTemp); // baseline+, improved sprint
     //policy_throttleFrequency1(cpuTemp); // baseline++, temp dvfs
     
-    policy_throttleFrequency2(pcmEnergy, cpuTemp, 0.75f); // pcm-aware
+    if (mPredictivePolicy) {
+      policy_predictiveFrequency(cpuTemp); // model-predictive dvfs
+      return;
+    }
+    
+    policy_throttleFrequency2(pcmEnergy, cpuTemp, PCM_ENERGY_THROTTLE_FRACTION); // pcm-aware
   }
   
   
@@ -227,11 +269,7 @@ public class ThermalManagement extends Thread {
       Log.i(tag, "Policy triggered (CPU T = " + String.format("%.1f", cpuTemp) + " C) Turning off cores ...");
       
       // deactivate all but one core
-      for (int i = (Testbed.TESTBED_CPU_CORE_INDEX_MIN + 1); i <= Testbed.TESTBED_CPU_CORE_INDEX_MAX; i++) {
-        if (!setCoreActive(i, false)) {
-          Log.w(tag, "Error deactivating core " + i);
-        }
-      }
+      setSecondaryCoresActive(tag, false);
 
     }
   }
@@ -245,11 +283,7 @@ public class ThermalManagement extends Thread {
       Log.i(tag, "Policy triggered CRIT (CPU T = " + String.format("%.1f", cpuTemp) + " C) Turning off cores ...");
       
       // deactivate all but one core
-      for (int i = (Testbed.TESTBED_CPU_CORE_INDEX_MIN + 1); i <= Testbed.TESTBED_CPU_CORE_INDEX_MAX; i++) {
-        if (!setCoreActive(i, false)) {
-          Log.w(tag, "Error deactivating core " + i);
-        }
-      }
+      setSecondaryCoresActive(tag, false);
     }
     
     if (mPolicy_Cooldown && cpuTemp < T_CPU_COOLDOWN) {
@@ -258,11 +292,7 @@ public class ThermalManagement extends Thread {
       Log.i(tag, "Policy triggered COOL (CPU T = " + String.format("%.1f", cpuTemp) + " C) Turning on cores ...");
       
       // reactivate all cores
-      for (int i = (Testbed.TESTBED_CPU_CORE_INDEX_MIN + 1); i <= Testbed.TESTBED_CPU_CORE_INDEX_MAX; i++) {
-        if (!setCoreActive(i, true)) {
-          Log.w(tag, "Error deactivating core " + i);
-        }
-      }
+      setSecondaryCoresActive(tag, true);
     }
   }
   
@@ -271,10 +301,10 @@ public class ThermalManagement extends Thread {
     
     if (cpuTemp > T_CPU_CRITICAL) {
       mPolicy_Cooldown = true;
-      mTimeOfLastUpdate = System.currentTimeMillis() + 2000;
+      mTimeOfLastUpdate = System.currentTimeMillis() + CRITICAL_EXTRA_DELAY_MS;
       Log.i(tag, "Policy triggered CRIT (CPU T = " + String.format("%.1f", cpuTemp) + " C) Throttle down cores ...");
       
-      int throttleToFrequency = Testbed.freq2index(mCoreFrequencies[0]) - 1;
+      int throttleToFrequency = freq2index(mCoreFrequencies[0]) - 1;
       throttleToFrequency = (throttleToFrequency < 0) ? 0 : throttleToFrequency;
       setCoreFrequencies(throttleToFrequency);
     }
@@ -313,7 +343,7 @@ public class ThermalManagement extends Thread {
       mTimeOfLastUpdate = System.currentTimeMillis();
       Log.i(tag, "Policy triggered CRIT (PCM E = " + String.format("%.1f", pcmEnergy) + " J) Throttling down cores ...");
       
-      int throttleToFrequency = Testbed.freq2index(mCoreFrequencies[0]) - 1;
+      int throttleToFrequency = freq2index(mCoreFrequencies[0]) - 1;
       throttleToFrequency = (throttleToFrequency < 0) ? 0 : throttleToFrequency;
       setCoreFrequencies(throttleToFrequency);
     }
@@ -321,10 +351,10 @@ public class ThermalManagement extends Thread {
     // also trigger policy if CPU temp reaches critical
     //
     if (cpuTemp > T_CPU_CRITICAL) {
-      mTimeOfLastUpdate = System.currentTimeMillis() + 2000;
+      mTimeOfLastUpdate = System.currentTimeMillis() + CRITICAL_EXTRA_DELAY_MS;
       Log.i(tag, "Policy triggered CRIT (CPU T = " + String.format("%.1f", cpuTemp) + " C) Throttle down cores ...");
       
-      int throttleToFrequency = Testbed.freq2index(mCoreFrequencies[0]) - 1;
+      int throttleToFrequency = freq2index(mCoreFrequencies[0]) - 1;
       throttleToFrequency = (throttleToFrequency < 0) ? 0 : throttleToFrequency;
       setCoreFrequencies(throttleToFrequency);
     }
@@ -341,14 +371,95 @@ public class ThermalManagement extends Thread {
     }
   }
   
+  private void policy_predictiveFrequency(float cpuTemp) {
+    String tag = "policy_predictiveFrequency";
+    
+    // jump straight to the highest frequency that the RC model predicts
+    // keeps the CPU under critical, and the PCM under the energy at which
+    // policy_throttleFrequency2 would throttle
+    //
+    int currentFrequency = readFrequencyIndex(0);
+    if (currentFrequency < 0) {
+      currentFrequency = Testbed.TESTBED_CPU_FREQ_INDEX_MIN;
+    }
+    int throttleToFrequency = mPredictor.chooseFrequency(T_CPU_CRITICAL,
+        SensorRecorder.PCM_ENERGY_MAX * PCM_ENERGY_THROTTLE_FRACTION, currentFrequency);
+    
+    if (throttleToFrequency != currentFrequency) {
+      mTimeOfLastUpdate = System.currentTimeMillis();
+      Log.i(tag, "Policy triggered (CPU T = " + String.format("%.1f", cpuTemp) + " C, P = " +
+          String.format("%.2f", mPredictor.getPowerEstimate()) + " W) Frequency " +
+          currentFrequency + " -> " + throttleToFrequency + " ...");
+      
+      setCoreFrequencies(throttleToFrequency);
+    }
+  }
+  
+  // index of a core's current frequency in Testbed.TESTBED_CPU_FREQUENCY,
+  // read through its cached handle. -1, without logging, if the core is
+  // offline or at a frequency not in the table: this runs every sample.
+  private int readFrequencyIndex(int core) {
+    int freqHz;
+    try {
+      freqHz = mCoreActuators[core].readFrequency();
+    } catch (IOException e) {
+      return -1;
+    }
+    for (int i = 0; i < Testbed.TESTBED_CPU_FREQUENCY.length; i++) {
+      if (Testbed.TESTBED_CPU_FREQUENCY[i] == freqHz) {
+        return i;
+      }
+    }
+    return -1;
+  }
+  
+  // index of a frequency in Testbed.TESTBED_CPU_FREQUENCY
+  private static int freq2index(int freqHz) {
+    int index = 0;
+    switch (freqHz) {
+    case 384000:
+      index = Testbed.FREQ_384MHZ;
+      break;
+    case 486000:
+      index = Testbed.FREQ_486MHZ;
+      break;
+    case 594000:
+      index = Testbed.FREQ_594MHZ;
+      break;
+    case 702000:
+      index = Testbed.FREQ_702MHZ;
+      break;
+    case 810000:
+      index = Testbed.FREQ_810MHZ;
+      break;
+    case 918000:
+      index = Testbed.FREQ_918MHZ;
+      break;
+    case 1026000:
+      index = Testbed.FREQ_1026MHZ;
+      break;
+    case 1134000:
+      index = Testbed.FREQ_1134MHZ;
+      break;
+    case 1242000:
+      index = Testbed.FREQ_1242MHZ;
+      break;
+    default:
+      index = Testbed.FREQ_384MHZ;
+      Log.w("freq2index", "bad argument: " + freqHz);
+      break;
+    }
+    return index;
+  }
+  
   public void checkActiveCores() {
     final String tag = "checkActiveCores";
     
     for (int i = 0; i < Testbed.TESTBED_NUM_CPU_CORES; i++) {
       try {
         checkActiveCore(i);
-      } catch (FileNotFoundException e) {
-        Log.w(tag, "Core " + i + " FileNotFoundException");
+      } catch (IOException e) {
+        Log.w(tag, "Core " + i + " " + e.getClass().getSimpleName());
         Log.e(e.getClass().toString(), e.getMessage(), e);
       }
     }
@@ -356,20 +467,11 @@ public class ThermalManagement extends Thread {
     Log.v(tag, "Cores Active: " + mActiveCores[0] + "," + mActiveCores[1] + "," + mActiveCores[2] + "," + mActiveCores[3]);
   }
   
-  public void checkActiveCore(int core) throws FileNotFoundException {
-    // use a Scanner to read the file
-    Scanner sc = null;
-    int cpuEnabledInt = 0;
-    
-    // attempt to read contents
-    sc = new Scanner(new File(CPU_ENABLE_FILENAMES[core]));
-    cpuEnabledInt = sc.nextInt();
-    sc.close();
-    
-    mActiveCores[core] = (cpuEnabledInt > 0);
+  public void checkActiveCore(int core) throws IOException {
+    mActiveCores[core] = mCoreActuators[core].readActive();
   }
   
-  public void checkCoreFrequency(int core) throws FileNotFoundException {
+  public void checkCoreFrequency(int core) throws IOException {
     final String tag = "checkCoreFrequency";
     
     // check input args
@@ -379,15 +481,11 @@ public class ThermalManagement extends Thread {
       return;
     }
     
-    // use a Scanner to read the file
-    Scanner sc = null;
     int cpuFrequencyInt = 0;
     
     // attempt to read CPU frequency, if the core is active
     if (mActiveCores[core]) {
-      sc = new Scanner(new File(CPU_GET_FREQUENCY_FILENAMES[core]));
-      cpuFrequencyInt = sc.nextInt();
-      sc.close();
+      cpuFrequencyInt = mCoreActuators[core].readFrequency();
     } 
     
     // otherwise return 0
@@ -398,7 +496,7 @@ public class ThermalManagement extends Thread {
     mCoreFrequencies[core] = cpuFrequencyInt;
   }
   
-  public void checkCoreFrequencies() throws IllegalArgumentException, FileNotFoundException {
+  public void checkCoreFrequencies() throws IllegalArgumentException, IOException {
     for (int i = 0; i < Testbed.TESTBED_NUM_CPU_CORES; i++) {
       checkCoreFrequency(i);
     }
@@ -424,15 +522,8 @@ public class ThermalManagement extends Thread {
     }
     
     // write a 1 to active core, 0 to deactivate
-    String coreSetting = enabled ? "1" : "0"; 
-    byte[] writeBuffer = coreSetting.getBytes();
-    
-    // attempt to write
     try {
-      FileOutputStream fout = new FileOutputStream(CPU_ENABLE_FILENAMES[core]);
-      fout.write(writeBuffer);
-      fout.flush();
-      fout.close();
+      mCoreActuators[core].setActive(enabled);
     } catch (IOException e) {
       Log.e(e.getClass().toString(), e.getMessage(), e);
     }
@@ -441,7 +532,7 @@ public class ThermalManagement extends Thread {
     // can't check the state of the core, return false.
     try {
       checkActiveCore(core);
-    } catch (FileNotFoundException e) {
+    } catch (IOException e) {
       Log.e(e.getClass().toString(), e.getMessage(), e);
     }
     success = (mActiveCores[core] == enabled);
@@ -490,15 +581,8 @@ public class ThermalManagement extends Thread {
     }
     
     // write frequency value
-    String freqSetting = String.format(Locale.US, "%d", Testbed.TESTBED_CPU_FREQUENCY[freqIndex]); 
-    byte[] writeBuffer = freqSetting.getBytes();
-    
-    // attempt to write
     try {
-      FileOutputStream fout = new FileOutputStream(CPU_SET_FREQUENCY_FILENAMES[core]);
-      fout.write(writeBuffer);
-      fout.flush();
-      fout.close();
+      mCoreActuators[core].setFrequency(freqIndex);
     } catch (IOException e) {
       Log.e(e.getClass().toString(), e.getMessage(), e);
     }
@@ -506,7 +590,7 @@ public class ThermalManagement extends Thread {
     // update core frequency
     try {
       checkCoreFrequency(core);
-    } catch (FileNotFoundException e) {
+    } catch (IOException e) {
       Log.e(e.getClass().toString(), e.getMessage(), e);
     }
     success = (mCoreFrequencies[core] == Testbed.TESTBED_CPU_FREQUENCY[freqIndex]);
@@ -520,20 +604,141 @@ public class ThermalManagement extends Thread {
   }
   
   public boolean setCoreFrequencies(int freqIndex) {
-    boolean success = true;
+    int result = 0;
     
-    int i = 0;
     try {
-      for (i = Testbed.TESTBED_CPU_CORE_INDEX_MIN; i <= Testbed.TESTBED_CPU_CORE_INDEX_MAX; i++) {
-        if (mActiveCores[i]) {
-          success = success && setCoreFrequency(i, freqIndex);
-        }
-      }
+      result = applyFrequencyPlan(new FrequencyPlan().setFrequencies(freqIndex));
     } catch (Throwable e) {
       Log.e(e.getClass().toString(), e.getMessage(), e);
     }
     
-    return success;
+    return (result == FrequencyPlan.ALL_CORES);
+  }
+  
+  // turn all cores but the first on or off in one batch
+  private void setSecondaryCoresActive(String tag, boolean enabled) {
+    FrequencyPlan plan = new FrequencyPlan();
+    for (int i = (Testbed.TESTBED_CPU_CORE_INDEX_MIN + 1); i <= Testbed.TESTBED_CPU_CORE_INDEX_MAX; i++) {
+      plan.setActive(i, enabled);
+    }
+    
+    int result = applyFrequencyPlan(plan);
+    for (int i = (Testbed.TESTBED_CPU_CORE_INDEX_MIN + 1); i <= Testbed.TESTBED_CPU_CORE_INDEX_MAX; i++) {
+      if ((result & (1 << i)) == 0) {
+        Log.w(tag, "Error " + (enabled ? "activating" : "deactivating") + " core " + i);
+      }
+    }
+  }
+  
+  /**
+   * Apply the online states and frequencies of a plan to all cores in
+   * one batch: all online writes, then all frequency writes back to back,
+   * then a single settle delay, then all read-backs. If the plan brings
+   * cores online and sets their frequencies, there is also a settle delay
+   * before the frequency writes, for their new cpufreq directories.
+   * 
+   * Frequencies are only written to cores that are online once the
+   * plan's online states have been applied, other cores keep theirs.
+   * 
+   * @return bitmap with bit i set if core i ended up as planned
+   *         (FrequencyPlan.ALL_CORES if the whole plan succeeded)
+   */
+  public int applyFrequencyPlan(FrequencyPlan plan) {
+    final String tag = "applyFrequencyPlan";
+    
+    /*
+     * NOTE: You should ensure the CPU file handles have
+     * read/write permissions for ALL users. This may not
+     * be the case, and only root can enable write
+     * permissions (do this outside of this app).
+     */
+    
+    int failed = 0;
+    int activeWrites = 0;
+    int frequencyWrites = 0;
+    boolean newFrequencyDirs = false;
+    
+    // bring cores online/offline first, the cpufreq
+    // files of a core only exist while it is online
+    for (int i = Testbed.TESTBED_CPU_CORE_INDEX_MIN; i <= Testbed.TESTBED_CPU_CORE_INDEX_MAX; i++) {
+      if (plan.changesActive(i)) {
+        try {
+          mCoreActuators[i].setActive(plan.getActive(i));
+          activeWrites |= (1 << i);
+          newFrequencyDirs |= (plan.getActive(i) && plan.changesFrequency(i));
+        } catch (IOException e) {
+          Log.e(e.getClass().toString(), e.getMessage(), e);
+          failed |= (1 << i);
+        }
+      }
+    }
+    
+    // the actuators re-open their cpufreq files after setActive(), give
+    // the kernel time to create them for the cores coming online
+    if (newFrequencyDirs) {
+      try {
+        Thread.sleep(ACTUATION_SETTLE_DELAY_MS);
+      } catch (InterruptedException e) {
+        Log.e(e.getClass().toString(), e.getMessage(), e);
+      }
+    }
+    
+    for (int i = Testbed.TESTBED_CPU_CORE_INDEX_MIN; i <= Testbed.TESTBED_CPU_CORE_INDEX_MAX; i++) {
+      boolean active = plan.changesActive(i) ? plan.getActive(i) : mActiveCores[i];
+      if (plan.changesFrequency(i) && active && (failed & (1 << i)) == 0) {
+        try {
+          mCoreActuators[i].setFrequency(plan.getFrequencyIndex(i));
+          frequencyWrites |= (1 << i);
+        } catch (IOException e) {
+          Log.e(e.getClass().toString(), e.getMessage(), e);
+          failed |= (1 << i);
+        }
+      }
+    }
+    
+    // let all settings take effect at once
+    if ((activeWrites | frequencyWrites) != 0) {
+      try {
+        Thread.sleep(ACTUATION_SETTLE_DELAY_MS);
+      } catch (InterruptedException e) {
+        Log.e(e.getClass().toString(), e.getMessage(), e);
+      }
+    }
+    
+    // read back what we wrote. if we can't check
+    // the state of a core, count it as failed.
+    int result = FrequencyPlan.ALL_CORES & ~failed;
+    for (int i = Testbed.TESTBED_CPU_CORE_INDEX_MIN; i <= Testbed.TESTBED_CPU_CORE_INDEX_MAX; i++) {
+      if (((activeWrites | frequencyWrites) & (1 << i)) == 0) {
+        continue;
+      }
+      
+      try {
+        // cpu0 may have no online file, only read it back if we wrote it
+        if ((activeWrites & (1 << i)) != 0) {
+          checkActiveCore(i);
+        }
+        checkCoreFrequency(i);
+        
+        if ((activeWrites & (1 << i)) != 0 && mActiveCores[i] != plan.getActive(i)) {
+          result &= ~(1 << i);
+        }
+        if ((frequencyWrites & (1 << i)) != 0 && 
+            mCoreFrequencies[i] != Testbed.TESTBED_CPU_FREQUENCY[plan.getFrequencyIndex(i)]) {
+          result &= ~(1 << i);
+        }
+      } catch (IOException e) {
+        Log.e(e.getClass().toString(), e.getMessage(), e);
+        result &= ~(1 << i);
+      }
+    }
+    
+    Log.v(tag, "Applied plan (" + ((result == FrequencyPlan.ALL_CORES) ? "success" : "failed") + 
+        ", result = 0x" + Integer.toHexString(result) + 
+        ", cores active = " + mActiveCores[0] + "," + mActiveCores[1] + "," + mActiveCores[2] + "," + mActiveCores[3] + 
+        ", freqs = " + mCoreFrequencies[0] + "," + mCoreFrequencies[1] + "," + mCoreFrequencies[2] + "," + mCoreFrequencies[3] + ")");
+    
+    return result;
   }
 
   public synchronized boolean getManagementEnabled() {
@@ -541,9 +746,43 @@ public class ThermalManagement extends Thread {
   }
 
   public synchronized void setManagementEnabled(boolean enable) {
+    if (mManagementEnabled && !enable) {
+      Log.i(TAG, "Control latency: " + mControlLatency);
+    }
+    if (!mManagementEnabled && enable) {
+      mControlLatency.clear();
+    }
+    
     this.mManagementEnabled = enable;
     mPolicy_Cooldown = false;
   }
+  
+  public synchronized boolean getPredictivePolicy() {
+    return mPredictivePolicy;
+  }
+  
+  /**
+   * Use policy_predictiveFrequency instead of policy_throttleFrequency2.
+   */
+  public synchronized void setPredictivePolicy(boolean predictive) {
+    mPredictivePolicy = predictive;
+  }
+  
+  /**
+   * Copy the control loop latency statistics, gathered since thermal
+   * management was last enabled.
+   */
+  public synchronized void getControlLatency(ControlLatency latency) {
+    latency.copy(mControlLatency);
+  }
+  
+  // latency from taking the current sample until now, when the policy is done with it
+  private synchronized void recordLatency(long skippedSamples, boolean actuated) {
+    long latency = System.nanoTime() - mCurrentTestbedTemperatures.timestampNanos;
+    
+    mControlLatency.skippedSamples += (skippedSamples > 0) ? skippedSamples : 0;
+    mControlLatency.addEvaluation(latency, actuated);
+  }
 
   public synchronized boolean getTerminate() {
     return mTerminate;
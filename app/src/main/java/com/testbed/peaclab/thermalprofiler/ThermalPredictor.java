@@ -0,0 +1,197 @@
+package com.testbed.peaclab.thermalprofiler;
+
+/**
+ *
+ * TYPE: ThermalPredictor
+ *
+ *  Fast forward simulation of the testbed's CPU -> PCM -> air RC network,
+ *  for the predictive policy of the ThermalManagement. Each sample,
+ *  observe() updates the state (CPU, PCM and air temperatures, and the
+ *  energy stored in the PCM) and an estimate of the power of the cores at
+ *  the highest frequency:
+ *
+ *    P = (T_cpu - T_pcm) / R_si + C_CPU dT_cpu/dt
+ *
+ *  scaled from the current frequency with the CorePowerModel (which is
+ *  not calibrated), and low-pass filtered over POWER_FILTER_S.
+ *
+ *  chooseFrequency() then simulates HORIZON_S ahead, at each frequency
+ *  index from the highest down, holding the frequency:
+ *
+ *    C_CPU dT_cpu/dt = P(f) - (T_cpu - T_pcm) / R_si
+ *    q               = (T_cpu - T_pcm) / R_si - (T_pcm - T_air) / R_pcm
+ *
+ *  where q melts (freezes) the PCM, as stored energy, while it is at the
+ *  melting temperature and neither frozen nor fully melted, and heats it
+ *  (C_PCM dT_pcm/dt = q) otherwise. R_si and R_pcm are those of the
+ *  PcmEnergyModel at the latest sample, held over the horizon. The
+ *  highest frequency that keeps the CPU temperature and the PCM energy
+ *  under their limits over the whole horizon is chosen.
+ *
+ *  A prediction of all frequencies is at most TESTBED_CPU_FREQUENCY.length
+ *  * HORIZON_STEPS explicit Euler steps of a few flops, with no
+ *  allocations: about 10 us on a workstation, cheap enough to run every
+ *  sample on the board (see HotPathBenchmark).
+ *
+ *  Not thread safe.
+ *
+ */
+public class ThermalPredictor {
+
+  // prediction horizon, and its steps
+  public static final float HORIZON_S = 5.f;
+  public static final int HORIZON_STEPS = 100;
+
+  // heat capacities, in J/K. estimates: the die and spreader, and the
+  // sensible heat of the PCM and its enclosure (the latent heat is
+  // PcmEnergyModel's energyMax).
+  private static final float C_CPU = 2.f;
+  private static final float C_PCM = 10.f;
+
+  // time constant of the power estimate, in seconds
+  private static final float POWER_FILTER_S = 1.f;
+
+  private final PcmEnergyModel.Parameters mParameters;
+
+  // cores' power at each frequency, relative to the highest
+  private final float[] mRelativePower;
+
+  // state at the latest observe()
+  private float mCpuTemperature;
+  private float mPcmTemperature;
+  private float mAirTemperature;
+  private float mEnergy;
+  private float mR_si;
+  private float mR_pcm;
+
+  // estimated power at the highest frequency, in W. NaN until two
+  // samples have been observed.
+  private float mPower;
+  private boolean mObserved;
+
+  public ThermalPredictor() {
+    this(new PcmEnergyModel.Parameters());
+  }
+
+  public ThermalPredictor(PcmEnergyModel.Parameters parameters) {
+    mParameters = new PcmEnergyModel.Parameters(parameters);
+    mRelativePower = new float[Testbed.TESTBED_CPU_FREQUENCY.length];
+    for (int i = 0; i < mRelativePower.length; i++) {
+      mRelativePower[i] = CorePowerModel.relativePower(Testbed.TESTBED_CPU_FREQUENCY[i]);
+    }
+    this.reset();
+  }
+
+  /**
+   * Forget the state and the power estimate.
+   */
+  public void reset() {
+    mCpuTemperature = Float.NaN;
+    mPcmTemperature = Float.NaN;
+    mAirTemperature = Float.NaN;
+    mEnergy = 0.f;
+    mR_si = PcmEnergyModel.FIXED_R_SI;
+    mR_pcm = PcmEnergyModel.FIXED_R_PCM;
+    mPower = Float.NaN;
+    mObserved = false;
+  }
+
+  /**
+   * Update the state with a sample, taken sampleTime seconds after the
+   * previous one while the cores ran at freqIndex.
+   */
+  public void observe(float cpuTemperature, TestbedTemperatures sample, int freqIndex, float sampleTime) {
+    // the resistances of the sample, unless the model has not run yet
+    if (sample.R_si > 0.f && sample.R_pcm > 0.f) {
+      mR_si = sample.R_si;
+      mR_pcm = sample.R_pcm;
+    }
+
+    float pcmTemperature = sample.temperatureThermocouple;
+    if (mObserved && sampleTime > 0.f) {
+      float power = (cpuTemperature - pcmTemperature) / mR_si +
+          C_CPU * (cpuTemperature - mCpuTemperature) / sampleTime;
+      power /= mRelativePower[freqIndex];
+
+      if (!Float.isNaN(power)) {
+        if (Float.isNaN(mPower)) {
+          mPower = power;
+        } else {
+          mPower += (power - mPower) * sampleTime / (POWER_FILTER_S + sampleTime);
+        }
+      }
+    }
+
+    mCpuTemperature = cpuTemperature;
+    mPcmTemperature = pcmTemperature;
+    mAirTemperature = sample.temperatureAmbient;
+    mEnergy = sample.energyPCM;
+    mObserved = true;
+  }
+
+  /**
+   * @return the estimated power of the cores at the highest frequency,
+   *         in W, NaN before two samples
+   */
+  public float getPowerEstimate() {
+    return mPower;
+  }
+
+  /**
+   * @return the highest frequency index at which the CPU temperature
+   *         stays at or under maxCpuTemperature, and the PCM energy at or
+   *         under maxEnergy, for HORIZON_S. The lowest index if there is
+   *         none, and defaultIndex before the power can be estimated.
+   */
+  public int chooseFrequency(float maxCpuTemperature, float maxEnergy, int defaultIndex) {
+    if (Float.isNaN(mPower) || Float.isNaN(mPcmTemperature) || Float.isNaN(mAirTemperature)) {
+      return defaultIndex;
+    }
+
+    for (int i = Testbed.TESTBED_CPU_FREQ_INDEX_MAX; i > Testbed.TESTBED_CPU_FREQ_INDEX_MIN; i--) {
+      if (isSafe(i, maxCpuTemperature, maxEnergy)) {
+        return i;
+      }
+    }
+    return Testbed.TESTBED_CPU_FREQ_INDEX_MIN;
+  }
+
+  /**
+   * @return true if the limits hold for HORIZON_S at freqIndex
+   */
+  public boolean isSafe(int freqIndex, float maxCpuTemperature, float maxEnergy) {
+    final float dt = HORIZON_S / HORIZON_STEPS;
+    final float power = mPower * mRelativePower[freqIndex];
+    final float meltingTemp = mParameters.meltingTemp;
+    final float energyMax = mParameters.energyMax;
+    final float air = mAirTemperature;
+    final float R_si = mR_si;
+    final float R_pcm = mR_pcm;
+
+    float cpu = mCpuTemperature;
+    float pcm = mPcmTemperature;
+    float energy = mEnergy;
+
+    for (int step = 0; step < HORIZON_STEPS; step++) {
+      float pwrIn = (cpu - pcm) / R_si;
+      float netPower = pwrIn - (pcm - air) / R_pcm;
+
+      // latent while melting or freezing, sensible otherwise
+      if (pcm >= meltingTemp &&
+          (netPower > 0.f ? energy < energyMax : energy > 0.f)) {
+        energy += netPower * dt;
+      } else {
+        pcm += netPower * dt / C_PCM;
+        if (pcm < meltingTemp) {
+          energy = 0.f;
+        }
+      }
+      cpu += (power - pwrIn) * dt / C_CPU;
+
+      if (cpu > maxCpuTemperature || energy > maxEnergy) {
+        return false;
+      }
+    }
+    return true;
+  }
+} // public class ThermalPredictor
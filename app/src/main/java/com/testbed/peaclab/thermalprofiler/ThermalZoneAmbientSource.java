@@ -0,0 +1,34 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ *
+ * TYPE: ThermalZoneAmbientSource
+ *
+ *  Ambient temperature from a sysfs thermal zone (or any attribute
+ *  holding an integer temperature). The value read is multiplied by
+ *  scale, e.g. 0.001 for zones that report millidegrees.
+ *
+ */
+public class ThermalZoneAmbientSource implements AmbientTemperatureSource {
+
+  private final SysfsFile mFile;
+  private final float mScale;
+
+  public ThermalZoneAmbientSource(String filename, float scale) throws FileNotFoundException {
+    mFile = new SysfsFile(filename);
+    mScale = scale;
+  }
+
+  @Override
+  public float readAmbientTemperature() throws IOException {
+    return mFile.readInt() * mScale;
+  }
+
+  @Override
+  public void close() throws IOException {
+    mFile.close();
+  }
+} // public class ThermalZoneAmbientSource
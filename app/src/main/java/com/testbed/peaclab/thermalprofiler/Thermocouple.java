@@ -44,46 +44,119 @@ public abstract class Thermocouple {
   private static final float TCPL_TEMPERATURE_MIN = 0.f;
   private static final float TCPL_TEMPERATURE_MAX = (float)(TCPL_LOOKUP_TABLE.length - 1);
   
-  public static float voltsToCelsius(float volts) throws IllegalArgumentException, ArrayIndexOutOfBoundsException {
-    float celsius = 0.f;
+  // range check results
+  public static final int VOLTAGE_OK = 0;
+  public static final int VOLTAGE_BELOW_MIN = -1;
+  public static final int VOLTAGE_ABOVE_MAX = 1;
+  
+  // uniform voltage grid over the lookup table, for constant-time
+  // conversion. TCPL_GRID_INDEX[k] is the table segment (lower index)
+  // that holds the grid voltage TCPL_VOLTAGE_MIN + k / TCPL_GRID_SCALE.
+  // the grid is finer than the narrowest table segment, so any voltage
+  // is at most one segment away from the segment of its grid point.
+  private static final int TCPL_GRID_SIZE = 1024;
+  private static final float TCPL_GRID_SCALE = TCPL_GRID_SIZE / (TCPL_VOLTAGE_MAX - TCPL_VOLTAGE_MIN);
+  private static final short[] TCPL_GRID_INDEX = new short[TCPL_GRID_SIZE + 1];
+  
+  // 1 / voltage step of each table segment, in degrees per Volt
+  private static final float[] TCPL_SEGMENT_SCALE = new float[TCPL_LOOKUP_TABLE.length - 1];
+  
+  static {
+    int segment = 0;
+    for (int k = 0; k <= TCPL_GRID_SIZE; k++) {
+      float gridVolts = TCPL_VOLTAGE_MIN + k / TCPL_GRID_SCALE;
+      while (segment < TCPL_SEGMENT_SCALE.length - 1 && TCPL_LOOKUP_TABLE[segment + 1] <= gridVolts) {
+        segment++;
+      }
+      TCPL_GRID_INDEX[k] = (short) segment;
+    }
     
-    // check arguments
+    for (int i = 0; i < TCPL_SEGMENT_SCALE.length; i++) {
+      TCPL_SEGMENT_SCALE[i] = 1.f / (TCPL_LOOKUP_TABLE[i + 1] - TCPL_LOOKUP_TABLE[i]);
+    }
+  }
+  
+  /**
+   * Check a thermocouple voltage against the range of the lookup table.
+   * 
+   * @return VOLTAGE_OK, VOLTAGE_BELOW_MIN or VOLTAGE_ABOVE_MAX
+   */
+  public static int checkVoltage(float volts) {
     if (volts < TCPL_VOLTAGE_MIN) {
-      throw new IllegalArgumentException("voltage below minimum");
+      return VOLTAGE_BELOW_MIN;
     }
-    
     if (volts > TCPL_VOLTAGE_MAX) {
-      throw new IllegalArgumentException("voltage above maximum");
+      return VOLTAGE_ABOVE_MAX;
     }
-    
-    // init
-    int upperIndex = -1;
-    int lowerIndex = -1;
-    
-    // search for voltage that is just above the given voltage
-    for (int i = 0; i < TCPL_LOOKUP_TABLE.length; i++) {
-      if (TCPL_LOOKUP_TABLE[i] >= volts) {
-        upperIndex = i;
-        lowerIndex = upperIndex - 1;
-        break;
-      }
+    return VOLTAGE_OK;
+  }
+  
+  /**
+   * Convert a thermocouple voltage to a temperature difference in Celsius,
+   * in constant time, by linear interpolation of the lookup table.
+   * 
+   * @return the temperature, or NaN if the voltage is out of range (or
+   *         NaN). checkVoltage() tells which way it is out of range.
+   */
+  public static float voltsToCelsius(float volts) {
+    // also catches NaN
+    if (!(volts >= TCPL_VOLTAGE_MIN && volts <= TCPL_VOLTAGE_MAX)) {
+      return Float.NaN;
     }
     
-    // special case: given voltage is first element in array
-    if (upperIndex == 0) {
-      return TCPL_LOOKUP_TABLE[upperIndex];
+    // find the table segment through the grid, then correct for
+    // the voltage being off by at most one segment (or for rounding)
+    int segment = TCPL_GRID_INDEX[(int) ((volts - TCPL_VOLTAGE_MIN) * TCPL_GRID_SCALE)];
+    if (volts > TCPL_LOOKUP_TABLE[segment + 1]) {
+      segment++;
+    } else if (volts < TCPL_LOOKUP_TABLE[segment]) {
+      segment--;
     }
     
-    // detect error condition
-    else if (upperIndex < 0) {
-      throw new ArrayIndexOutOfBoundsException("voltage index returned " + upperIndex);
+    // linear interpolation of temperature
+    return (float) segment + (volts - TCPL_LOOKUP_TABLE[segment]) * TCPL_SEGMENT_SCALE[segment];
+  }
+  
+  /**
+   * Cold-junction compensated conversion: the temperature at the hot
+   * junction of a thermocouple whose cold (reference) junction, at the
+   * meter's terminals, is at coldJunctionCelsius.
+   * 
+   * The thermocouple only measures the difference between its junctions,
+   * and its voltage is not linear in temperature, so the cold junction
+   * temperature is converted to its voltage, added to the measured
+   * voltage, and the sum converted back. (Adding the cold junction
+   * temperature to voltsToCelsius(volts) instead reads 1.5 C high at PCM
+   * temperatures, and fails below the cold junction temperature.)
+   * 
+   * @return the temperature, or NaN if either input is out of range
+   */
+  public static float voltsToCelsius(float volts, float coldJunctionCelsius) {
+    // also catches NaN
+    if (!(coldJunctionCelsius >= TCPL_TEMPERATURE_MIN && coldJunctionCelsius <= TCPL_TEMPERATURE_MAX)) {
+      return Float.NaN;
     }
     
-    // linear interpolation of temperature
-    float fraction = (volts - TCPL_LOOKUP_TABLE[lowerIndex]) / (TCPL_LOOKUP_TABLE[upperIndex] - TCPL_LOOKUP_TABLE[lowerIndex]);
-    celsius = ((float)lowerIndex + fraction);
+    return voltsToCelsius(volts + interpolateVolts(coldJunctionCelsius));
+  }
+  
+  /**
+   * Convert the first count voltages of volts into celsius. Out of range
+   * voltages convert to NaN.
+   * 
+   * @return the number of voltages that were out of range
+   */
+  public static int voltsToCelsius(float[] volts, float[] celsius, int count) {
+    int outOfRange = 0;
     
-    return celsius;
+    for (int i = 0; i < count; i++) {
+      celsius[i] = voltsToCelsius(volts[i]);
+      if (Float.isNaN(celsius[i])) {
+        outOfRange++;
+      }
+    }
+    
+    return outOfRange;
   }
   
   public static float celsiusToVolts(float celsius) throws IllegalArgumentException {
@@ -98,14 +171,19 @@ public abstract class Thermocouple {
       throw new IllegalArgumentException("temperature above maximum");
     }
     
+    volts = interpolateVolts(celsius);
+    
+    return volts;
+  }
+  
+  // celsius must be in range
+  private static float interpolateVolts(float celsius) {
     // init
     float fraction = celsius - (float)(Math.floor(celsius));
     int lowerIndex = (int) celsius;
     int upperIndex = (int) Math.ceil(celsius);
     
     // linear interpolation of voltage
-    volts = TCPL_LOOKUP_TABLE[lowerIndex] + ((TCPL_LOOKUP_TABLE[upperIndex] - TCPL_LOOKUP_TABLE[lowerIndex]) * fraction);
-    
-    return volts;
+    return TCPL_LOOKUP_TABLE[lowerIndex] + ((TCPL_LOOKUP_TABLE[upperIndex] - TCPL_LOOKUP_TABLE[lowerIndex]) * fraction);
   }
 }
@@ -0,0 +1,96 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * TYPE: AgilentMultimeterTest
+ *
+ *  Drives the AgilentMultimeter against a ScriptedSerialPort that answers
+ *  like the U1252A, one command at a time.
+ *
+ */
+public class AgilentMultimeterTest {
+
+  private static final int REPLY_DELAY_MS = 5;
+  private static final int TIMEOUT_MS = 500;
+
+  private ScriptedSerialPort mPort;
+  private AgilentMultimeter mMeter;
+
+  @Before
+  public void setUp() {
+    mPort = new ScriptedSerialPort(REPLY_DELAY_MS);
+    mPort.setReplies(AgilentMultimeter.COMMAND_IDENTIFY, "Agilent Technologies,U1252A,0,1.0");
+    mPort.setReplies(AgilentMultimeter.COMMAND_FETCH, "+1.0000E-03", "+1.1000E-03", "+1.2000E-03");
+    mMeter = new AgilentMultimeter(mPort);
+  }
+
+  @Test
+  public void identify() throws IOException {
+    assertEquals("Agilent Technologies,U1252A,0,1.0", mMeter.identify(TIMEOUT_MS));
+  }
+
+  @Test
+  public void fetchReadsRepliesInOrder() throws IOException {
+    float[] expected = { 1.0e-3f, 1.1e-3f, 1.2e-3f, 1.0e-3f };
+
+    long previousTime = 0;
+    for (int i = 0; i < expected.length; i++) {
+      assertTrue(mMeter.fetch(TIMEOUT_MS));
+      assertEquals(expected[i], mMeter.getReading(), 1e-9f);
+      assertTrue(mMeter.getReadingTimeNanos() > previousTime);
+      previousTime = mMeter.getReadingTimeNanos();
+    }
+    assertEquals(expected.length, mMeter.getReadingCount());
+  }
+
+  @Test
+  public void fetchKeepsPipelineFull() throws IOException {
+    int fetches = 10;
+    for (int i = 0; i < fetches; i++) {
+      assertTrue(mMeter.fetch(TIMEOUT_MS));
+    }
+
+    // every fetch answered one query, the rest are still in flight
+    assertEquals(fetches + AgilentMultimeter.PIPELINE_DEPTH - 1, mPort.getCommandCount());
+  }
+
+  @Test
+  public void identifyAfterFetchSkipsFetchReplies() throws IOException {
+    assertTrue(mMeter.fetch(TIMEOUT_MS));
+    assertEquals("Agilent Technologies,U1252A,0,1.0", mMeter.identify(TIMEOUT_MS));
+
+    // the replies to the drained queries are not taken for readings
+    assertTrue(mMeter.fetch(TIMEOUT_MS));
+    assertEquals(1.2e-3f, mMeter.getReading(), 1e-9f);
+  }
+
+  @Test
+  public void fetchDropsNonNumericReplies() throws IOException {
+    mPort.setReplies(AgilentMultimeter.COMMAND_FETCH, "+1.0000E-03", "*E", "+1.2000E-03");
+
+    assertTrue(mMeter.fetch(TIMEOUT_MS));
+    assertTrue(mMeter.fetch(TIMEOUT_MS));
+    assertEquals(1.2e-3f, mMeter.getReading(), 1e-9f);
+    assertEquals(1, mMeter.getDroppedReplies());
+  }
+
+  @Test
+  public void fetchTimesOutWithoutReplies() throws IOException {
+    mPort.setReplies(AgilentMultimeter.COMMAND_FETCH);
+    mPort.setReplies(AgilentMultimeter.COMMAND_IDENTIFY);
+
+    assertFalse(mMeter.fetch(50));
+    assertNull(mMeter.identify(50));
+    assertEquals(0, mMeter.getReadingCount());
+  }
+} // public class AgilentMultimeterTest
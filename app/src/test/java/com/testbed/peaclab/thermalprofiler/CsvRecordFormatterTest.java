@@ -0,0 +1,72 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ *
+ * TYPE: CsvRecordFormatterTest
+ *
+ *  Checks that the allocation-free number formatting of the
+ *  CsvRecordFormatter gives the same text as String.format.
+ *
+ */
+public class CsvRecordFormatterTest {
+
+  private static final int RANDOM_VALUES = 200000;
+
+  private final byte[] mBuf = new byte[64];
+
+  private String appendFixed(float value, int decimals) {
+    int length = CsvRecordFormatter.appendFixed(mBuf, 0, value, decimals);
+    return new String(mBuf, 0, length);
+  }
+
+  private void assertFormatted(float value, int decimals) {
+    assertEquals(String.format(Locale.US, "%." + decimals + "f", value), appendFixed(value, decimals));
+  }
+
+  @Test
+  public void roundsNearTies() {
+    for (int decimals = 0; decimals <= 6; decimals++) {
+      assertFormatted(1.0005f, decimals);
+      assertFormatted(-1.0005f, decimals);
+      assertFormatted(0.5f, decimals);
+      assertFormatted(2.5f, decimals);
+      assertFormatted(0.125f, decimals);
+      assertFormatted(123456.78f, decimals);
+    }
+  }
+
+  @Test
+  public void formatsSpecialValues() {
+    for (int decimals = 0; decimals <= 6; decimals++) {
+      assertFormatted(0.f, decimals);
+      assertFormatted(-0.f, decimals);
+      assertFormatted(-0.00001f, decimals);
+      assertFormatted(Float.NaN, decimals);
+      assertFormatted(Float.POSITIVE_INFINITY, decimals);
+      assertFormatted(Float.NEGATIVE_INFINITY, decimals);
+      assertFormatted(Float.MAX_VALUE, decimals);
+      assertFormatted(Float.MIN_VALUE, decimals);
+    }
+  }
+
+  @Test
+  public void matchesStringFormatOnRandomValues() {
+    Random random = new Random(42);
+    for (int i = 0; i < RANDOM_VALUES; i++) {
+      int decimals = random.nextInt(7);
+
+      // sensor-like values, values on a decimal grid (often ties),
+      // and arbitrary bit patterns
+      assertFormatted((random.nextFloat() - 0.5f) * 200.f, decimals);
+      assertFormatted((random.nextInt(2000001) - 1000000) / 10000.f, decimals);
+      assertFormatted(Float.intBitsToFloat(random.nextInt()), decimals);
+    }
+  }
+} // public class CsvRecordFormatterTest
@@ -0,0 +1,274 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+/**
+ *
+ * TYPE: ScriptedSerialPort
+ *
+ *  Fake serial port for testing the AgilentMultimeter without the meter
+ *  (see AgilentMultimeterTest).
+ *  Commands written to the port (terminated by LF) are answered from a
+ *  script, with the replies terminated by CR LF:
+ *
+ *    ScriptedSerialPort port = new ScriptedSerialPort(50);
+ *    port.setReplies("*IDN?", "Agilent Technologies,U1252A,0,1.0");
+ *    port.setReplies("FETC?", "+1.0000E-03", "+1.1000E-03");
+ *
+ *  A command with several replies gets them in turn, starting over after
+ *  the last one. Commands without a script get no reply, like the
+ *  configuration commands of the meter.
+ *
+ *  Like the meter, the port answers one command at a time: each reply is
+ *  ready replyDelayMs after its command was written, or after the
+ *  previous reply, whichever is later.
+ *
+ */
+public class ScriptedSerialPort implements UsbSerialPort {
+
+  private static final byte LF = 0x0A;
+  private static final byte CR = 0x0D;
+
+  private final long mReplyDelayNanos;
+
+  private final Map<String, String[]> mReplies;
+  private final Map<String, Integer> mNextReply;
+
+  // the command being written
+  private final StringBuilder mCommand;
+
+  // replies queued, and the System.nanoTime() at which each is ready
+  private final ArrayDeque<byte[]> mPendingReplies;
+  private final ArrayDeque<Long> mPendingReplyTimes;
+  private long mLastReplyTime;
+
+  // the ready reply being read
+  private byte[] mReply;
+  private int mReplyPosition;
+
+  private int mCommandCount;
+  private boolean mOpen;
+
+  public ScriptedSerialPort(int replyDelayMs) {
+    mReplyDelayNanos = replyDelayMs * 1000000L;
+    mReplies = new HashMap<String, String[]>();
+    mNextReply = new HashMap<String, Integer>();
+    mCommand = new StringBuilder();
+    mPendingReplies = new ArrayDeque<byte[]>();
+    mPendingReplyTimes = new ArrayDeque<Long>();
+    mLastReplyTime = 0;
+    mReply = null;
+    mReplyPosition = 0;
+    mCommandCount = 0;
+    mOpen = true;
+  }
+
+  /**
+   * Script the replies to a command.
+   */
+  public synchronized ScriptedSerialPort setReplies(String command, String... replies) {
+    mReplies.put(command, replies);
+    mNextReply.put(command, 0);
+    return this;
+  }
+
+  /**
+   * @return the number of commands written to the port
+   */
+  public synchronized int getCommandCount() {
+    return mCommandCount;
+  }
+
+  @Override
+  public synchronized int write(byte[] src, int timeoutMillis) throws IOException {
+    checkOpen();
+
+    for (byte b : src) {
+      if (b == LF) {
+        receiveCommand(mCommand.toString().trim());
+        mCommand.setLength(0);
+      } else {
+        mCommand.append((char) b);
+      }
+    }
+
+    return src.length;
+  }
+
+  @Override
+  public synchronized int read(byte[] dest, int timeoutMillis) throws IOException {
+    checkOpen();
+
+    long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+
+    // wait for a reply to be ready
+    while (mReply == null) {
+      if (mPendingReplies.isEmpty()) {
+        long waitTime = (deadline - System.nanoTime()) / 1000000L;
+        if (waitTime <= 0) {
+          return 0;
+        }
+        sleep(waitTime);
+        continue;
+      }
+
+      long readyTime = mPendingReplyTimes.peek();
+      long now = System.nanoTime();
+      if (readyTime > deadline) {
+        sleep((deadline - now) / 1000000L);
+        return 0;
+      }
+      if (readyTime > now) {
+        sleep((readyTime - now + 999999L) / 1000000L);
+        continue;
+      }
+
+      mPendingReplyTimes.poll();
+      mReply = mPendingReplies.poll();
+      mReplyPosition = 0;
+    }
+
+    int length = Math.min(dest.length, mReply.length - mReplyPosition);
+    System.arraycopy(mReply, mReplyPosition, dest, 0, length);
+    mReplyPosition += length;
+    if (mReplyPosition == mReply.length) {
+      mReply = null;
+    }
+
+    return length;
+  }
+
+  private void receiveCommand(String command) {
+    mCommandCount++;
+
+    String[] replies = mReplies.get(command);
+    if (replies == null || replies.length == 0) {
+      return;
+    }
+
+    int next = mNextReply.get(command);
+    mNextReply.put(command, (next + 1) % replies.length);
+
+    String reply = replies[next];
+    byte[] bytes = new byte[reply.length() + 2];
+    for (int i = 0; i < reply.length(); i++) {
+      bytes[i] = (byte) reply.charAt(i);
+    }
+    bytes[reply.length()] = CR;
+    bytes[reply.length() + 1] = LF;
+
+    long readyTime = Math.max(System.nanoTime(), mLastReplyTime) + mReplyDelayNanos;
+    mLastReplyTime = readyTime;
+
+    mPendingReplies.add(bytes);
+    mPendingReplyTimes.add(readyTime);
+    notifyAll();
+  }
+
+  // wait without holding the port, so commands can be written meanwhile
+  private void sleep(long timeMs) throws IOException {
+    if (timeMs <= 0) {
+      return;
+    }
+    try {
+      wait(timeMs);
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted");
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (!mOpen) {
+      throw new IOException("Port closed");
+    }
+  }
+
+  @Override
+  public UsbSerialDriver getDriver() {
+    return null;
+  }
+
+  @Override
+  public int getPortNumber() {
+    return 0;
+  }
+
+  @Override
+  public String getSerial() {
+    return null;
+  }
+
+  @Override
+  public synchronized void open(UsbDeviceConnection connection) throws IOException {
+    mOpen = true;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    mOpen = false;
+    notifyAll();
+  }
+
+  @Override
+  public void setParameters(int baudRate, int dataBits, int stopBits, int parity) throws IOException {
+  }
+
+  @Override
+  public boolean getCD() throws IOException {
+    return false;
+  }
+
+  @Override
+  public boolean getCTS() throws IOException {
+    return false;
+  }
+
+  @Override
+  public boolean getDSR() throws IOException {
+    return false;
+  }
+
+  @Override
+  public boolean getDTR() throws IOException {
+    return false;
+  }
+
+  @Override
+  public void setDTR(boolean value) throws IOException {
+  }
+
+  @Override
+  public boolean getRI() throws IOException {
+    return false;
+  }
+
+  @Override
+  public boolean getRTS() throws IOException {
+    return false;
+  }
+
+  @Override
+  public void setRTS(boolean value) throws IOException {
+  }
+
+  @Override
+  public synchronized boolean purgeHwBuffers(boolean flushRX, boolean flushTX) throws IOException {
+    if (flushRX) {
+      mPendingReplies.clear();
+      mPendingReplyTimes.clear();
+      mReply = null;
+    }
+    if (flushTX) {
+      mCommand.setLength(0);
+    }
+    return true;
+  }
+} // public class ScriptedSerialPort
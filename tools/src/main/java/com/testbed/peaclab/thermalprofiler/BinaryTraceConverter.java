@@ -0,0 +1,179 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * TYPE: BinaryTraceConverter
+ *
+ *  Converts a binary sensor trace (see BinaryRecordFormatter) back into
+ *  the CSV data log layout (see CsvRecordFormatter). Part of the
+ *  workstation tools (see tools/build.gradle):
+ *
+ *    java -cp tools/build/libs/tools.jar com.testbed.peaclab.thermalprofiler.BinaryTraceConverter stat.bin stat.csv
+ *
+ */
+public class BinaryTraceConverter {
+
+  private static final int READ_BUFFER_LENGTH = 64 * 1024; // in bytes
+  private static final int WRITE_BUFFER_LENGTH = 64 * 1024; // in bytes
+
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.err.println("usage: BinaryTraceConverter <trace file> <csv file>");
+      System.exit(1);
+    }
+
+    try {
+      long records = convert(new File(args[0]), new File(args[1]));
+      System.out.println("Converted " + records + " records to " + args[1]);
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Convert a binary trace into a CSV data log.
+   *
+   * @return the number of records converted
+   */
+  public static long convert(File traceFile, File csvFile) throws IOException {
+    FileInputStream fis = null;
+    FileOutputStream fos = null;
+    long records = 0;
+
+    try {
+      fis = new FileInputStream(traceFile);
+      fos = new FileOutputStream(csvFile);
+      FileChannel in = fis.getChannel();
+      FileChannel out = fos.getChannel();
+
+      ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_LENGTH);
+      readBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+      byte[] writeBuffer = new byte[WRITE_BUFFER_LENGTH];
+      ByteBuffer writeByteBuffer = ByteBuffer.wrap(writeBuffer);
+      int writeBufferIndex = 0;
+
+      // read and check the header
+      if (readFully(in, readBuffer, BinaryRecordFormatter.HEADER_LENGTH) < BinaryRecordFormatter.HEADER_LENGTH) {
+        throw new IOException(traceFile + " is too short to be a sensor trace");
+      }
+      for (int i = 0; i < BinaryRecordFormatter.MAGIC.length; i++) {
+        if (readBuffer.get(BinaryRecordFormatter.HEADER_MAGIC + i) != BinaryRecordFormatter.MAGIC[i]) {
+          throw new IOException(traceFile + " is not a sensor trace");
+        }
+      }
+
+      short version = readBuffer.getShort(BinaryRecordFormatter.HEADER_VERSION);
+      if (version != BinaryRecordFormatter.VERSION) {
+        throw new IOException("unsupported trace version " + version);
+      }
+
+      char recordCode = (char) readBuffer.get(BinaryRecordFormatter.HEADER_RECORD_CODE);
+      int headerLength = readBuffer.getShort(BinaryRecordFormatter.HEADER_HEADER_LENGTH);
+      int recordLength = readBuffer.getShort(BinaryRecordFormatter.HEADER_RECORD_LENGTH);
+      int channelCount = readBuffer.get(BinaryRecordFormatter.HEADER_CHANNEL_COUNT);
+      TimeInterval benchmarkTime = new TimeInterval(
+          readBuffer.getLong(BinaryRecordFormatter.HEADER_BENCHMARK_START),
+          readBuffer.getLong(BinaryRecordFormatter.HEADER_BENCHMARK_STOP));
+
+      if (channelCount < 0 || channelCount > TestbedTemperatures.MAX_CHANNELS) {
+        throw new IOException("invalid channel count " + channelCount);
+      }
+      if (recordLength < BinaryRecordFormatter.RECORD_LENGTH +
+          (channelCount * BinaryRecordFormatter.CHANNEL_LENGTH) ||
+          recordLength > READ_BUFFER_LENGTH) {
+        throw new IOException("invalid record length " + recordLength);
+      }
+
+      CsvRecordFormatter formatter = new CsvRecordFormatter(recordCode, channelCount);
+      TestbedTemperatures data = new TestbedTemperatures();
+
+      writeBufferIndex = formatter.formatHeader(writeBuffer, writeBufferIndex, benchmarkTime);
+
+      // convert records, a buffer full at a time
+      in.position(headerLength);
+      int recordsPerRead = READ_BUFFER_LENGTH / recordLength;
+      int bytesRead;
+      while ((bytesRead = readFully(in, readBuffer, recordsPerRead * recordLength)) >= recordLength) {
+        for (int pos = 0; pos + recordLength <= bytesRead; pos += recordLength) {
+          readRecord(readBuffer, pos, channelCount, data);
+
+          if (WRITE_BUFFER_LENGTH - writeBufferIndex < formatter.getMaxRecordLength()) {
+            writeFully(out, writeByteBuffer, writeBufferIndex);
+            writeBufferIndex = 0;
+          }
+          writeBufferIndex = formatter.formatRecord(writeBuffer, writeBufferIndex, data);
+          records++;
+        }
+      }
+
+      writeFully(out, writeByteBuffer, writeBufferIndex);
+    }
+    // close out the files at the end
+    finally {
+      if (fis != null) {
+        fis.close();
+      }
+      if (fos != null) {
+        fos.close();
+      }
+    }
+
+    return records;
+  }
+
+  /**
+   * Decode the record at pos in a little-endian buffer, with
+   * channelCount SensorBus channels.
+   */
+  public static void readRecord(ByteBuffer buffer, int pos, int channelCount, TestbedTemperatures data) {
+    data.timestamp = buffer.getLong(pos + BinaryRecordFormatter.RECORD_TIMESTAMP);
+    data.temperatureCore0 = buffer.getShort(pos + BinaryRecordFormatter.RECORD_TEMPERATURE_CORE0);
+    data.temperatureCore1 = buffer.getShort(pos + BinaryRecordFormatter.RECORD_TEMPERATURE_CORE1);
+    data.temperatureCore2 = buffer.getShort(pos + BinaryRecordFormatter.RECORD_TEMPERATURE_CORE2);
+    data.temperatureCore3 = buffer.getShort(pos + BinaryRecordFormatter.RECORD_TEMPERATURE_CORE3);
+    data.temperatureThermocouple = buffer.getFloat(pos + BinaryRecordFormatter.RECORD_TEMPERATURE_THERMOCOUPLE);
+    data.temperatureAmbient = buffer.getFloat(pos + BinaryRecordFormatter.RECORD_TEMPERATURE_AMBIENT);
+    data.energyPCM = buffer.getFloat(pos + BinaryRecordFormatter.RECORD_ENERGY_PCM);
+    data.R_si = buffer.getFloat(pos + BinaryRecordFormatter.RECORD_R_SI);
+    data.R_pcm = buffer.getFloat(pos + BinaryRecordFormatter.RECORD_R_PCM);
+    data.sampleTime = buffer.getFloat(pos + BinaryRecordFormatter.RECORD_SAMPLE_TIME);
+    data.thermocoupleStaleness = buffer.getFloat(pos + BinaryRecordFormatter.RECORD_THERMOCOUPLE_STALENESS);
+
+    data.channelCount = channelCount;
+    for (int i = 0; i < channelCount; i++) {
+      int channel = pos + BinaryRecordFormatter.RECORD_CHANNELS + (i * BinaryRecordFormatter.CHANNEL_LENGTH);
+      data.channelTemperatures[i] = buffer.getFloat(channel + BinaryRecordFormatter.CHANNEL_TEMPERATURE);
+      data.channelStaleness[i] = buffer.getFloat(channel + BinaryRecordFormatter.CHANNEL_STALENESS);
+    }
+  }
+
+  // read up to length bytes from the start of the buffer, stopping early only at end of file
+  private static int readFully(FileChannel in, ByteBuffer buffer, int length) throws IOException {
+    buffer.clear();
+    buffer.limit(length);
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer) < 0) {
+        break;
+      }
+    }
+    return buffer.position();
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buffer, int length) throws IOException {
+    buffer.clear();
+    buffer.limit(length);
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+} // public class BinaryTraceConverter
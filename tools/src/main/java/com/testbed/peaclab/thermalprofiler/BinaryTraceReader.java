@@ -0,0 +1,423 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ *
+ * TYPE: BinaryTraceReader
+ *
+ *  Read-only, memory-mapped view of a binary sensor trace (see
+ *  BinaryRecordFormatter) for offline analysis. Values are read straight
+ *  out of the mapping by record index and column, nothing is parsed
+ *  up front and no TestbedTemperatures objects are created.
+ *
+ *  Timestamps are assumed non-decreasing, which holds for traces written
+ *  by SensorRecorder, so time ranges are found by binary search.
+ *
+ *  Part of the workstation tools (see tools/build.gradle). Run it to
+ *  summarize traces over their benchmark interval:
+ *
+ *    java -cp tools/build/libs/tools.jar com.testbed.peaclab.thermalprofiler.BinaryTraceReader stat.bin ...
+ *
+ */
+public class BinaryTraceReader {
+
+  // enum for the trace columns, with their offset within a record
+  public enum Column {
+    TIMESTAMP                (BinaryRecordFormatter.RECORD_TIMESTAMP, 8),
+    TEMPERATURE_CORE0        (BinaryRecordFormatter.RECORD_TEMPERATURE_CORE0, 2),
+    TEMPERATURE_CORE1        (BinaryRecordFormatter.RECORD_TEMPERATURE_CORE1, 2),
+    TEMPERATURE_CORE2        (BinaryRecordFormatter.RECORD_TEMPERATURE_CORE2, 2),
+    TEMPERATURE_CORE3        (BinaryRecordFormatter.RECORD_TEMPERATURE_CORE3, 2),
+    TEMPERATURE_THERMOCOUPLE (BinaryRecordFormatter.RECORD_TEMPERATURE_THERMOCOUPLE, 4),
+    TEMPERATURE_AMBIENT      (BinaryRecordFormatter.RECORD_TEMPERATURE_AMBIENT, 4),
+    ENERGY_PCM               (BinaryRecordFormatter.RECORD_ENERGY_PCM, 4),
+    R_SI                     (BinaryRecordFormatter.RECORD_R_SI, 4),
+    R_PCM                    (BinaryRecordFormatter.RECORD_R_PCM, 4),
+    SAMPLE_TIME              (BinaryRecordFormatter.RECORD_SAMPLE_TIME, 4);
+
+    private final int mOffset;
+    private final int mSize; // 8 = long, 2 = short, 4 = float
+
+    Column(int offset, int size) {
+      mOffset = offset;
+      mSize = size;
+    }
+  }
+
+  private final MappedByteBuffer mTrace;
+
+  private final short mVersion;
+  private final char mRecordCode;
+  private final int mHeaderLength;
+  private final int mRecordLength;
+  private final int mChannelCount;
+  private final int mSamplingIntervalUs;
+  private final TimeInterval mBenchmarkTime;
+  private final int mRecordCount;
+
+  public BinaryTraceReader(File traceFile) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(traceFile, "r");
+
+    try {
+      FileChannel channel = file.getChannel();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException(traceFile + " is too large to map");
+      }
+      if (size < BinaryRecordFormatter.HEADER_LENGTH) {
+        throw new IOException(traceFile + " is too short to be a sensor trace");
+      }
+
+      // the mapping stays valid after the file is closed
+      mTrace = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      mTrace.order(ByteOrder.LITTLE_ENDIAN);
+    } finally {
+      file.close();
+    }
+
+    // read and check the header
+    for (int i = 0; i < BinaryRecordFormatter.MAGIC.length; i++) {
+      if (mTrace.get(BinaryRecordFormatter.HEADER_MAGIC + i) != BinaryRecordFormatter.MAGIC[i]) {
+        throw new IOException(traceFile + " is not a sensor trace");
+      }
+    }
+
+    mVersion = mTrace.getShort(BinaryRecordFormatter.HEADER_VERSION);
+    if (mVersion != BinaryRecordFormatter.VERSION) {
+      throw new IOException("unsupported trace version " + mVersion);
+    }
+
+    mRecordCode = (char) mTrace.get(BinaryRecordFormatter.HEADER_RECORD_CODE);
+    mHeaderLength = mTrace.getShort(BinaryRecordFormatter.HEADER_HEADER_LENGTH);
+    mRecordLength = mTrace.getShort(BinaryRecordFormatter.HEADER_RECORD_LENGTH);
+    mChannelCount = mTrace.get(BinaryRecordFormatter.HEADER_CHANNEL_COUNT);
+    mSamplingIntervalUs = mTrace.getInt(BinaryRecordFormatter.HEADER_SAMPLING_INTERVAL_US);
+    mBenchmarkTime = new TimeInterval(
+        mTrace.getLong(BinaryRecordFormatter.HEADER_BENCHMARK_START),
+        mTrace.getLong(BinaryRecordFormatter.HEADER_BENCHMARK_STOP));
+
+    if (mChannelCount < 0 || mChannelCount > TestbedTemperatures.MAX_CHANNELS) {
+      throw new IOException("invalid channel count " + mChannelCount);
+    }
+    if (mRecordLength < BinaryRecordFormatter.RECORD_LENGTH +
+        (mChannelCount * BinaryRecordFormatter.CHANNEL_LENGTH)) {
+      throw new IOException("invalid record length " + mRecordLength);
+    }
+
+    // ignore a partially written last record
+    mRecordCount = (mTrace.capacity() - mHeaderLength) / mRecordLength;
+  }
+
+  public short getVersion() {
+    return mVersion;
+  }
+
+  public char getRecordCode() {
+    return mRecordCode;
+  }
+
+  public int getChannelCount() {
+    return mChannelCount;
+  }
+
+  public int getSamplingIntervalUs() {
+    return mSamplingIntervalUs;
+  }
+
+  public TimeInterval getBenchmarkTime() {
+    return new TimeInterval(mBenchmarkTime.startTime, mBenchmarkTime.stopTime);
+  }
+
+  public int getRecordCount() {
+    return mRecordCount;
+  }
+
+  public long getTimestamp(int record) {
+    return mTrace.getLong(position(record) + BinaryRecordFormatter.RECORD_TIMESTAMP);
+  }
+
+  public short getTemperatureCore(int core, int record) {
+    if (core < Testbed.TESTBED_CPU_CORE_INDEX_MIN || core > Testbed.TESTBED_CPU_CORE_INDEX_MAX) {
+      throw new IllegalArgumentException("invalid core index " + core);
+    }
+    return mTrace.getShort(position(record) + BinaryRecordFormatter.RECORD_TEMPERATURE_CORE0 + 2 * core);
+  }
+
+  public float getChannelTemperature(int channel, int record) {
+    return mTrace.getFloat(channelPosition(channel, record) + BinaryRecordFormatter.CHANNEL_TEMPERATURE);
+  }
+
+  /**
+   * @return the staleness of a channel, in seconds
+   */
+  public float getChannelStaleness(int channel, int record) {
+    return mTrace.getFloat(channelPosition(channel, record) + BinaryRecordFormatter.CHANNEL_STALENESS);
+  }
+
+  /**
+   * @return the staleness of the thermocouple temperature, in seconds
+   */
+  public float getThermocoupleStaleness(int record) {
+    return mTrace.getFloat(position(record) + BinaryRecordFormatter.RECORD_THERMOCOUPLE_STALENESS);
+  }
+
+  public float getFloat(Column column, int record) {
+    if (column.mSize != 4) {
+      throw new IllegalArgumentException(column + " is not a float column");
+    }
+    return mTrace.getFloat(position(record) + column.mOffset);
+  }
+
+  /**
+   * Read any column, widened to a double.
+   */
+  public double getValue(Column column, int record) {
+    int pos = position(record) + column.mOffset;
+    switch (column.mSize) {
+    case 8:
+      return mTrace.getLong(pos);
+    case 2:
+      return mTrace.getShort(pos);
+    default:
+      return mTrace.getFloat(pos);
+    }
+  }
+
+  /**
+   * Copy one record into an existing TestbedTemperatures.
+   */
+  public void getRecord(int record, TestbedTemperatures data) {
+    int pos = position(record);
+    data.timestamp = mTrace.getLong(pos + BinaryRecordFormatter.RECORD_TIMESTAMP);
+    data.temperatureCore0 = mTrace.getShort(pos + BinaryRecordFormatter.RECORD_TEMPERATURE_CORE0);
+    data.temperatureCore1 = mTrace.getShort(pos + BinaryRecordFormatter.RECORD_TEMPERATURE_CORE1);
+    data.temperatureCore2 = mTrace.getShort(pos + BinaryRecordFormatter.RECORD_TEMPERATURE_CORE2);
+    data.temperatureCore3 = mTrace.getShort(pos + BinaryRecordFormatter.RECORD_TEMPERATURE_CORE3);
+    data.temperatureThermocouple = mTrace.getFloat(pos + BinaryRecordFormatter.RECORD_TEMPERATURE_THERMOCOUPLE);
+    data.temperatureAmbient = mTrace.getFloat(pos + BinaryRecordFormatter.RECORD_TEMPERATURE_AMBIENT);
+    data.energyPCM = mTrace.getFloat(pos + BinaryRecordFormatter.RECORD_ENERGY_PCM);
+    data.R_si = mTrace.getFloat(pos + BinaryRecordFormatter.RECORD_R_SI);
+    data.R_pcm = mTrace.getFloat(pos + BinaryRecordFormatter.RECORD_R_PCM);
+    data.sampleTime = mTrace.getFloat(pos + BinaryRecordFormatter.RECORD_SAMPLE_TIME);
+    data.thermocoupleStaleness = getThermocoupleStaleness(record);
+    data.channelCount = mChannelCount;
+    for (int i = 0; i < mChannelCount; i++) {
+      data.channelTemperatures[i] = getChannelTemperature(i, record);
+      data.channelStaleness[i] = getChannelStaleness(i, record);
+    }
+  }
+
+  /**
+   * The PcmEnergyModel inputs of every record, e.g. to re-run the model
+   * with other Parameters.
+   */
+  public PcmEnergyModel.Inputs getModelInputs() {
+    PcmEnergyModel.Inputs inputs = new PcmEnergyModel.Inputs(mRecordCount);
+    for (int i = 0; i < inputs.length; i++) {
+      inputs.cpuTemperature[i] = (float) (
+          getTemperatureCore(0, i) +
+          getTemperatureCore(1, i) +
+          getTemperatureCore(2, i) +
+          getTemperatureCore(3, i)) / ((float) Testbed.TESTBED_NUM_CPU_CORES);
+      inputs.pcmTemperature[i] = getFloat(Column.TEMPERATURE_THERMOCOUPLE, i);
+      inputs.airTemperature[i] = getFloat(Column.TEMPERATURE_AMBIENT, i);
+      inputs.sampleTime[i] = getFloat(Column.SAMPLE_TIME, i);
+    }
+    return inputs;
+  }
+
+  /**
+   * All records in the trace.
+   */
+  public Slice all() {
+    return new Slice(0, mRecordCount);
+  }
+
+  /**
+   * Records with startTime <= timestamp < stopTime (Unix time, msec).
+   */
+  public Slice slice(long startTime, long stopTime) {
+    int from = lowerBound(startTime);
+    int to = Math.max(from, lowerBound(stopTime));
+    return new Slice(from, to);
+  }
+
+  /**
+   * Records recorded while the benchmark was running. Empty if the
+   * trace holds no benchmark times.
+   */
+  public Slice benchmarkSlice() {
+    if (mBenchmarkTime.startTime == 0 || mBenchmarkTime.stopTime == 0) {
+      return new Slice(0, 0);
+    }
+    return slice(mBenchmarkTime.startTime, mBenchmarkTime.stopTime);
+  }
+
+  private int position(int record) {
+    if (record < 0 || record >= mRecordCount) {
+      throw new IndexOutOfBoundsException("record " + record + ", count " + mRecordCount);
+    }
+    return mHeaderLength + record * mRecordLength;
+  }
+
+  private int channelPosition(int channel, int record) {
+    if (channel < 0 || channel >= mChannelCount) {
+      throw new IllegalArgumentException("invalid channel index " + channel);
+    }
+    return position(record) + BinaryRecordFormatter.RECORD_CHANNELS +
+        (channel * BinaryRecordFormatter.CHANNEL_LENGTH);
+  }
+
+  // index of the first record with timestamp >= time
+  private int lowerBound(long time) {
+    int low = 0;
+    int high = mRecordCount;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (getTimestamp(mid) < time) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   *
+   * TYPE: Slice
+   *
+   *  Contiguous range of records [from, to) of the trace.
+   *
+   */
+  public class Slice {
+    public final int from;
+    public final int to;
+
+    private Slice(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    public int size() {
+      return to - from;
+    }
+
+    /**
+     * Records of this slice with startTime <= timestamp < stopTime.
+     */
+    public Slice slice(long startTime, long stopTime) {
+      Slice s = BinaryTraceReader.this.slice(startTime, stopTime);
+      return new Slice(Math.max(from, Math.min(s.from, to)), Math.max(from, Math.min(s.to, to)));
+    }
+
+    public Statistics statistics(Column column) {
+      double min = Double.NaN;
+      double max = Double.NaN;
+      double sum = 0.;
+
+      for (int i = from; i < to; i++) {
+        double value = getValue(column, i);
+        if (i == from || value < min) {
+          min = value;
+        }
+        if (i == from || value > max) {
+          max = value;
+        }
+        sum += value;
+      }
+
+      return new Statistics(size(), min, max, (size() > 0) ? sum / size() : Double.NaN);
+    }
+
+    public double min(Column column) {
+      return statistics(column).min;
+    }
+
+    public double max(Column column) {
+      return statistics(column).max;
+    }
+
+    public double mean(Column column) {
+      return statistics(column).mean;
+    }
+  } // public class Slice
+
+  /**
+   *
+   * TYPE: Statistics
+   *
+   *  Summary of one column over a slice. min, max and mean are NaN
+   *  for an empty slice.
+   *
+   */
+  public static class Statistics {
+    public final int count;
+    public final double min;
+    public final double max;
+    public final double mean;
+
+    public Statistics(int count, double min, double max, double mean) {
+      this.count = count;
+      this.min = min;
+      this.max = max;
+      this.mean = mean;
+    }
+  } // public static class Statistics
+
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      System.err.println("usage: BinaryTraceReader <trace file> ...");
+      System.exit(1);
+    }
+
+    for (String filename : args) {
+      try {
+        BinaryTraceReader reader = new BinaryTraceReader(new File(filename));
+        Slice slice = reader.benchmarkSlice();
+        boolean benchmark = (slice.size() > 0);
+        if (!benchmark) {
+          slice = reader.all();
+        }
+
+        System.out.println(filename + ": " + reader.getRecordCount() + " records, " +
+            slice.size() + " in " + (benchmark ? "benchmark" : "trace"));
+        for (Column column : Column.values()) {
+          if (column == Column.TIMESTAMP) {
+            continue;
+          }
+          Statistics stats = slice.statistics(column);
+          System.out.println(String.format(Locale.US, "  %-24s min %10.4f  max %10.4f  mean %10.4f",
+              column, stats.min, stats.max, stats.mean));
+        }
+        for (int channel = 0; channel < reader.getChannelCount(); channel++) {
+          double min = Double.NaN;
+          double max = Double.NaN;
+          double sum = 0.;
+          int count = 0;
+          for (int i = slice.from; i < slice.to; i++) {
+            float value = reader.getChannelTemperature(channel, i);
+            if (Float.isNaN(value)) {
+              continue;
+            }
+            min = (count == 0 || value < min) ? value : min;
+            max = (count == 0 || value > max) ? value : max;
+            sum += value;
+            count++;
+          }
+          System.out.println(String.format(Locale.US, "  %-24s min %10.4f  max %10.4f  mean %10.4f",
+              "CHANNEL" + channel, min, max, (count > 0) ? sum / count : Double.NaN));
+        }
+      } catch (IOException e) {
+        System.err.println(filename + ": " + e.getMessage());
+      }
+    }
+  }
+} // public class BinaryTraceReader
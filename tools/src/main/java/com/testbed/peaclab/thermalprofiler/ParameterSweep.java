@@ -0,0 +1,360 @@
+package com.testbed.peaclab.thermalprofiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *
+ * TYPE: ParameterSweep
+ *
+ *  Tunes the PCM-aware policy (ThermalManagement.policy_throttleFrequency2)
+ *  offline: replays recorded binary traces through the PcmEnergyModel and
+ *  a simulation of the policy, for every point of a grid of
+ *
+ *    melting temperature   PcmEnergyModel meltingTemp (PCM_MELTING_TEMP)
+ *    energy max            PcmEnergyModel energyMax (PCM_ENERGY_MAX)
+ *    cooldown fraction     PCM_ENERGY_COOLDOWN_FRACTION
+ *    throttle fraction     PCM_ENERGY_THROTTLE_FRACTION (pcmFraction)
+ *
+ *  and ranks the points by sprint duration (time at the highest
+ *  frequency), then peak CPU temperature, then throttle count, summed
+ *  (peak: max) over the traces.
+ *
+ *  energyMax is what the policy assumes the PCM holds, not what it
+ *  does: a point that lets the CPU exceed T_CPU_CRITICAL, or that melts
+ *  the whole PCM (the energy of a reference model, with the testbed's
+ *  fit and a capacity of PCM_CAPACITY, reaches the capacity) is
+ *  infeasible, and ranks below all feasible points. Otherwise the
+ *  loosest thresholds would always sprint the longest.
+ *
+ *  The traces are taken as recordings of an unmanaged sprint, at the
+ *  highest frequency. While the simulated policy has throttled the
+ *  cores, the CPU's rise over the PCM temperature is scaled by the
+ *  power of the cores at the lower frequency (the uncalibrated
+ *  CorePowerModel), so that throttling slows the melting. The PCM and air
+ *  temperatures are replayed as recorded.
+ *
+ *  The grid points are spread over a fork/join pool with a thread per
+ *  core. The traces are loaded once into primitive arrays and shared,
+ *  read-only, so the sweep scales with the cores. Part of the
+ *  workstation tools (see tools/build.gradle):
+ *
+ *    java -cp tools/build/libs/tools.jar com.testbed.peaclab.thermalprofiler.ParameterSweep \
+ *        -melting 50,55,60 -energy 190,230,270 trace1.bin trace2.bin
+ *
+ */
+public class ParameterSweep {
+
+  // grid points per fork/join leaf task
+  private static final int POINTS_PER_TASK = 4;
+
+  // default grid
+  private static final float[] DEFAULT_MELTING_TEMPS = { 50.f, 52.5f, 55.f, 57.5f, 60.f };
+  private static final float[] DEFAULT_ENERGY_MAXES = { 150.f, 190.f, 230.f, 270.f, 310.f };
+  private static final float[] DEFAULT_COOLDOWN_FRACTIONS = { 0.05f, 0.10f, 0.20f, 0.30f };
+  private static final float[] DEFAULT_THROTTLE_FRACTIONS = { 0.50f, 0.60f, 0.75f, 0.90f };
+
+  // rows of the table printed by main()
+  private static final int DEFAULT_TOP_ROWS = 20;
+
+  // energy the testbed's PCM holds, in J, for the feasibility check
+  private static final float PCM_CAPACITY = PcmEnergyModel.DEFAULT_ENERGY_MAX;
+
+  /**
+   *
+   * TYPE: Point
+   *
+   *  One point of the grid, and its results over all traces.
+   *
+   */
+  public static class Point {
+    public final float meltingTemp;
+    public final float energyMax;
+    public final float cooldownFraction;
+    public final float throttleFraction;
+
+    public float sprintTime;      // at the highest frequency, in seconds
+    public float peakTemperature; // CPU, in C
+    public int throttleCount;     // times the policy throttled down
+    public float peakPcmEnergy;   // of the reference model, in J
+
+    public boolean isFeasible() {
+      return peakTemperature <= PolicyThresholds.T_CPU_CRITICAL && peakPcmEnergy < PCM_CAPACITY;
+    }
+
+    public Point(float meltingTemp, float energyMax, float cooldownFraction, float throttleFraction) {
+      this.meltingTemp = meltingTemp;
+      this.energyMax = energyMax;
+      this.cooldownFraction = cooldownFraction;
+      this.throttleFraction = throttleFraction;
+    }
+  } // public static class Point
+
+  // best first
+  private static final Comparator<Point> RANKING = new Comparator<Point>() {
+    @Override
+    public int compare(Point a, Point b) {
+      if (a.isFeasible() != b.isFeasible()) {
+        return a.isFeasible() ? -1 : 1;
+      }
+      if (a.sprintTime != b.sprintTime) {
+        return (a.sprintTime > b.sprintTime) ? -1 : 1;
+      }
+      if (a.peakTemperature != b.peakTemperature) {
+        return (a.peakTemperature < b.peakTemperature) ? -1 : 1;
+      }
+      return a.throttleCount - b.throttleCount;
+    }
+  };
+
+  private final PcmEnergyModel.Inputs[] mTraces;
+
+  // cores' power at each frequency, relative to the highest
+  private final float[] mRelativePower;
+
+  public ParameterSweep(PcmEnergyModel.Inputs[] traces) {
+    mTraces = traces;
+    mRelativePower = new float[Testbed.TESTBED_CPU_FREQUENCY.length];
+    for (int i = 0; i < mRelativePower.length; i++) {
+      mRelativePower[i] = CorePowerModel.relativePower(Testbed.TESTBED_CPU_FREQUENCY[i]);
+    }
+  }
+
+  /**
+   * The grid of all combinations of the values.
+   */
+  public static Point[] grid(float[] meltingTemps, float[] energyMaxes,
+      float[] cooldownFractions, float[] throttleFractions) {
+    Point[] points = new Point[meltingTemps.length * energyMaxes.length *
+        cooldownFractions.length * throttleFractions.length];
+    int n = 0;
+    for (float meltingTemp : meltingTemps) {
+      for (float energyMax : energyMaxes) {
+        for (float cooldownFraction : cooldownFractions) {
+          for (float throttleFraction : throttleFractions) {
+            points[n++] = new Point(meltingTemp, energyMax, cooldownFraction, throttleFraction);
+          }
+        }
+      }
+    }
+    return points;
+  }
+
+  /**
+   * Evaluate every point on the pool, and sort them, best first.
+   */
+  public void run(Point[] points, ForkJoinPool pool) {
+    pool.invoke(new SweepTask(points, 0, points.length));
+    Arrays.sort(points, RANKING);
+  }
+
+  /**
+   * Replay all traces with the parameters of a point, and fill in its
+   * results.
+   */
+  public void evaluate(Point point) {
+    PcmEnergyModel.Parameters parameters = new PcmEnergyModel.Parameters();
+    parameters.meltingTemp = point.meltingTemp;
+    parameters.energyMax = point.energyMax;
+    PcmEnergyModel model = new PcmEnergyModel(parameters);
+    PcmEnergyModel reference = new PcmEnergyModel(new PcmEnergyModel.Parameters());
+
+    point.sprintTime = 0.f;
+    point.peakTemperature = Float.NEGATIVE_INFINITY;
+    point.throttleCount = 0;
+    point.peakPcmEnergy = 0.f;
+
+    for (PcmEnergyModel.Inputs trace : mTraces) {
+      model.reset();
+      reference.reset();
+      replay(trace, model, reference, point);
+    }
+  }
+
+  // the policy's control loop over one trace, in trace time
+  private void replay(PcmEnergyModel.Inputs trace, PcmEnergyModel model, PcmEnergyModel reference, Point point) {
+    final float throttleEnergy = point.energyMax * point.throttleFraction;
+    final float cooldownEnergy = point.energyMax * point.cooldownFraction;
+    final double controlDelay = PolicyThresholds.THERMAL_CONTROL_DELAY_MS / 1000.;
+    final double criticalExtraDelay = PolicyThresholds.CRITICAL_EXTRA_DELAY_MS / 1000.;
+
+    int freqIndex = Testbed.TESTBED_CPU_FREQ_INDEX_MAX;
+    boolean cooldown = false;
+    double time = 0.;
+    double timeOfLastUpdate = 0.;
+
+    for (int i = 0; i < trace.length; i++) {
+      float dt = trace.sampleTime[i];
+      float pcmTemp = trace.pcmTemperature[i];
+      float cpuTemp = pcmTemp + (trace.cpuTemperature[i] - pcmTemp) * mRelativePower[freqIndex];
+
+      if (freqIndex == Testbed.TESTBED_CPU_FREQ_INDEX_MAX) {
+        point.sprintTime += dt;
+      }
+      point.peakTemperature = Math.max(point.peakTemperature, cpuTemp);
+
+      model.update(cpuTemp, pcmTemp, trace.airTemperature[i], dt);
+      float pcmEnergy = model.getEnergy();
+
+      reference.update(cpuTemp, pcmTemp, trace.airTemperature[i], dt);
+      point.peakPcmEnergy = Math.max(point.peakPcmEnergy, reference.getEnergy());
+
+      time += dt;
+      if (time <= timeOfLastUpdate + controlDelay) {
+        continue;
+      }
+
+      // as policy_throttleFrequency2
+      if (!cooldown && pcmEnergy > throttleEnergy) {
+        cooldown = true;
+        timeOfLastUpdate = time;
+        freqIndex = Math.max(freqIndex - 1, Testbed.TESTBED_CPU_FREQ_INDEX_MIN);
+        point.throttleCount++;
+      }
+
+      if (cpuTemp > PolicyThresholds.T_CPU_CRITICAL) {
+        timeOfLastUpdate = time + criticalExtraDelay;
+        freqIndex = Math.max(freqIndex - 1, Testbed.TESTBED_CPU_FREQ_INDEX_MIN);
+        point.throttleCount++;
+      }
+
+      if (cooldown && pcmEnergy < cooldownEnergy) {
+        cooldown = false;
+        timeOfLastUpdate = time;
+        freqIndex = Testbed.TESTBED_CPU_FREQ_INDEX_MAX;
+      }
+    }
+  }
+
+  /**
+   *
+   * TYPE: SweepTask
+   *
+   *  Evaluates the points [from, to), splitting in halves down to
+   *  POINTS_PER_TASK.
+   *
+   */
+  private class SweepTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Point[] mPoints;
+    private final int mFrom;
+    private final int mTo;
+
+    public SweepTask(Point[] points, int from, int to) {
+      mPoints = points;
+      mFrom = from;
+      mTo = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (mTo - mFrom <= POINTS_PER_TASK) {
+        for (int i = mFrom; i < mTo; i++) {
+          evaluate(mPoints[i]);
+        }
+        return;
+      }
+
+      int middle = (mFrom + mTo) >>> 1;
+      invokeAll(new SweepTask(mPoints, mFrom, middle), new SweepTask(mPoints, middle, mTo));
+    }
+  } // private class SweepTask
+
+  public static void main(String[] args) {
+    float[] meltingTemps = DEFAULT_MELTING_TEMPS;
+    float[] energyMaxes = DEFAULT_ENERGY_MAXES;
+    float[] cooldownFractions = DEFAULT_COOLDOWN_FRACTIONS;
+    float[] throttleFractions = DEFAULT_THROTTLE_FRACTIONS;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int topRows = DEFAULT_TOP_ROWS;
+    List<String> filenames = new ArrayList<String>();
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if (!arg.startsWith("-")) {
+          filenames.add(arg);
+        } else if (i + 1 == args.length) {
+          throw new IllegalArgumentException("missing value of " + arg);
+        } else if (arg.equals("-melting")) {
+          meltingTemps = parseValues(args[++i]);
+        } else if (arg.equals("-energy")) {
+          energyMaxes = parseValues(args[++i]);
+        } else if (arg.equals("-cooldown")) {
+          cooldownFractions = parseValues(args[++i]);
+        } else if (arg.equals("-throttle")) {
+          throttleFractions = parseValues(args[++i]);
+        } else if (arg.equals("-threads")) {
+          threads = Integer.parseInt(args[++i]);
+        } else if (arg.equals("-top")) {
+          topRows = Integer.parseInt(args[++i]);
+        } else {
+          throw new IllegalArgumentException("unknown option " + arg);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      filenames.clear();
+    }
+
+    if (filenames.isEmpty()) {
+      System.err.println("usage: ParameterSweep [-melting C,...] [-energy J,...] [-cooldown f,...] " +
+          "[-throttle f,...] [-threads n] [-top rows] <trace file> ...");
+      System.exit(1);
+    }
+
+    PcmEnergyModel.Inputs[] traces = new PcmEnergyModel.Inputs[filenames.size()];
+    int records = 0;
+    for (int i = 0; i < traces.length; i++) {
+      try {
+        traces[i] = new BinaryTraceReader(new File(filenames.get(i))).getModelInputs();
+        records += traces[i].length;
+      } catch (IOException e) {
+        System.err.println(filenames.get(i) + ": " + e.getMessage());
+        System.exit(1);
+      }
+    }
+
+    Point[] points = grid(meltingTemps, energyMaxes, cooldownFractions, throttleFractions);
+    ForkJoinPool pool = new ForkJoinPool(threads);
+
+    long startTime = System.nanoTime();
+    new ParameterSweep(traces).run(points, pool);
+    long elapsedTime = System.nanoTime() - startTime;
+    pool.shutdown();
+
+    int feasible = 0;
+    for (Point p : points) {
+      feasible += p.isFeasible() ? 1 : 0;
+    }
+
+    System.out.println(String.format(Locale.US, "%d points x %d traces (%d records) in %.3f s on %d threads, %d feasible",
+        points.length, traces.length, records, elapsedTime / 1e9, threads, feasible));
+    System.out.println(String.format(Locale.US, "%4s  %8s  %8s  %8s  %8s  %10s  %8s  %9s  %8s  %8s",
+        "rank", "melt C", "max J", "cool", "throttle", "sprint s", "peak C", "throttles", "pcm J", "feasible"));
+    for (int i = 0; i < Math.min(topRows, points.length); i++) {
+      Point p = points[i];
+      System.out.println(String.format(Locale.US, "%4d  %8.2f  %8.1f  %8.3f  %8.3f  %10.1f  %8.2f  %9d  %8.1f  %8s",
+          i + 1, p.meltingTemp, p.energyMax, p.cooldownFraction, p.throttleFraction,
+          p.sprintTime, p.peakTemperature, p.throttleCount, p.peakPcmEnergy, p.isFeasible() ? "yes" : "no"));
+    }
+  }
+
+  // comma-separated values
+  private static float[] parseValues(String list) {
+    String[] fields = list.split(",");
+    float[] values = new float[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      values[i] = Float.parseFloat(fields[i].trim());
+    }
+    return values;
+  }
+} // public class ParameterSweep